@@ -0,0 +1,121 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.encode.Base64;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures checking the credentials of Cloud Controller requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticationFilterBenchmark {
+
+    private AuthenticationFilter filter;
+    private AuthenticationFilter rotatingFilter;
+    private Context context;
+    private Request authenticated;
+    private Request rejected;
+    private Request rotated;
+    private Handler next;
+
+    /** Creates the filter and the requests it checks. */
+    @Setup
+    public void setUp() {
+        filter = new AuthenticationFilter("broker_user", "broker_password");
+        context = new RootContext();
+        authenticated = newRequest("broker_user:broker_password");
+        rejected = newRequest("broker_user:wrong_password");
+        rotatingFilter = new AuthenticationFilter(Arrays.asList(
+                new BrokerCredential("broker_user", "broker_password"),
+                new BrokerCredential("broker_user", BrokerCredential.hash("new_password"))));
+        rotated = newRequest("broker_user:new_password");
+        final Promise<Response, NeverThrowsException> response = newResponsePromise(new Response(Status.OK));
+        next = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+                return response;
+            }
+        };
+        // Only the first request with new credentials hashes the password
+        rotatingFilter.filter(context, rotated, next).getOrThrowUninterruptibly();
+    }
+
+    /**
+     * Checks valid credentials.
+     * @return The response.
+     */
+    @Benchmark
+    public Response authenticated() {
+        return filter.filter(context, authenticated, next).getOrThrowUninterruptibly();
+    }
+
+    /**
+     * Checks invalid credentials.
+     * @return The response.
+     */
+    @Benchmark
+    public Response rejected() {
+        return filter.filter(context, rejected, next).getOrThrowUninterruptibly();
+    }
+
+    /**
+     * Checks credentials stored as a PBKDF2 hash, while an older password is also accepted, once they have been
+     * verified.
+     * @return The response.
+     */
+    @Benchmark
+    public Response rotated() {
+        return rotatingFilter.filter(context, rotated, next).getOrThrowUninterruptibly();
+    }
+
+    private static Request newRequest(String credentials) {
+        Request request = new Request();
+        request.setMethod("GET");
+        request.getHeaders().put("Authorization",
+                "Basic " + Base64.encode(credentials.getBytes(StandardCharsets.ISO_8859_1)));
+        return request;
+    }
+}
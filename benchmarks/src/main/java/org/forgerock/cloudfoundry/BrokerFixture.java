@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.forgerock.cloudfoundry.persistence.InMemoryStateStore;
+import org.forgerock.cloudfoundry.services.Service;
+import org.forgerock.cloudfoundry.services.openam.OpenAMOAuth2Service;
+import org.forgerock.http.HttpApplicationException;
+
+/**
+ * The broker components shared by the benchmarks. OpenAM is never called, so it does not need to be running.
+ */
+final class BrokerFixture {
+
+    static final String BROKER_USERNAME = "broker_user";
+    static final String BROKER_PASSWORD = "broker_password";
+
+    private final OpenAMClient openAMClient;
+    private final Map<String, Service> services;
+    private final AsyncOperations asyncOperations = new AsyncOperations(new InMemoryStateStore(), 1, 100);
+
+    /**
+     * Creates an OpenAM client and the OAuth2 service using it.
+     *
+     * @throws HttpApplicationException If the OpenAM client cannot be created.
+     */
+    BrokerFixture() throws HttpApplicationException {
+        Configuration configuration = new Configuration("http://openam.example.com:8080/openam/", "amadmin",
+                "password", "/", BROKER_USERNAME, BROKER_PASSWORD, "profile email");
+        openAMClient = new OpenAMClient(configuration);
+        services = Collections.<String, Service>singletonMap(OpenAMOAuth2Service.SERVICE_ID,
+                new OpenAMOAuth2Service(openAMClient, new PasswordGenerator(), configuration,
+                        new InMemoryStateStore()));
+    }
+
+    OpenAMClient getOpenAMClient() {
+        return openAMClient;
+    }
+
+    Map<String, Service> getServices() {
+        return services;
+    }
+
+    AsyncOperations getAsyncOperations() {
+        return asyncOperations;
+    }
+
+    void stop() {
+        asyncOperations.stop();
+        openAMClient.stop();
+    }
+}
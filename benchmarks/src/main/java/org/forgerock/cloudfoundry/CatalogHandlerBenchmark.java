@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import org.forgerock.cloudfoundry.handlers.CatalogHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures serving the service catalog, in full and to a caller that already has it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogHandlerBenchmark {
+
+    private BrokerFixture broker;
+    private CatalogHandler handler;
+    private Context context;
+    private Request request;
+    private Request revalidation;
+
+    /**
+     * Creates the catalog handler and the requests it serves.
+     *
+     * @throws Exception If the broker components cannot be created.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        broker = new BrokerFixture();
+        handler = new CatalogHandler(broker.getServices().values());
+        context = new RootContext();
+        request = new Request();
+        request.setMethod("GET");
+        revalidation = new Request();
+        revalidation.setMethod("GET");
+        revalidation.getHeaders().put("If-None-Match",
+                handler.handle(context, request).getOrThrowUninterruptibly().getHeaders().getFirst("ETag"));
+    }
+
+    /** Stops the broker components. */
+    @TearDown
+    public void tearDown() {
+        broker.stop();
+    }
+
+    /**
+     * Serves the catalog.
+     * @return The response.
+     */
+    @Benchmark
+    public Response catalog() {
+        return handler.handle(context, request).getOrThrowUninterruptibly();
+    }
+
+    /**
+     * Answers a request revalidating the catalog.
+     * @return The response.
+     */
+    @Benchmark
+    public Response notModified() {
+        return handler.handle(context, revalidation).getOrThrowUninterruptibly();
+    }
+}
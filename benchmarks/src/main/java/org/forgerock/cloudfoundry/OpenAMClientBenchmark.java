@@ -0,0 +1,85 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.json.JsonValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the OpenAM requests that create OAuth2 clients, without sending them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpenAMClientBenchmark {
+
+    private BrokerFixture broker;
+    private OpenAMClient openAMClient;
+    private JsonValue clientResource;
+
+    /**
+     * Creates the OpenAM client.
+     *
+     * @throws Exception If the broker components cannot be created.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        broker = new BrokerFixture();
+        openAMClient = broker.getOpenAMClient();
+        clientResource = openAMClient.newClientResource("instanceId-bindingId", "password");
+    }
+
+    /** Stops the broker components. */
+    @TearDown
+    public void tearDown() {
+        broker.stop();
+    }
+
+    /**
+     * Builds the agent resource of a client, including its lists of names and scopes.
+     * @return The resource.
+     */
+    @Benchmark
+    public JsonValue clientResource() {
+        return openAMClient.newClientResource("instanceId-bindingId", "password");
+    }
+
+    /**
+     * Builds the request creating a client from its resource.
+     * @return The request.
+     */
+    @Benchmark
+    public Request createClientRequest() {
+        return openAMClient.newCreateClientRequest(clientResource);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the JSON responses returned to the Cloud Controller.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponsesBenchmark {
+
+    private final Exception exception = new IllegalStateException("Unable to reach OpenAM");
+
+    /**
+     * Builds an empty JSON response.
+     * @return The response.
+     */
+    @Benchmark
+    public Response emptyJsonResponse() {
+        return Responses.newEmptyJsonResponse(Status.OK);
+    }
+
+    /**
+     * Builds an error response with a description.
+     * @return The response.
+     */
+    @Benchmark
+    public Response errorJsonResponse() {
+        return Responses.newErrorJsonResponse(Status.BAD_REQUEST, "Missing plan_id");
+    }
+
+    /**
+     * Builds an error response describing an exception.
+     * @return The response.
+     */
+    @Benchmark
+    public Response exceptionJsonResponse() {
+        return Responses.newErrorJsonResponse(Status.INTERNAL_SERVER_ERROR, exception);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+
+import org.forgerock.cloudfoundry.handlers.ServiceBrokerHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.encode.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures dispatching Cloud Controller requests through the broker's filters and router to the handler of their
+ * route. Each invocation uses a new root context, as the HTTP server would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceBrokerHandlerBenchmark {
+
+    private BrokerFixture broker;
+    private ServiceBrokerHandler handler;
+    private Request catalog;
+    private Request lastOperation;
+    private Request notFound;
+
+    /**
+     * Creates the broker handler and the requests it dispatches.
+     *
+     * @throws Exception If the broker components cannot be created.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        broker = new BrokerFixture();
+        handler = new ServiceBrokerHandler(broker.getServices(), broker.getAsyncOperations(),
+                BrokerFixture.BROKER_USERNAME, BrokerFixture.BROKER_PASSWORD);
+        catalog = newRequest("v2/catalog");
+        lastOperation = newRequest("v2/service_instances/instanceId/last_operation");
+        notFound = newRequest("v2/unknown");
+    }
+
+    /** Stops the broker components. */
+    @TearDown
+    public void tearDown() {
+        broker.stop();
+    }
+
+    /**
+     * Dispatches a catalog request.
+     * @return The response.
+     */
+    @Benchmark
+    public Response catalog() {
+        return handler.handle(new RootContext(), catalog).getOrThrowUninterruptibly();
+    }
+
+    /**
+     * Dispatches a last operation request, which goes through admission control and reads the broker state.
+     * @return The response.
+     */
+    @Benchmark
+    public Response lastOperation() {
+        return handler.handle(new RootContext(), lastOperation).getOrThrowUninterruptibly();
+    }
+
+    /**
+     * Dispatches a request that matches no route.
+     * @return The response.
+     */
+    @Benchmark
+    public Response notFound() {
+        return handler.handle(new RootContext(), notFound).getOrThrowUninterruptibly();
+    }
+
+    private static Request newRequest(String path) throws URISyntaxException {
+        Request request = new Request();
+        request.setMethod("GET");
+        request.setUri("http://broker.example.com/" + path);
+        String credentials = BrokerFixture.BROKER_USERNAME + ":" + BrokerFixture.BROKER_PASSWORD;
+        request.getHeaders().put("Authorization",
+                "Basic " + Base64.encode(credentials.getBytes(StandardCharsets.ISO_8859_1)));
+        return request;
+    }
+}
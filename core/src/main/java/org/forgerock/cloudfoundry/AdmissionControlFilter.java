@@ -0,0 +1,240 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.cloudfoundry.Responses.newErrorJsonResponse;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A CHF filter bounding the number of requests the broker handles at once, so that a burst of requests from the Cloud
+ * Controller is not all forwarded to OpenAM.
+ *
+ * <p>Requests beyond the limit wait in a bounded queue, and are rejected with 429 Too Many Requests when it is full.
+ * Waiting requests are shed with 503 Service Unavailable in the manner of CoDel: while the queue keeps emptying
+ * regularly they may wait for up to the queue interval, but once it has stayed non-empty for longer than that the
+ * broker is overloaded and they may only wait for up to the target delay. Both responses carry a {@code Retry-After}
+ * header.</p>
+ */
+public final class AdmissionControlFilter implements Filter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControlFilter.class);
+
+    /** The 429 status, which is not among the statuses known to CHF. */
+    private static final Status TOO_MANY_REQUESTS = Status.valueOf(429);
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long targetDelay;
+    private final long interval;
+    private final long retryAfter;
+    private final TimeService time;
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private int inFlight;
+    private long lastEmpty;
+
+    /**
+     * Constructs a new admission control filter.
+     *
+     * @param maxInFlight The maximum number of requests handled at once.
+     * @param maxQueued The maximum number of requests waiting to be handled.
+     * @param targetDelay The time requests may wait once the queue has stayed non-empty for a whole interval.
+     * @param interval The time requests may wait while the queue empties regularly.
+     * @param time The {@link TimeService} used to time waiting requests.
+     */
+    public AdmissionControlFilter(int maxInFlight, int maxQueued, Duration targetDelay, Duration interval,
+            TimeService time) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.targetDelay = targetDelay.isUnlimited() ? Long.MAX_VALUE : targetDelay.to(MILLISECONDS);
+        this.interval = interval.isUnlimited() ? Long.MAX_VALUE : interval.to(MILLISECONDS);
+        // Clients are asked to come back once the queue has had time to drain
+        this.retryAfter = this.interval == Long.MAX_VALUE
+                ? 1 : Math.max(1, (this.interval + SECONDS.toMillis(1) - 1) / SECONDS.toMillis(1));
+        this.time = time;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(Context context, Request request, Handler next) {
+        List<Waiter> expired = new ArrayList<>();
+        Waiter waiter = null;
+        boolean admitted = false;
+        synchronized (this) {
+            long now = time.now();
+            pollExpired(now, expired);
+            if (queue.isEmpty() && inFlight < maxInFlight) {
+                inFlight++;
+                admitted = true;
+            } else if (queue.size() < maxQueued) {
+                if (queue.isEmpty()) {
+                    lastEmpty = now;
+                }
+                waiter = new Waiter(context, request, next, now);
+                queue.add(waiter);
+            }
+        }
+        shed(expired);
+        if (admitted) {
+            return admit(context, request, next);
+        } else if (waiter != null) {
+            return waiter.response;
+        }
+        if (rejected.incrementAndGet() % 100 == 1) {
+            LOGGER.warn("Rejecting requests as " + maxInFlight + " are in progress and " + maxQueued
+                    + " are waiting");
+        }
+        return newResponsePromise(newRejectedResponse(TOO_MANY_REQUESTS, "Too many requests are in progress"));
+    }
+
+    /**
+     * Returns the number of requests being handled.
+     * @return The number of requests in flight.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of requests waiting to be handled.
+     * @return The queue length.
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of requests rejected because the queue was full.
+     * @return The number of requests answered with 429.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of requests shed after waiting too long in the queue.
+     * @return The number of requests answered with 503.
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    private Promise<Response, NeverThrowsException> admit(Context context, Request request, Handler next) {
+        Promise<Response, NeverThrowsException> response;
+        try {
+            response = next.handle(context, request);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        return response.thenOnResultOrException(new Runnable() {
+            @Override
+            public void run() {
+                release();
+            }
+        });
+    }
+
+    /**
+     * Hands the slot of a completed request to the next waiting request that has not waited too long, if any.
+     */
+    private void release() {
+        List<Waiter> expired = new ArrayList<>();
+        Waiter next;
+        synchronized (this) {
+            long now = time.now();
+            pollExpired(now, expired);
+            next = queue.poll();
+            if (queue.isEmpty()) {
+                lastEmpty = now;
+            }
+            if (next == null) {
+                inFlight--;
+            }
+        }
+        shed(expired);
+        if (next != null) {
+            admit(next.context, next.request, next.next).thenOnResult(next.response);
+        }
+    }
+
+    /**
+     * Removes the waiting requests that have waited for longer than currently allowed. Requests are queued in order,
+     * so only the head of the queue needs to be considered.
+     */
+    private void pollExpired(long now, List<Waiter> expired) {
+        long maxDelay = now - lastEmpty > interval ? targetDelay : interval;
+        while (!queue.isEmpty() && now - queue.peek().queuedAt > maxDelay) {
+            expired.add(queue.poll());
+        }
+    }
+
+    private void shed(List<Waiter> expired) {
+        if (expired.isEmpty()) {
+            return;
+        }
+        LOGGER.warn("Shedding " + expired.size() + " requests that waited too long to be handled");
+        shed.addAndGet(expired.size());
+        for (Waiter waiter : expired) {
+            waiter.response.handleResult(newRejectedResponse(Status.SERVICE_UNAVAILABLE,
+                    "The service broker is overloaded"));
+        }
+    }
+
+    private Response newRejectedResponse(Status status, String message) {
+        Response response = newErrorJsonResponse(status, message);
+        response.getHeaders().put("Retry-After", String.valueOf(retryAfter));
+        return response;
+    }
+
+    private static final class Waiter {
+        private final Context context;
+        private final Request request;
+        private final Handler next;
+        private final long queuedAt;
+        private final PromiseImpl<Response, NeverThrowsException> response = PromiseImpl.create();
+
+        private Waiter(Context context, Request request, Handler next, long queuedAt) {
+            this.context = context;
+            this.request = request;
+            this.next = next;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.cloudfoundry.Responses.newEmptyJsonResponse;
+import static org.forgerock.cloudfoundry.Responses.newErrorJsonResponse;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.forgerock.cloudfoundry.persistence.StateStore;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Factory;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs service instance operations asynchronously, for Cloud Controller requests made with
+ * {@code accepts_incomplete=true}, and records their state so that it can be polled through the
+ * {@code last_operation} endpoint.
+ *
+ * <p>At most a fixed number of operations run at once, so that a burst of deprovision requests is queued rather than
+ * sent to OpenAM all at once. Operations are asynchronous and hold no thread while they wait for OpenAM: each one that
+ * completes starts the next waiting one. The state of the last operation of each instance is kept in the
+ * {@link StateStore}; operations that were still running when the broker stopped are reported as failed once it
+ * restarts.</p>
+ */
+public class AsyncOperations {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncOperations.class);
+
+    /** The type of operation that provisions an instance. */
+    public static final String PROVISION = "provision";
+
+    /** The type of operation that updates an instance. */
+    public static final String UPDATE = "update";
+
+    /** The type of operation that deprovisions an instance. */
+    public static final String DEPROVISION = "deprovision";
+
+    private static final String IN_PROGRESS = "in progress";
+    private static final String SUCCEEDED = "succeeded";
+    private static final String FAILED = "failed";
+
+    private final StateStore stateStore;
+    private final int maxRunning;
+    private final int maxWaiting;
+    private final long timeout;
+    private final Deque<PendingOperation> waiting = new ArrayDeque<>();
+    private int running;
+    private boolean stopped;
+
+    /**
+     * Constructs a new AsyncOperations, whose operations have no deadline.
+     *
+     * @param stateStore The {@link StateStore} holding the state of the operations.
+     * @param maxRunning The maximum number of operations running at once.
+     * @param queueSize The maximum number of operations waiting to run.
+     */
+    public AsyncOperations(StateStore stateStore, int maxRunning, int queueSize) {
+        this(stateStore, maxRunning, queueSize, Duration.UNLIMITED);
+    }
+
+    /**
+     * Constructs a new AsyncOperations.
+     *
+     * @param stateStore The {@link StateStore} holding the state of the operations.
+     * @param maxRunning The maximum number of operations running at once.
+     * @param queueSize The maximum number of operations waiting to run.
+     * @param timeout The time allowed to each operation once it has started running.
+     */
+    public AsyncOperations(StateStore stateStore, int maxRunning, int queueSize, Duration timeout) {
+        this.stateStore = stateStore;
+        this.maxRunning = maxRunning;
+        this.maxWaiting = queueSize;
+        this.timeout = timeout.isUnlimited() ? Long.MAX_VALUE : timeout.to(MILLISECONDS);
+        failInterruptedOperations();
+    }
+
+    /**
+     * Returns the context in which an operation should run, carrying the operation's own deadline in place of the
+     * deadline of the request that started it. Must be called when the operation starts running.
+     *
+     * @param parent The {@link Context} of the request that started the operation.
+     * @return A {@link DeadlineContext}.
+     */
+    public Context newOperationContext(Context parent) {
+        return new DeadlineContext(parent, DeadlineFilter.deadlineFrom(TimeService.SYSTEM.now(), timeout));
+    }
+
+    /**
+     * Starts an operation on a service instance, unless another operation on the instance is still in progress.
+     *
+     * @param instanceId The service instance identifier.
+     * @param type The type of operation, such as {@link #DEPROVISION}.
+     * @param operation Creates the operation, whose response is successful if the operation succeeded.
+     * @return A {@link Promise} containing a 202 Accepted {@link Response} carrying the operation identifier, once
+     * the operation has been recorded.
+     */
+    public Promise<Response, NeverThrowsException> start(final String instanceId, final String type,
+            final Factory<Promise<Response, NeverThrowsException>> operation) {
+        final Operation started = new Operation(UUID.randomUUID().toString(), type, IN_PROGRESS, null);
+        final String previous;
+        Promise<Void, IOException> recorded;
+        synchronized (this) {
+            previous = stateStore.get(StateStore.Table.OPERATIONS, instanceId);
+            Operation last = Operation.decode(previous);
+            if (last != null && IN_PROGRESS.equals(last.state)) {
+                LOGGER.warn("Unable to " + type + " instance " + instanceId + ", " + last.type + " is in progress");
+                return newResultPromise(new Response(Status.valueOf(422, "Unprocessable Entity"))
+                        .setEntity(json(object(
+                                field("error", "ConcurrencyError"),
+                                field("description", "Another operation for this service instance is in progress.")
+                        ))));
+            }
+            recorded = stateStore.put(StateStore.Table.OPERATIONS, instanceId, started.encode());
+        }
+        return recorded.thenAsync(
+                new AsyncFunction<Void, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(Void value) {
+                        if (!admit(new PendingOperation(instanceId, started, operation))) {
+                            LOGGER.warn("Too many operations are waiting, rejecting " + type + " of " + instanceId);
+                            // The instance's last operation is still the one before this one
+                            if (previous == null) {
+                                stateStore.remove(StateStore.Table.OPERATIONS, instanceId);
+                            } else {
+                                stateStore.put(StateStore.Table.OPERATIONS, instanceId, previous);
+                            }
+                            Response busy = newErrorJsonResponse(Status.SERVICE_UNAVAILABLE,
+                                    "Too many operations are in progress, try again later.");
+                            busy.getHeaders().put("Retry-After", "30");
+                            return newResultPromise(busy);
+                        }
+                        return newResultPromise(new Response(Status.ACCEPTED)
+                                .setEntity(json(object(field("operation", started.id)))));
+                    }
+                }, new AsyncFunction<IOException, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(IOException exception) {
+                        return newResultPromise(newErrorJsonResponse(Status.INTERNAL_SERVER_ERROR, exception,
+                                "Unable to store the state of the broker"));
+                    }
+                });
+    }
+
+    /**
+     * Returns the state of the last operation on a service instance, in the form expected by the Cloud Controller.
+     *
+     * @param instanceId The service instance identifier.
+     * @param operationId The operation identifier returned when the operation started, or {@code null}.
+     * @return A {@link Response} carrying the state of the operation, or 410 Gone if the broker has no operation
+     * for the instance, which the Cloud Controller treats as a completed deprovision.
+     */
+    public Response getLastOperation(String instanceId, String operationId) {
+        Operation last = Operation.decode(stateStore.get(StateStore.Table.OPERATIONS, instanceId));
+        if (last == null) {
+            return newEmptyJsonResponse(Status.GONE);
+        }
+        if (operationId != null && !operationId.equals(last.id)) {
+            return newErrorJsonResponse(Status.BAD_REQUEST, "Unknown operation : " + operationId);
+        }
+        if (DEPROVISION.equals(last.type) && SUCCEEDED.equals(last.state)) {
+            // The instance no longer exists, later polls are answered with 410 Gone
+            stateStore.remove(StateStore.Table.OPERATIONS, instanceId);
+        }
+        JsonValue body = json(object(field("state", last.state)));
+        if (last.description != null) {
+            body.put("description", last.description);
+        }
+        return new Response(Status.OK).setEntity(body);
+    }
+
+    /**
+     * Stops starting operations. Those that have not completed are no longer recorded, and are reported as failed
+     * when the broker restarts; this lets the broker close the {@link StateStore} without waiting for them.
+     */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            waiting.clear();
+        }
+    }
+
+    /**
+     * Starts an operation if fewer than the maximum are running, or queues it.
+     *
+     * @return {@code false} if the queue is full, or this has been stopped.
+     */
+    private boolean admit(PendingOperation pending) {
+        synchronized (this) {
+            if (stopped) {
+                return false;
+            }
+            if (running >= maxRunning) {
+                if (waiting.size() >= maxWaiting) {
+                    return false;
+                }
+                waiting.add(pending);
+                return true;
+            }
+            running++;
+        }
+        startOperations(pending);
+        return true;
+    }
+
+    /**
+     * Starts the given operation, then each waiting one while a slot is freed by an operation that completed
+     * synchronously. Looping rather than starting the next operation from the completion handler keeps the stack from
+     * growing with the number of waiting operations.
+     */
+    private void startOperations(PendingOperation first) {
+        PendingOperation pending = first;
+        while (pending != null && run(pending)) {
+            pending = completed();
+        }
+    }
+
+    /**
+     * Runs an operation, recording its state once it completes.
+     *
+     * @return {@code true} if the operation completed before this method returned, in which case the caller must
+     * release its slot, or {@code false} if its completion handler will.
+     */
+    private boolean run(final PendingOperation pending) {
+        // Set by whichever of this method and the completion handler finishes first; the other releases the slot
+        final AtomicBoolean claimed = new AtomicBoolean();
+        Promise<Response, NeverThrowsException> response;
+        try {
+            response = pending.operation.newInstance();
+        } catch (RuntimeException e) {
+            LOGGER.error(pending.started.type + " of instance " + pending.instanceId + " failed", e);
+            record(pending.instanceId, new Operation(pending.started.id, pending.started.type, FAILED,
+                    e.getMessage()));
+            return true;
+        }
+        response.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(Response response) {
+                record(pending.instanceId, outcome(pending.instanceId, pending.started, response));
+                if (!claimed.compareAndSet(false, true)) {
+                    startOperations(completed());
+                }
+            }
+        });
+        return !claimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Hands the slot of a completed operation to the next waiting one, or releases it.
+     *
+     * @return The waiting operation to start, or {@code null} if there is none.
+     */
+    private synchronized PendingOperation completed() {
+        PendingOperation next = stopped ? null : waiting.poll();
+        if (next == null) {
+            running--;
+        }
+        return next;
+    }
+
+    private synchronized void record(String instanceId, Operation completed) {
+        // Once stopped, the store may be closed at any time
+        if (!stopped) {
+            stateStore.put(StateStore.Table.OPERATIONS, instanceId, completed.encode());
+        }
+    }
+
+    private static Operation outcome(String instanceId, Operation started, Response response) {
+        Status status = response.getStatus();
+        if (status.isSuccessful() || (DEPROVISION.equals(started.type) && status == Status.GONE)) {
+            return new Operation(started.id, started.type, SUCCEEDED, null);
+        }
+        LOGGER.warn(started.type + " of instance " + instanceId + " failed with status " + status.getCode());
+        return new Operation(started.id, started.type, FAILED, readDescription(response));
+    }
+
+    private void failInterruptedOperations() {
+        for (Map.Entry<String, String> entry : stateStore.getAll(StateStore.Table.OPERATIONS, "").entrySet()) {
+            Operation operation = Operation.decode(entry.getValue());
+            if (operation != null && IN_PROGRESS.equals(operation.state)) {
+                stateStore.put(StateStore.Table.OPERATIONS, entry.getKey(), new Operation(operation.id,
+                        operation.type, FAILED, "The operation was interrupted by a restart of the broker.").encode());
+            }
+        }
+    }
+
+    private static String readDescription(Response response) {
+        try {
+            return json(response.getEntity().getJson()).get("description").asString();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static final class PendingOperation {
+        private final String instanceId;
+        private final Operation started;
+        private final Factory<Promise<Response, NeverThrowsException>> operation;
+
+        private PendingOperation(String instanceId, Operation started,
+                Factory<Promise<Response, NeverThrowsException>> operation) {
+            this.instanceId = instanceId;
+            this.started = started;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * The state of an operation, stored as tab separated fields.
+     */
+    private static final class Operation {
+        private final String id;
+        private final String type;
+        private final String state;
+        private final String description;
+
+        private Operation(String id, String type, String state, String description) {
+            this.id = id;
+            this.type = type;
+            this.state = state;
+            this.description = description;
+        }
+
+        private String encode() {
+            String encoded = id + '\t' + type + '\t' + state;
+            return description == null ? encoded : encoded + '\t' + description.replace('\t', ' ');
+        }
+
+        private static Operation decode(String encoded) {
+            if (encoded == null) {
+                return null;
+            }
+            String[] fields = encoded.split("\t", 4);
+            if (fields.length < 3) {
+                return null;
+            }
+            return new Operation(fields[0], fields[1], fields[2], fields.length == 4 ? fields[3] : null);
+        }
+    }
+}
@@ -16,9 +16,21 @@
 
 package org.forgerock.cloudfoundry;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.cloudfoundry.Responses.newErrorJsonResponse;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
@@ -32,40 +44,214 @@ import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 
 /**
- * A CHF filter for checking the request for an Authorization header with basic authentication against a fixed username
- * and password.
+ * A CHF filter for checking the request for an Authorization header with basic authentication against the broker's
+ * credentials.
+ *
+ * <p>Several credentials may be accepted at once, so that they can be rotated without downtime. Verifying a password
+ * against a PBKDF2 hash is deliberately slow, so the SHA-256 digests of the last few Authorization headers found valid
+ * are kept, and a request presenting one of them again is accepted after comparing digests in constant time.</p>
+ *
+ * <p>Otherwise the password is only hashed for the credentials of the username presented. A password presented for
+ * an unknown username is hashed once for a decoy credential, as costly as the costliest configured, so that the time
+ * taken does not reveal which usernames exist. So that requests with wrong credentials cannot occupy every processor,
+ * only a bounded number of passwords are hashed with PBKDF2 at once. Further requests wait for their turn, and are
+ * only rejected with 429 Too Many Requests if they wait for longer than a few seconds. Passwords stored as is are
+ * verified with a single SHA-256 and never wait.</p>
  */
 public class AuthenticationFilter implements Filter {
 
-    private final String expectedAuthorizationHeader;
+    /** The number of verified Authorization headers remembered; a power of two. */
+    private static final int VERIFIED_HEADERS = 16;
+
+    /** The 429 status, which is not among the statuses known to CHF. */
+    private static final Status TOO_MANY_REQUESTS = Status.valueOf(429);
+
+    /** The time a request may wait to hash its password with PBKDF2 by default, in milliseconds. */
+    private static final long DEFAULT_VERIFICATION_WAIT = 5000;
+
+    private final Map<String, List<BrokerCredential>> credentials;
+    private final BrokerCredential decoy;
+    private final Semaphore verifications;
+    private final long verificationWait;
+    private final AtomicReferenceArray<byte[]> verifiedHeaders = new AtomicReferenceArray<>(VERIFIED_HEADERS);
+    private final AtomicInteger nextVerifiedHeader = new AtomicInteger();
+    private final AtomicLong derivations = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
 
     /**
      * Constructs a new authentication filter.
      *
      * @param brokerUsername the broker's username
-     * @param brokerPassword the broker's password
+     * @param brokerPassword the broker's password, or a PBKDF2 hash of it
      */
     public AuthenticationFilter(String brokerUsername, String brokerPassword) {
-        String usernamePassword = brokerUsername + ":" + brokerPassword;
-        expectedAuthorizationHeader = "Basic " + Base64.encode(usernamePassword.getBytes(StandardCharsets.ISO_8859_1));
+        this(Collections.singletonList(new BrokerCredential(brokerUsername, brokerPassword)));
+    }
+
+    /**
+     * Constructs a new authentication filter accepting any of several credentials, which hashes as many passwords
+     * with PBKDF2 at once as there are processors.
+     *
+     * @param credentials the credentials accepted
+     * @throws IllegalArgumentException if there are no credentials
+     */
+    public AuthenticationFilter(List<BrokerCredential> credentials) {
+        this(credentials, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new authentication filter accepting any of several credentials.
+     *
+     * @param credentials the credentials accepted
+     * @param maxVerifications the maximum number of passwords hashed with PBKDF2 at once
+     * @throws IllegalArgumentException if there are no credentials, or the maximum is not positive
+     */
+    public AuthenticationFilter(List<BrokerCredential> credentials, int maxVerifications) {
+        this(credentials, newVerificationPermits(maxVerifications), DEFAULT_VERIFICATION_WAIT);
+    }
+
+    /**
+     * Constructs a new authentication filter which hashes a password with PBKDF2 only when it can take one of the
+     * given permits.
+     *
+     * @param credentials the credentials accepted
+     * @param verifications the permits to hash passwords with PBKDF2
+     * @param verificationWait the time to wait for a permit, in milliseconds
+     */
+    AuthenticationFilter(List<BrokerCredential> credentials, Semaphore verifications, long verificationWait) {
+        if (credentials.isEmpty()) {
+            throw new IllegalArgumentException("At least one broker credential is required");
+        }
+        Map<String, List<BrokerCredential>> byUsername = new HashMap<>();
+        BrokerCredential costliest = credentials.get(0);
+        for (BrokerCredential credential : credentials) {
+            List<BrokerCredential> sameUsername = byUsername.get(credential.getUsername());
+            if (sameUsername == null) {
+                sameUsername = new ArrayList<>();
+                byUsername.put(credential.getUsername(), sameUsername);
+            }
+            sameUsername.add(credential);
+            if (credential.getIterations() > costliest.getIterations()) {
+                costliest = credential;
+            }
+        }
+        this.credentials = byUsername;
+        this.decoy = costliest.decoy();
+        this.verifications = verifications;
+        this.verificationWait = verificationWait;
     }
 
     @Override
     public Promise<Response, NeverThrowsException> filter(Context context, Request request, Handler next) {
-        if (isAuthenticated(request)) {
+        Header header = request.getHeaders().get("Authorization");
+        if (header == null || header.getValues().size() > 1) {
+            return newResponsePromise(new Response(Status.UNAUTHORIZED));
+        }
+        String value = header.getFirstValue();
+        byte[] digest = BrokerCredential.sha256(value.getBytes(StandardCharsets.ISO_8859_1));
+        if (isVerified(digest)) {
             return next.handle(context, request);
         }
-        return newResponsePromise(new Response(Status.UNAUTHORIZED));
+        String[] usernamePassword = parseBasic(value);
+        if (usernamePassword == null) {
+            return newResponsePromise(new Response(Status.UNAUTHORIZED));
+        }
+        List<BrokerCredential> candidates = credentials.get(usernamePassword[0]);
+        // Passwords presented for unknown usernames are hashed all the same
+        boolean known = candidates != null;
+        if (!known) {
+            candidates = Collections.singletonList(decoy);
+        }
+        boolean slow = false;
+        for (BrokerCredential candidate : candidates) {
+            slow |= candidate.getIterations() > 0;
+        }
+        if (slow && !acquireVerification()) {
+            throttled.incrementAndGet();
+            Response response = newErrorJsonResponse(TOO_MANY_REQUESTS, "Too many credentials are being verified");
+            response.getHeaders().put("Retry-After", "1");
+            return newResponsePromise(response);
+        }
+        boolean verified;
+        try {
+            verified = matches(candidates, usernamePassword[1]) & known;
+        } finally {
+            if (slow) {
+                verifications.release();
+            }
+        }
+        if (!verified) {
+            return newResponsePromise(new Response(Status.UNAUTHORIZED));
+        }
+        verifiedHeaders.set(nextVerifiedHeader.getAndIncrement() & (VERIFIED_HEADERS - 1), digest);
+        return next.handle(context, request);
     }
 
-    private boolean isAuthenticated(Request request) {
-        Header header = request.getHeaders().get("Authorization");
-        if (header == null) {
-            return false;
+    /**
+     * Returns the number of times a presented password has been hashed to compare it with a credential.
+     * @return The number of password hashes computed.
+     */
+    public long getDerivations() {
+        return derivations.get();
+    }
+
+    /**
+     * Returns the number of requests rejected because they waited too long to hash their password.
+     * @return The number of requests answered with 429.
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    private static Semaphore newVerificationPermits(int maxVerifications) {
+        if (maxVerifications < 1) {
+            throw new IllegalArgumentException("The maximum number of passwords verified at once must be positive");
         }
-        if (header.getValues().size() > 1) {
+        return new Semaphore(maxVerifications);
+    }
+
+    private boolean isVerified(byte[] digest) {
+        for (int i = 0; i < VERIFIED_HEADERS; i++) {
+            byte[] verified = verifiedHeaders.get(i);
+            if (verified != null && MessageDigest.isEqual(verified, digest)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean acquireVerification() {
+        try {
+            return verifications.tryAcquire(verificationWait, MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
-        return header.getFirstValue().equals(expectedAuthorizationHeader);
+    }
+
+    private boolean matches(List<BrokerCredential> candidates, String password) {
+        boolean matches = false;
+        // Every credential of the username is checked so that the time taken does not reveal which one matched
+        for (BrokerCredential credential : candidates) {
+            derivations.incrementAndGet();
+            matches |= credential.matchesPassword(password);
+        }
+        return matches;
+    }
+
+    private static String[] parseBasic(String authorization) {
+        if (!authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+        byte[] decoded = Base64.decode(authorization.substring(6).trim());
+        if (decoded == null) {
+            return null;
+        }
+        String usernamePassword = new String(decoded, StandardCharsets.ISO_8859_1);
+        int separator = usernamePassword.indexOf(':');
+        if (separator < 0) {
+            return null;
+        }
+        return new String[] { usernamePassword.substring(0, separator), usernamePassword.substring(separator + 1) };
     }
 }
@@ -0,0 +1,474 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An in-memory index of the bindings the broker knows about, keyed by service instance and binding GUIDs.
+ *
+ * <p>GUIDs are held as pairs of {@code long}s in parallel primitive arrays rather than as {@code String}s, so that an
+ * index of a million bindings takes a few tens of megabytes and adding a binding allocates nothing once the arrays
+ * have grown. Bindings live in an open-addressing table; the bindings of each instance are also chained together so
+ * that they can be enumerated in time proportional to their number. Only GUIDs in canonical (lower case, hyphenated)
+ * form are indexed, since the original string has to be reconstructed exactly from the stored bits.</p>
+ *
+ * <p>The index only knows the bindings it has been told about. Until {@link #markComplete()} is called, for instance
+ * once it has been loaded from OpenAM, the absence of a binding means nothing. Once a binding that cannot be indexed
+ * has been added, the index is never complete again until it is cleared.</p>
+ */
+public final class BindingIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /** Marks a binding slot that has never been used. */
+    private static final int FREE = -1;
+    /** Marks a binding slot whose binding has been removed, so that probing continues past it. */
+    private static final int REMOVED = -2;
+    /** The end of an instance's chain of bindings. */
+    private static final int NONE = -1;
+
+    // Binding table, indexed by slot: the binding GUID, the ordinal of its instance (or FREE/REMOVED), and the
+    // neighbouring slots in the instance's chain.
+    private long[] bindingHigh;
+    private long[] bindingLow;
+    private int[] bindingInstance;
+    private int[] nextInInstance;
+    private int[] previousInInstance;
+    private int bindingCount;
+    private int removedBindings;
+
+    // Instances, indexed by ordinal: the instance GUID, the first slot of its chain and its number of bindings. The
+    // ordinals of removed instances are reused, linked through instanceHead.
+    private long[] instanceHigh;
+    private long[] instanceLow;
+    private int[] instanceHead;
+    private int[] instanceSize;
+    private int instanceOrdinals;
+    private int freeOrdinal = NONE;
+
+    // Instance lookup table, indexed by slot: ordinal + 1, 0 when free, or -1 when removed.
+    private int[] instanceTable;
+    private int instanceCount;
+    private int removedInstances;
+
+    private volatile boolean complete;
+    private volatile boolean missingBindings;
+
+    /**
+     * Constructs an empty, incomplete index.
+     */
+    public BindingIndex() {
+        clear();
+    }
+
+    /**
+     * Indicates whether a service instance or binding identifier can be held in the index.
+     *
+     * @param id The identifier.
+     * @return {@code true} if the identifier is a GUID in canonical form.
+     */
+    public static boolean isIndexable(String id) {
+        if (id == null || id.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether the index holds every binding that exists, so that a binding missing from it does not exist.
+     *
+     * @return {@code true} if the index is complete.
+     */
+    public boolean isComplete() {
+        return complete && !missingBindings;
+    }
+
+    /**
+     * Records that the index now holds every binding that exists.
+     */
+    public void markComplete() {
+        complete = true;
+    }
+
+    /**
+     * Adds a binding to the index. A binding whose identifiers cannot be indexed is not added, and makes the index
+     * incomplete until it is cleared.
+     *
+     * @param instanceId The service instance identifier.
+     * @param bindingId The binding identifier.
+     * @return {@code true} if the binding was added, {@code false} if it was already present or cannot be indexed.
+     */
+    public synchronized boolean add(String instanceId, String bindingId) {
+        if (!isIndexable(instanceId) || !isIndexable(bindingId)) {
+            missingBindings = true;
+            return false;
+        }
+        long high = mostSignificantBits(bindingId);
+        long low = leastSignificantBits(bindingId);
+        int ordinal = findInstance(mostSignificantBits(instanceId), leastSignificantBits(instanceId));
+        if (ordinal == NONE) {
+            ordinal = addInstance(mostSignificantBits(instanceId), leastSignificantBits(instanceId));
+        } else if (findBinding(ordinal, high, low) != NONE) {
+            return false;
+        }
+        if (bindingCount + removedBindings + 1 > bindingInstance.length * LOAD_FACTOR) {
+            resizeBindings();
+        }
+        int slot = insertBinding(ordinal, high, low);
+        link(ordinal, slot);
+        bindingCount++;
+        return true;
+    }
+
+    /**
+     * Removes a binding from the index.
+     *
+     * @param instanceId The service instance identifier.
+     * @param bindingId The binding identifier.
+     * @return {@code true} if the binding was present.
+     */
+    public synchronized boolean remove(String instanceId, String bindingId) {
+        if (!isIndexable(instanceId) || !isIndexable(bindingId)) {
+            return false;
+        }
+        int ordinal = findInstance(mostSignificantBits(instanceId), leastSignificantBits(instanceId));
+        if (ordinal == NONE) {
+            return false;
+        }
+        int slot = findBinding(ordinal, mostSignificantBits(bindingId), leastSignificantBits(bindingId));
+        if (slot == NONE) {
+            return false;
+        }
+        unlink(ordinal, slot);
+        bindingInstance[slot] = REMOVED;
+        bindingCount--;
+        removedBindings++;
+        if (instanceSize[ordinal] == 0) {
+            removeInstance(ordinal);
+        }
+        return true;
+    }
+
+    /**
+     * Removes every binding of a service instance from the index.
+     *
+     * @param instanceId The service instance identifier.
+     * @return The number of bindings removed.
+     */
+    public synchronized int removeInstance(String instanceId) {
+        if (!isIndexable(instanceId)) {
+            return 0;
+        }
+        int ordinal = findInstance(mostSignificantBits(instanceId), leastSignificantBits(instanceId));
+        if (ordinal == NONE) {
+            return 0;
+        }
+        int removed = instanceSize[ordinal];
+        for (int slot = instanceHead[ordinal]; slot != NONE; slot = nextInInstance[slot]) {
+            bindingInstance[slot] = REMOVED;
+        }
+        bindingCount -= removed;
+        removedBindings += removed;
+        removeInstance(ordinal);
+        return removed;
+    }
+
+    /**
+     * Indicates whether the index holds a binding.
+     *
+     * @param instanceId The service instance identifier.
+     * @param bindingId The binding identifier.
+     * @return {@code true} if the binding is present.
+     */
+    public synchronized boolean contains(String instanceId, String bindingId) {
+        if (!isIndexable(instanceId) || !isIndexable(bindingId)) {
+            return false;
+        }
+        int ordinal = findInstance(mostSignificantBits(instanceId), leastSignificantBits(instanceId));
+        return ordinal != NONE
+                && findBinding(ordinal, mostSignificantBits(bindingId), leastSignificantBits(bindingId)) != NONE;
+    }
+
+    /**
+     * Returns the identifiers of the bindings of a service instance.
+     *
+     * @param instanceId The service instance identifier.
+     * @return The binding identifiers, in no particular order.
+     */
+    public synchronized List<String> getBindings(String instanceId) {
+        if (!isIndexable(instanceId)) {
+            return Collections.emptyList();
+        }
+        int ordinal = findInstance(mostSignificantBits(instanceId), leastSignificantBits(instanceId));
+        if (ordinal == NONE) {
+            return Collections.emptyList();
+        }
+        List<String> bindings = new ArrayList<>(instanceSize[ordinal]);
+        for (int slot = instanceHead[ordinal]; slot != NONE; slot = nextInInstance[slot]) {
+            bindings.add(toString(bindingHigh[slot], bindingLow[slot]));
+        }
+        return bindings;
+    }
+
+    /**
+     * Returns the number of bindings in the index.
+     * @return The number of bindings.
+     */
+    public synchronized int size() {
+        return bindingCount;
+    }
+
+    /**
+     * Removes every binding from the index and makes it incomplete.
+     */
+    public synchronized void clear() {
+        complete = false;
+        missingBindings = false;
+        bindingHigh = new long[INITIAL_CAPACITY];
+        bindingLow = new long[INITIAL_CAPACITY];
+        bindingInstance = new int[INITIAL_CAPACITY];
+        Arrays.fill(bindingInstance, FREE);
+        nextInInstance = new int[INITIAL_CAPACITY];
+        previousInInstance = new int[INITIAL_CAPACITY];
+        bindingCount = 0;
+        removedBindings = 0;
+        instanceHigh = new long[INITIAL_CAPACITY];
+        instanceLow = new long[INITIAL_CAPACITY];
+        instanceHead = new int[INITIAL_CAPACITY];
+        instanceSize = new int[INITIAL_CAPACITY];
+        instanceOrdinals = 0;
+        freeOrdinal = NONE;
+        instanceTable = new int[INITIAL_CAPACITY];
+        instanceCount = 0;
+        removedInstances = 0;
+    }
+
+    private int findBinding(int ordinal, long high, long low) {
+        int mask = bindingInstance.length - 1;
+        for (int slot = hash(high, low, ordinal) & mask;; slot = (slot + 1) & mask) {
+            int instance = bindingInstance[slot];
+            if (instance == FREE) {
+                return NONE;
+            }
+            if (instance == ordinal && bindingHigh[slot] == high && bindingLow[slot] == low) {
+                return slot;
+            }
+        }
+    }
+
+    private int insertBinding(int ordinal, long high, long low) {
+        int mask = bindingInstance.length - 1;
+        int slot = hash(high, low, ordinal) & mask;
+        while (bindingInstance[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (bindingInstance[slot] == REMOVED) {
+            removedBindings--;
+        }
+        bindingHigh[slot] = high;
+        bindingLow[slot] = low;
+        bindingInstance[slot] = ordinal;
+        return slot;
+    }
+
+    private void link(int ordinal, int slot) {
+        int head = instanceHead[ordinal];
+        nextInInstance[slot] = head;
+        previousInInstance[slot] = NONE;
+        if (head != NONE) {
+            previousInInstance[head] = slot;
+        }
+        instanceHead[ordinal] = slot;
+        instanceSize[ordinal]++;
+    }
+
+    private void unlink(int ordinal, int slot) {
+        int next = nextInInstance[slot];
+        int previous = previousInInstance[slot];
+        if (previous == NONE) {
+            instanceHead[ordinal] = next;
+        } else {
+            nextInInstance[previous] = next;
+        }
+        if (next != NONE) {
+            previousInInstance[next] = previous;
+        }
+        instanceSize[ordinal]--;
+    }
+
+    /**
+     * Rebuilds the binding table, doubling its capacity unless most of the used slots only hold removed bindings.
+     * The chains of every instance are rebuilt as bindings are reinserted.
+     */
+    private void resizeBindings() {
+        long[] oldHigh = bindingHigh;
+        long[] oldLow = bindingLow;
+        int[] oldInstance = bindingInstance;
+        int capacity = bindingCount + 1 > oldInstance.length * LOAD_FACTOR / 2
+                ? oldInstance.length * 2 : oldInstance.length;
+        bindingHigh = new long[capacity];
+        bindingLow = new long[capacity];
+        bindingInstance = new int[capacity];
+        Arrays.fill(bindingInstance, FREE);
+        nextInInstance = new int[capacity];
+        previousInInstance = new int[capacity];
+        removedBindings = 0;
+        for (int ordinal = 0; ordinal < instanceOrdinals; ordinal++) {
+            if (instanceSize[ordinal] >= 0) {
+                instanceHead[ordinal] = NONE;
+                instanceSize[ordinal] = 0;
+            }
+        }
+        for (int oldSlot = 0; oldSlot < oldInstance.length; oldSlot++) {
+            int ordinal = oldInstance[oldSlot];
+            if (ordinal >= 0) {
+                link(ordinal, insertBinding(ordinal, oldHigh[oldSlot], oldLow[oldSlot]));
+            }
+        }
+    }
+
+    private int findInstance(long high, long low) {
+        int mask = instanceTable.length - 1;
+        for (int slot = hash(high, low, 0) & mask;; slot = (slot + 1) & mask) {
+            int entry = instanceTable[slot];
+            if (entry == 0) {
+                return NONE;
+            }
+            if (entry > 0 && instanceHigh[entry - 1] == high && instanceLow[entry - 1] == low) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private int addInstance(long high, long low) {
+        int ordinal;
+        if (freeOrdinal != NONE) {
+            ordinal = freeOrdinal;
+            freeOrdinal = instanceHead[ordinal];
+        } else {
+            if (instanceOrdinals == instanceHigh.length) {
+                int capacity = instanceOrdinals * 2;
+                instanceHigh = Arrays.copyOf(instanceHigh, capacity);
+                instanceLow = Arrays.copyOf(instanceLow, capacity);
+                instanceHead = Arrays.copyOf(instanceHead, capacity);
+                instanceSize = Arrays.copyOf(instanceSize, capacity);
+            }
+            ordinal = instanceOrdinals++;
+        }
+        instanceHigh[ordinal] = high;
+        instanceLow[ordinal] = low;
+        instanceHead[ordinal] = NONE;
+        instanceSize[ordinal] = 0;
+        if (instanceCount + removedInstances + 1 > instanceTable.length * LOAD_FACTOR) {
+            int[] oldTable = instanceTable;
+            instanceTable = new int[instanceCount + 1 > oldTable.length * LOAD_FACTOR / 2
+                    ? oldTable.length * 2 : oldTable.length];
+            removedInstances = 0;
+            for (int entry : oldTable) {
+                if (entry > 0) {
+                    insertInstance(entry - 1);
+                }
+            }
+        }
+        insertInstance(ordinal);
+        instanceCount++;
+        return ordinal;
+    }
+
+    private void insertInstance(int ordinal) {
+        int mask = instanceTable.length - 1;
+        int slot = hash(instanceHigh[ordinal], instanceLow[ordinal], 0) & mask;
+        while (instanceTable[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (instanceTable[slot] < 0) {
+            removedInstances--;
+        }
+        instanceTable[slot] = ordinal + 1;
+    }
+
+    private void removeInstance(int ordinal) {
+        int mask = instanceTable.length - 1;
+        int slot = hash(instanceHigh[ordinal], instanceLow[ordinal], 0) & mask;
+        while (instanceTable[slot] != ordinal + 1) {
+            slot = (slot + 1) & mask;
+        }
+        instanceTable[slot] = -1;
+        instanceCount--;
+        removedInstances++;
+        instanceSize[ordinal] = -1;
+        instanceHead[ordinal] = freeOrdinal;
+        freeOrdinal = ordinal;
+    }
+
+    private static int hash(long high, long low, int ordinal) {
+        long h = (high ^ Long.rotateLeft(low, 32) ^ ordinal) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long mostSignificantBits(String id) {
+        return hex(id, 0, 8) << 32 | hex(id, 9, 13) << 16 | hex(id, 14, 18);
+    }
+
+    private static long leastSignificantBits(String id) {
+        return hex(id, 19, 23) << 48 | hex(id, 24, 36);
+    }
+
+    private static long hex(String id, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value << 4 | Character.digit(id.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static String toString(long high, long low) {
+        char[] chars = new char[36];
+        hex(chars, 0, 8, high >>> 32);
+        chars[8] = '-';
+        hex(chars, 9, 13, high >>> 16);
+        chars[13] = '-';
+        hex(chars, 14, 18, high);
+        chars[18] = '-';
+        hex(chars, 19, 23, low >>> 48);
+        chars[23] = '-';
+        hex(chars, 24, 36, low);
+        return new String(chars);
+    }
+
+    private static void hex(char[] chars, int start, int end, long value) {
+        for (int i = end - 1; i >= start; i--) {
+            chars[i] = Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.forgerock.util.encode.Base64;
+
+/**
+ * A username and secret with which the Cloud Controller may authenticate to the broker.
+ *
+ * <p>The secret is either the password itself or, so that the password need not be stored, a salted PBKDF2 hash of it
+ * in the form {@code {PBKDF2}iterations:salt:hash} (HMAC-SHA1) or {@code {PBKDF2-SHA256}iterations:salt:hash}, with
+ * the salt and hash encoded in base 64. Passwords are always compared in constant time.</p>
+ */
+public final class BrokerCredential {
+
+    /** The number of iterations of the hashes created by {@link #hash(String)}. */
+    public static final int DEFAULT_ITERATIONS = 100000;
+
+    private static final String PBKDF2 = "{PBKDF2}";
+    private static final String PBKDF2_SHA256 = "{PBKDF2-SHA256}";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private final String username;
+    private final String algorithm;
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    /**
+     * Constructs a new credential.
+     *
+     * @param username The username.
+     * @param secret The password, or a PBKDF2 hash of it.
+     * @throws IllegalArgumentException If the secret looks like a hash but cannot be parsed, or its algorithm is not
+     * supported by the JVM.
+     */
+    public BrokerCredential(String username, String secret) {
+        this.username = username;
+        String scheme = secret.startsWith(PBKDF2) ? PBKDF2 : secret.startsWith(PBKDF2_SHA256) ? PBKDF2_SHA256 : null;
+        if (scheme == null) {
+            this.algorithm = null;
+            this.iterations = 0;
+            this.salt = null;
+            this.hash = sha256(secret.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        String[] parts = secret.substring(scheme.length()).split(":");
+        byte[] decodedSalt = parts.length == 3 ? Base64.decode(parts[1]) : null;
+        byte[] decodedHash = parts.length == 3 ? Base64.decode(parts[2]) : null;
+        if (decodedSalt == null || decodedHash == null || decodedHash.length == 0
+                || !parts[0].matches("[1-9]\\d{0,8}")) {
+            throw new IllegalArgumentException("Password hash of " + username + " is not of the form "
+                    + scheme + "iterations:salt:hash");
+        }
+        this.algorithm = scheme.equals(PBKDF2) ? "PBKDF2WithHmacSHA1" : "PBKDF2WithHmacSHA256";
+        this.iterations = Integer.parseInt(parts[0]);
+        this.salt = decodedSalt;
+        this.hash = decodedHash;
+        try {
+            SecretKeyFactory.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Password hash of " + username + " uses unsupported " + algorithm, e);
+        }
+    }
+
+    private BrokerCredential(String username, String algorithm, int iterations, byte[] salt, byte[] hash) {
+        this.username = username;
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * Returns the username.
+     * @return The username.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Indicates whether a password matches this credential, hashing it once.
+     *
+     * @param password The password presented.
+     * @return {@code true} if the password matches.
+     */
+    public boolean matchesPassword(String password) {
+        byte[] presented;
+        if (algorithm == null) {
+            presented = sha256(password.getBytes(StandardCharsets.UTF_8));
+        } else if (password.isEmpty()) {
+            // PBKDF2 cannot use an empty password as its HMAC key
+            presented = new byte[hash.length];
+        } else {
+            presented = pbkdf2(algorithm, password, salt, iterations, hash.length * 8);
+        }
+        return MessageDigest.isEqual(presented, hash);
+    }
+
+    /**
+     * Returns a credential hashed in the same way as this one, but with a random salt and hash, against which
+     * passwords presented for unknown usernames can be checked so that they take as long as those of known ones.
+     *
+     * @return A credential that no password is expected to match.
+     */
+    BrokerCredential decoy() {
+        SecureRandom random = new SecureRandom();
+        byte[] decoyHash = new byte[hash.length];
+        random.nextBytes(decoyHash);
+        byte[] decoySalt = null;
+        if (salt != null) {
+            decoySalt = new byte[salt.length];
+            random.nextBytes(decoySalt);
+        }
+        return new BrokerCredential("", algorithm, iterations, decoySalt, decoyHash);
+    }
+
+    /**
+     * Returns the number of iterations of the hash, which is 0 for a password stored as is.
+     * @return The number of iterations.
+     */
+    int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Hashes a password with a random salt and {@link #DEFAULT_ITERATIONS} iterations of PBKDF2 with HMAC-SHA1, the
+     * variant every supported JVM provides.
+     *
+     * @param password The password.
+     * @return A secret that can be configured in place of the password.
+     */
+    public static String hash(String password) {
+        return hash(password, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Hashes a password with a random salt and the given number of iterations of PBKDF2 with HMAC-SHA1.
+     *
+     * @param password The password.
+     * @param iterations The number of iterations.
+     * @return A secret that can be configured in place of the password.
+     */
+    public static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        byte[] hash = pbkdf2("PBKDF2WithHmacSHA1", password, salt, iterations, HASH_LENGTH * 8);
+        return PBKDF2 + iterations + ":" + Base64.encode(salt) + ":" + Base64.encode(hash);
+    }
+
+    private static byte[] pbkdf2(String algorithm, String password, byte[] salt, int iterations, int keyLength) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("Unable to hash password with " + algorithm, e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    static byte[] sha256(byte[] value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
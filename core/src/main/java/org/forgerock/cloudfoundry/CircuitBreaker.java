@@ -0,0 +1,221 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.cloudfoundry.Responses.newErrorJsonResponse;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to OpenAM while most of them fail or are slow, so that callers are answered immediately
+ * rather than each waiting for OpenAM to time out.
+ *
+ * <p>While closed, the breaker records the outcome of the last calls in a sliding window. Once the window is full and
+ * the proportion of failed or slow calls in it reaches its threshold, the breaker opens and rejects every call for a
+ * while. It is then half-open: a single trial call is let through, and closes the breaker if it succeeds promptly or
+ * opens it again otherwise.</p>
+ */
+public final class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    /** The states of a circuit breaker. */
+    public enum State {
+        /** Calls are let through and their outcome recorded. */
+        CLOSED,
+        /** Calls are rejected. */
+        OPEN,
+        /** A single trial call is let through to decide whether to close the breaker. */
+        HALF_OPEN
+    }
+
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallDuration;
+    private final long openDuration;
+    private final TimeService time;
+    private final byte[] window;
+    private final AtomicLongArray transitions = new AtomicLongArray(State.values().length);
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+    private State state = State.CLOSED;
+    private long openUntil;
+    private boolean trialInFlight;
+
+    /**
+     * Constructs a new closed circuit breaker.
+     *
+     * @param windowSize The number of calls whose outcome is considered.
+     * @param failureRateThreshold The percentage of failed calls in the window that opens the breaker.
+     * @param slowCallRateThreshold The percentage of slow calls in the window that opens the breaker.
+     * @param slowCallDuration The duration from which a call is slow.
+     * @param openDuration The time during which calls are rejected once the breaker has opened.
+     * @param time The {@link TimeService} used to time calls.
+     */
+    public CircuitBreaker(int windowSize, int failureRateThreshold, int slowCallRateThreshold,
+            Duration slowCallDuration, Duration openDuration, TimeService time) {
+        this.window = new byte[windowSize];
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = slowCallDuration.isUnlimited() ? Long.MAX_VALUE : slowCallDuration.to(MILLISECONDS);
+        this.openDuration = openDuration.to(MILLISECONDS);
+        this.time = time;
+    }
+
+    /**
+     * Asks to make a call.
+     *
+     * @return A {@link Permit} to release once the call has completed, or {@code null} if the call must not be made.
+     */
+    public synchronized Permit acquire() {
+        if (state == State.OPEN) {
+            if (time.now() < openUntil) {
+                return null;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                return null;
+            }
+            trialInFlight = true;
+            return new Permit(true, time.now());
+        }
+        return new Permit(false, time.now());
+    }
+
+    /**
+     * Returns the response to give to a call that has been rejected.
+     *
+     * @return A 503 Service Unavailable {@link Response} with a {@code Retry-After} header.
+     */
+    public Response newRejectedResponse() {
+        Response response = newErrorJsonResponse(Status.SERVICE_UNAVAILABLE, "OpenAM is unavailable");
+        response.getHeaders().put("Retry-After", String.valueOf(getRetryAfter()));
+        return response;
+    }
+
+    /**
+     * Returns the current state of the breaker.
+     * @return The state.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of times the breaker has entered a state.
+     *
+     * @param state The state entered.
+     * @return The number of transitions to the state.
+     */
+    public long getTransitionCount(State state) {
+        return transitions.get(state.ordinal());
+    }
+
+    private synchronized long getRetryAfter() {
+        long remaining = state == State.OPEN ? openUntil - time.now() : 0;
+        return Math.max(1, (remaining + SECONDS.toMillis(1) - 1) / SECONDS.toMillis(1));
+    }
+
+    private synchronized void record(boolean trial, boolean failed, boolean slow) {
+        if (trial) {
+            trialInFlight = false;
+            if (failed || slow) {
+                open();
+            } else {
+                close();
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            // The call started before the breaker opened
+            return;
+        }
+        if (recorded == window.length) {
+            failures -= window[next] & FAILED;
+            slowCalls -= (window[next] & SLOW) >> 1;
+        } else {
+            recorded++;
+        }
+        window[next] = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+        failures += failed ? 1 : 0;
+        slowCalls += slow ? 1 : 0;
+        next = (next + 1) % window.length;
+        if (recorded == window.length && (failures * 100L >= (long) failureRateThreshold * window.length
+                || slowCalls * 100L >= (long) slowCallRateThreshold * window.length)) {
+            LOGGER.warn("Opening the OpenAM circuit breaker: " + failures + " failed and " + slowCalls
+                    + " slow calls out of the last " + window.length);
+            open();
+        }
+    }
+
+    private void open() {
+        openUntil = time.now() + openDuration;
+        transitionTo(State.OPEN);
+    }
+
+    private void close() {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+        LOGGER.info("Closing the OpenAM circuit breaker");
+        transitionTo(State.CLOSED);
+    }
+
+    private void transitionTo(State newState) {
+        state = newState;
+        transitions.incrementAndGet(newState.ordinal());
+    }
+
+    /**
+     * The permission to make a single call, which records its outcome once released.
+     */
+    public final class Permit {
+        private final boolean trial;
+        private final long startedAt;
+
+        private Permit(boolean trial, long startedAt) {
+            this.trial = trial;
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Records the outcome of the call.
+         *
+         * @param failed Whether the call failed.
+         */
+        public void release(boolean failed) {
+            record(trial, failed, time.now() - startedAt >= slowCallDuration);
+        }
+    }
+}
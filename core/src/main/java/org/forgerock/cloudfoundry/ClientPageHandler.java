@@ -0,0 +1,40 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import java.util.List;
+
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Receives the pages of OAuth2 clients returned by a paged query, as they arrive from OpenAM.
+ *
+ * @see OpenAMClient#listClients(Context, String, ClientPageHandler)
+ */
+public interface ClientPageHandler {
+
+    /**
+     * Handles a page of clients. Pages are handled one at a time and in order; the page after next is only requested
+     * once the returned promise has completed, so the number of pages held in memory stays bounded.
+     *
+     * @param usernames The usernames of the clients in the page.
+     * @return A {@link Promise} completed once the page has been handled.
+     */
+    Promise<Void, NeverThrowsException> handlePage(List<String> usernames);
+}
@@ -16,26 +16,182 @@
 
 package org.forgerock.cloudfoundry;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.util.time.Duration.duration;
+
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.forgerock.guava.common.collect.Lists;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.util.Option;
+import org.forgerock.util.Options;
+import org.forgerock.util.time.Duration;
 
 /**
  * An immutable container for the configuration of the broker.
  */
 public final class Configuration {
 
+    /**
+     * The maximum idle time of the OpenAM sessions used by the broker. Cached SSO tokens are discarded before they
+     * remain unused for longer than this, so it should match the OpenAM session service configuration.
+     */
+    public static final Option<Duration> OPENAM_SESSION_MAX_IDLE_TIME = Option.of(Duration.class,
+            duration(30, MINUTES));
+
+    /**
+     * The maximum lifetime of the OpenAM sessions used by the broker. Cached SSO tokens are discarded before they
+     * reach this age, so it should match the OpenAM session service configuration.
+     */
+    public static final Option<Duration> OPENAM_SESSION_MAX_TIME = Option.of(Duration.class, duration(120, MINUTES));
+
+    /**
+     * Further OpenAM usernames and their passwords, in addition to {@code OPENAM_USERNAME}. Requests to OpenAM are
+     * spread across one session per identity, so that a single session does not become a bottleneck.
+     */
+    public static final Option<Map<String, String>> OPENAM_ADDITIONAL_CREDENTIALS =
+            Option.withDefault(Collections.<String, String>emptyMap());
+
+    /**
+     * Further credentials the Cloud Controller may use, in addition to {@code SECURITY_USER_NAME}, so that they can be
+     * rotated without downtime.
+     */
+    public static final Option<List<BrokerCredential>> BROKER_ADDITIONAL_CREDENTIALS =
+            Option.withDefault(Collections.<BrokerCredential>emptyList());
+
+    /** The maximum number of connections the broker opens to OpenAM. */
+    public static final Option<Integer> OPENAM_MAX_CONNECTIONS = Option.of(Integer.class,
+            HttpClientHandler.OPTION_MAX_CONNECTIONS.getDefaultValue());
+
+    /** Whether connections to OpenAM are kept alive and reused between requests. */
+    public static final Option<Boolean> OPENAM_KEEP_ALIVE = Option.of(Boolean.class,
+            HttpClientHandler.OPTION_REUSE_CONNECTIONS.getDefaultValue());
+
+    /** The time allowed to establish a connection to OpenAM. */
+    public static final Option<Duration> OPENAM_CONNECT_TIMEOUT = Option.of(Duration.class,
+            HttpClientHandler.OPTION_CONNECT_TIMEOUT.getDefaultValue());
+
+    /**
+     * The time allowed between two packets of an OpenAM response. The OpenAM client never waits longer than
+     * {@link #BROKER_REQUEST_TIMEOUT}, as an abandoned call keeps its connection until it times out.
+     */
+    public static final Option<Duration> OPENAM_SOCKET_TIMEOUT = Option.of(Duration.class,
+            HttpClientHandler.OPTION_SO_TIMEOUT.getDefaultValue());
+
+    /** The number of I/O reactor threads of the OpenAM HTTP client, or {@code null} for the client's default. */
+    public static final Option<Integer> OPENAM_CLIENT_WORKER_THREADS = Option.of(Integer.class, null);
+
+    /** The number of clients requested per page when enumerating the clients of a service instance. */
+    public static final Option<Integer> OPENAM_QUERY_PAGE_SIZE = Option.withDefault(100);
+
+    /** The maximum number of OAuth2 clients deleted concurrently when deprovisioning a service instance. */
+    public static final Option<Integer> OPENAM_MAX_DELETIONS_IN_FLIGHT = Option.withDefault(8);
+
+    /**
+     * Whether the broker loads its {@link BindingIndex} from OpenAM when it starts and then trusts it to answer unbind
+     * and deprovision requests without querying OpenAM. Only safe when a single broker instance creates bindings.
+     */
+    public static final Option<Boolean> BINDING_INDEX_ENABLED = Option.withDefault(false);
+
+    /**
+     * The directory in which the broker keeps its state so that it survives restarts, or {@code null} to only keep it
+     * in memory.
+     */
+    public static final Option<String> STATE_DIRECTORY = Option.of(String.class, null);
+
+    /** The interval between snapshots of the broker state, after which older log files are deleted. */
+    public static final Option<Duration> STATE_SNAPSHOT_INTERVAL = Option.of(Duration.class, duration(10, MINUTES));
+
+    /** The maximum number of asynchronous service instance operations running at once. */
+    public static final Option<Integer> ASYNC_OPERATION_THREADS = Option.withDefault(4);
+
+    /** The maximum number of asynchronous service instance operations waiting to run. */
+    public static final Option<Integer> ASYNC_OPERATION_QUEUE_SIZE = Option.withDefault(1000);
+
+    /** The time allowed to an asynchronous service instance operation once it has started running. */
+    public static final Option<Duration> ASYNC_OPERATION_TIMEOUT = Option.of(Duration.class, duration(10, MINUTES));
+
+    /** The maximum number of recently created bindings whose bind request can be replayed without calling OpenAM. */
+    public static final Option<Integer> BIND_REPLAY_CACHE_SIZE = Option.withDefault(1000);
+
+    /** The time during which a retried bind request is answered with the credentials of the original request. */
+    public static final Option<Duration> BIND_REPLAY_CACHE_TTL = Option.of(Duration.class, duration(5, MINUTES));
+
+    /** The number of recent OpenAM calls whose outcome decides whether the {@link CircuitBreaker} opens. */
+    public static final Option<Integer> CIRCUIT_BREAKER_WINDOW_SIZE = Option.withDefault(20);
+
+    /** The percentage of failed OpenAM calls in the window that opens the {@link CircuitBreaker}. */
+    public static final Option<Integer> CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = Option.withDefault(50);
+
+    /** The percentage of slow OpenAM calls in the window that opens the {@link CircuitBreaker}. */
+    public static final Option<Integer> CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD = Option.withDefault(100);
+
+    /** The duration from which an OpenAM call is considered slow by the {@link CircuitBreaker}. */
+    public static final Option<Duration> CIRCUIT_BREAKER_SLOW_CALL_DURATION = Option.of(Duration.class,
+            duration(10, SECONDS));
+
+    /** The time during which OpenAM calls are rejected once the {@link CircuitBreaker} has opened. */
+    public static final Option<Duration> CIRCUIT_BREAKER_OPEN_DURATION = Option.of(Duration.class,
+            duration(30, SECONDS));
+
+    /** The maximum number of attempts of an idempotent OpenAM call that fails with a transient error. */
+    public static final Option<Integer> OPENAM_RETRY_MAX_ATTEMPTS = Option.withDefault(3);
+
+    /** The cap of the random delay before the first retry of an OpenAM call, which doubles with each retry. */
+    public static final Option<Duration> OPENAM_RETRY_BASE_DELAY = Option.of(Duration.class,
+            duration(100, MILLISECONDS));
+
+    /** The largest cap of the random delay before a retry of an OpenAM call. */
+    public static final Option<Duration> OPENAM_RETRY_MAX_DELAY = Option.of(Duration.class, duration(2, SECONDS));
+
+    /** The maximum number of retries of OpenAM calls, as a percentage of the calls made. */
+    public static final Option<Integer> OPENAM_RETRY_BUDGET_PERCENT = Option.withDefault(10);
+
+    /**
+     * The time allowed to handle a request from the Cloud Controller, which gives up on broker requests after 60
+     * seconds by default. OpenAM calls still in progress once it has elapsed are abandoned.
+     */
+    public static final Option<Duration> BROKER_REQUEST_TIMEOUT = Option.of(Duration.class, duration(55, SECONDS));
+
+    /** The maximum number of Cloud Controller requests, other than catalog requests, handled at once. */
+    public static final Option<Integer> BROKER_MAX_CONCURRENT_REQUESTS = Option.withDefault(64);
+
+    /** The maximum number of Cloud Controller requests waiting to be handled. */
+    public static final Option<Integer> BROKER_MAX_QUEUED_REQUESTS = Option.withDefault(256);
+
+    /** The time requests may wait to be handled once the broker has been overloaded for a whole queue interval. */
+    public static final Option<Duration> BROKER_QUEUE_TARGET_DELAY = Option.of(Duration.class,
+            duration(100, MILLISECONDS));
+
+    /** The time requests may wait to be handled while the broker keeps up with them. */
+    public static final Option<Duration> BROKER_QUEUE_INTERVAL = Option.of(Duration.class, duration(1, SECONDS));
+
+    /** The number of characters of the passwords of the OAuth2 clients created by the broker. */
+    public static final Option<Integer> CLIENT_PASSWORD_LENGTH = Option.withDefault(PasswordGenerator.DEFAULT_LENGTH);
+
+    /** The characters the passwords of the OAuth2 clients created by the broker are made of. */
+    public static final Option<String> CLIENT_PASSWORD_ALPHABET =
+            Option.withDefault(PasswordGenerator.DEFAULT_ALPHABET);
+
     private final URI openAmOAuth2Url;
     private final URI openAmApiRealmUrl;
     private final String openAmUsername;
     private final String openAmPassword;
     private final String brokerUsername;
     private final String brokerPassword;
+    private final BrokerCredential brokerCredential;
     private final URI openAmApiBaseUrl;
     private final List<String> scopes;
+    private final Options options;
 
     /**
      * Constructs a new Configuration.
@@ -49,6 +205,23 @@ public final class Configuration {
      */
     public Configuration(String baseUri, String openAmUsername, String openAmPassword, String realm,
             String brokerUsername, String brokerPassword, String scopes) {
+        this(baseUri, openAmUsername, openAmPassword, realm, brokerUsername, brokerPassword, scopes,
+                Options.defaultOptions());
+    }
+
+    /**
+     * Constructs a new Configuration.
+     * @param baseUri the base URI of OpenAM
+     * @param openAmUsername the username to use to authenticate against OpenAM
+     * @param openAmPassword the password to use to authenticate against OpenAM
+     * @param realm the OpenAM realm to use
+     * @param brokerUsername the username that clients to this broker are required to use.
+     * @param brokerPassword the password that clients to this broker are required to use, or a PBKDF2 hash of it.
+     * @param scopes A space delimited list of scopes that OAuth 2.0 clients will be created with.
+     * @param options the optional tuning settings of the broker, such as {@link #OPENAM_SESSION_MAX_IDLE_TIME}.
+     */
+    public Configuration(String baseUri, String openAmUsername, String openAmPassword, String realm,
+            String brokerUsername, String brokerPassword, String scopes, Options options) {
         URI openAmBaseUrl;
         try {
             openAmBaseUrl = new URI(validateProperty(baseUri, "OPENAM_BASE_URI") + "/");
@@ -60,12 +233,18 @@ public final class Configuration {
         this.openAmPassword = validateProperty(openAmPassword, "OPENAM_PASSWORD");
         this.brokerUsername = validateProperty(brokerUsername, "SECURITY_USER_NAME");
         this.brokerPassword = validateProperty(brokerPassword, "SECURITY_USER_PASSWORD");
+        try {
+            this.brokerCredential = new BrokerCredential(this.brokerUsername, this.brokerPassword);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("SECURITY_USER_PASSWORD is not a valid password hash", e);
+        }
         this.scopes = Lists.newArrayList(validateProperty(scopes, "OAUTH2_SCOPES").split(" "));
 
         realm = StringUtils.trimToEmpty(realm);
         openAmApiBaseUrl = openAmBaseUrl.resolve("json/");
         openAmApiRealmUrl = openAmBaseUrl.resolve("json/" + realm + "/");
         openAmOAuth2Url = openAmBaseUrl.resolve("oauth2/" + realm + "/");
+        this.options = Options.unmodifiableCopyOf(options);
     }
 
     /**
@@ -100,6 +279,22 @@ public final class Configuration {
         return openAmPassword;
     }
 
+    /**
+     * Returns all the usernames and passwords that may be used to authenticate against OpenAM, starting with
+     * {@link #getOpenAmUsername()}.
+     * @return The usernames mapped to their passwords, in configuration order
+     */
+    public Map<String, String> getOpenAmCredentials() {
+        Map<String, String> credentials = new LinkedHashMap<>();
+        credentials.put(openAmUsername, openAmPassword);
+        for (Map.Entry<String, String> additional : options.get(OPENAM_ADDITIONAL_CREDENTIALS).entrySet()) {
+            if (!credentials.containsKey(additional.getKey())) {
+                credentials.put(additional.getKey(), additional.getValue());
+            }
+        }
+        return credentials;
+    }
+
     private String validateProperty(String value, String variableName) {
         if (StringUtils.trimToNull(value) == null) {
             throw new IllegalStateException("Required configuration missing: " + variableName);
@@ -131,6 +326,18 @@ public final class Configuration {
         return brokerPassword;
     }
 
+    /**
+     * Returns all the credentials clients to this broker may use, starting with {@link #getBrokerUsername()} and
+     * {@link #getBrokerPassword()}.
+     * @return the credentials, in configuration order
+     */
+    public List<BrokerCredential> getBrokerCredentials() {
+        List<BrokerCredential> credentials = new ArrayList<>();
+        credentials.add(brokerCredential);
+        credentials.addAll(options.get(BROKER_ADDITIONAL_CREDENTIALS));
+        return credentials;
+    }
+
     /**
      * Returns the set of supported scopes used when creating OAuth2 clients.
      * @return a set of scopes
@@ -138,4 +345,12 @@ public final class Configuration {
     public List<String> getScopes() {
         return scopes;
     }
+
+    /**
+     * Returns the optional tuning settings of the broker.
+     * @return an unmodifiable set of options
+     */
+    public Options getOptions() {
+        return options;
+    }
 }
@@ -16,6 +16,52 @@
 
 package org.forgerock.cloudfoundry;
 
+import static org.forgerock.cloudfoundry.Configuration.ASYNC_OPERATION_QUEUE_SIZE;
+import static org.forgerock.cloudfoundry.Configuration.ASYNC_OPERATION_THREADS;
+import static org.forgerock.cloudfoundry.Configuration.ASYNC_OPERATION_TIMEOUT;
+import static org.forgerock.cloudfoundry.Configuration.BINDING_INDEX_ENABLED;
+import static org.forgerock.cloudfoundry.Configuration.BIND_REPLAY_CACHE_SIZE;
+import static org.forgerock.cloudfoundry.Configuration.BIND_REPLAY_CACHE_TTL;
+import static org.forgerock.cloudfoundry.Configuration.BROKER_ADDITIONAL_CREDENTIALS;
+import static org.forgerock.cloudfoundry.Configuration.BROKER_MAX_CONCURRENT_REQUESTS;
+import static org.forgerock.cloudfoundry.Configuration.BROKER_MAX_QUEUED_REQUESTS;
+import static org.forgerock.cloudfoundry.Configuration.BROKER_QUEUE_INTERVAL;
+import static org.forgerock.cloudfoundry.Configuration.BROKER_QUEUE_TARGET_DELAY;
+import static org.forgerock.cloudfoundry.Configuration.BROKER_REQUEST_TIMEOUT;
+import static org.forgerock.cloudfoundry.Configuration.CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD;
+import static org.forgerock.cloudfoundry.Configuration.CIRCUIT_BREAKER_OPEN_DURATION;
+import static org.forgerock.cloudfoundry.Configuration.CIRCUIT_BREAKER_SLOW_CALL_DURATION;
+import static org.forgerock.cloudfoundry.Configuration.CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD;
+import static org.forgerock.cloudfoundry.Configuration.CIRCUIT_BREAKER_WINDOW_SIZE;
+import static org.forgerock.cloudfoundry.Configuration.CLIENT_PASSWORD_ALPHABET;
+import static org.forgerock.cloudfoundry.Configuration.CLIENT_PASSWORD_LENGTH;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_ADDITIONAL_CREDENTIALS;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_CLIENT_WORKER_THREADS;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_CONNECT_TIMEOUT;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_KEEP_ALIVE;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_MAX_CONNECTIONS;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_MAX_DELETIONS_IN_FLIGHT;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_QUERY_PAGE_SIZE;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_RETRY_BASE_DELAY;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_RETRY_BUDGET_PERCENT;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_RETRY_MAX_ATTEMPTS;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_RETRY_MAX_DELAY;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_SESSION_MAX_IDLE_TIME;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_SESSION_MAX_TIME;
+import static org.forgerock.cloudfoundry.Configuration.OPENAM_SOCKET_TIMEOUT;
+import static org.forgerock.cloudfoundry.Configuration.STATE_DIRECTORY;
+import static org.forgerock.cloudfoundry.Configuration.STATE_SNAPSHOT_INTERVAL;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.forgerock.util.Option;
+import org.forgerock.util.Options;
+import org.forgerock.util.time.Duration;
+
 /**
  * Reads {@link Configuration} properties from the system environment properties.
  */
@@ -33,6 +79,127 @@ public class ConfigurationEnvironmentReader {
                 System.getenv("OPENAM_REALM"),
                 System.getenv("SECURITY_USER_NAME"),
                 System.getenv("SECURITY_USER_PASSWORD"),
-                System.getenv("OAUTH2_SCOPES"));
+                System.getenv("OAUTH2_SCOPES"),
+                readOptions());
+    }
+
+    private Options readOptions() {
+        Options options = Options.defaultOptions();
+        readDuration(options, OPENAM_SESSION_MAX_IDLE_TIME, "OPENAM_SESSION_MAX_IDLE_TIME");
+        readDuration(options, OPENAM_SESSION_MAX_TIME, "OPENAM_SESSION_MAX_TIME");
+        options.set(OPENAM_ADDITIONAL_CREDENTIALS, readAdditionalCredentials());
+        options.set(BROKER_ADDITIONAL_CREDENTIALS, readAdditionalBrokerCredentials());
+        readInteger(options, OPENAM_MAX_CONNECTIONS, "OPENAM_MAX_CONNECTIONS");
+        readBoolean(options, OPENAM_KEEP_ALIVE, "OPENAM_KEEP_ALIVE");
+        readDuration(options, OPENAM_CONNECT_TIMEOUT, "OPENAM_CONNECT_TIMEOUT");
+        readDuration(options, OPENAM_SOCKET_TIMEOUT, "OPENAM_SOCKET_TIMEOUT");
+        readInteger(options, OPENAM_CLIENT_WORKER_THREADS, "OPENAM_CLIENT_WORKER_THREADS");
+        readInteger(options, OPENAM_QUERY_PAGE_SIZE, "OPENAM_QUERY_PAGE_SIZE");
+        readInteger(options, OPENAM_MAX_DELETIONS_IN_FLIGHT, "OPENAM_MAX_DELETIONS_IN_FLIGHT");
+        readBoolean(options, BINDING_INDEX_ENABLED, "BINDING_INDEX_ENABLED");
+        options.set(STATE_DIRECTORY, StringUtils.trimToNull(System.getenv("STATE_DIRECTORY")));
+        readDuration(options, STATE_SNAPSHOT_INTERVAL, "STATE_SNAPSHOT_INTERVAL");
+        readInteger(options, ASYNC_OPERATION_THREADS, "ASYNC_OPERATION_THREADS");
+        readInteger(options, ASYNC_OPERATION_QUEUE_SIZE, "ASYNC_OPERATION_QUEUE_SIZE");
+        readDuration(options, ASYNC_OPERATION_TIMEOUT, "ASYNC_OPERATION_TIMEOUT");
+        readInteger(options, BIND_REPLAY_CACHE_SIZE, "BIND_REPLAY_CACHE_SIZE");
+        readDuration(options, BIND_REPLAY_CACHE_TTL, "BIND_REPLAY_CACHE_TTL");
+        readInteger(options, CIRCUIT_BREAKER_WINDOW_SIZE, "CIRCUIT_BREAKER_WINDOW_SIZE");
+        readInteger(options, CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD, "CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD");
+        readInteger(options, CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD, "CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD");
+        readDuration(options, CIRCUIT_BREAKER_SLOW_CALL_DURATION, "CIRCUIT_BREAKER_SLOW_CALL_DURATION");
+        readDuration(options, CIRCUIT_BREAKER_OPEN_DURATION, "CIRCUIT_BREAKER_OPEN_DURATION");
+        readInteger(options, OPENAM_RETRY_MAX_ATTEMPTS, "OPENAM_RETRY_MAX_ATTEMPTS");
+        readDuration(options, OPENAM_RETRY_BASE_DELAY, "OPENAM_RETRY_BASE_DELAY");
+        readDuration(options, OPENAM_RETRY_MAX_DELAY, "OPENAM_RETRY_MAX_DELAY");
+        readInteger(options, OPENAM_RETRY_BUDGET_PERCENT, "OPENAM_RETRY_BUDGET_PERCENT");
+        readDuration(options, BROKER_REQUEST_TIMEOUT, "BROKER_REQUEST_TIMEOUT");
+        readInteger(options, BROKER_MAX_CONCURRENT_REQUESTS, "BROKER_MAX_CONCURRENT_REQUESTS");
+        readInteger(options, BROKER_MAX_QUEUED_REQUESTS, "BROKER_MAX_QUEUED_REQUESTS");
+        readDuration(options, BROKER_QUEUE_TARGET_DELAY, "BROKER_QUEUE_TARGET_DELAY");
+        readDuration(options, BROKER_QUEUE_INTERVAL, "BROKER_QUEUE_INTERVAL");
+        readInteger(options, CLIENT_PASSWORD_LENGTH, "CLIENT_PASSWORD_LENGTH");
+        String alphabet = System.getenv("CLIENT_PASSWORD_ALPHABET");
+        if (StringUtils.isNotEmpty(alphabet)) {
+            options.set(CLIENT_PASSWORD_ALPHABET, alphabet);
+        }
+        return options;
+    }
+
+    /**
+     * Reads {@code OPENAM_USERNAME_2}/{@code OPENAM_PASSWORD_2}, {@code OPENAM_USERNAME_3}/{@code OPENAM_PASSWORD_3},
+     * and so on until the first missing username.
+     */
+    private Map<String, String> readAdditionalCredentials() {
+        Map<String, String> credentials = new LinkedHashMap<>();
+        for (int i = 2;; i++) {
+            String username = StringUtils.trimToNull(System.getenv("OPENAM_USERNAME_" + i));
+            if (username == null) {
+                return credentials;
+            }
+            String password = System.getenv("OPENAM_PASSWORD_" + i);
+            if (StringUtils.trimToNull(password) == null) {
+                throw new IllegalStateException("Required configuration missing: OPENAM_PASSWORD_" + i);
+            }
+            credentials.put(username, password);
+        }
+    }
+
+    /**
+     * Reads {@code SECURITY_USER_NAME_2}/{@code SECURITY_USER_PASSWORD_2}, and so on until the first missing username.
+     */
+    private List<BrokerCredential> readAdditionalBrokerCredentials() {
+        List<BrokerCredential> credentials = new ArrayList<>();
+        for (int i = 2;; i++) {
+            String username = StringUtils.trimToNull(System.getenv("SECURITY_USER_NAME_" + i));
+            if (username == null) {
+                return credentials;
+            }
+            String password = System.getenv("SECURITY_USER_PASSWORD_" + i);
+            if (StringUtils.trimToNull(password) == null) {
+                throw new IllegalStateException("Required configuration missing: SECURITY_USER_PASSWORD_" + i);
+            }
+            try {
+                credentials.add(new BrokerCredential(username, password));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("SECURITY_USER_PASSWORD_" + i + " is not a valid password hash", e);
+            }
+        }
+    }
+
+    private void readInteger(Options options, Option<Integer> option, String variableName) {
+        String value = StringUtils.trimToNull(System.getenv(variableName));
+        if (value != null) {
+            try {
+                int number = Integer.parseInt(value);
+                if (number <= 0) {
+                    throw new IllegalStateException(variableName + " must be a positive integer");
+                }
+                options.set(option, number);
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException(variableName + " must be a positive integer", e);
+            }
+        }
+    }
+
+    private void readBoolean(Options options, Option<Boolean> option, String variableName) {
+        String value = StringUtils.trimToNull(System.getenv(variableName));
+        if (value != null) {
+            if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                throw new IllegalStateException(variableName + " must be true or false");
+            }
+            options.set(option, Boolean.valueOf(value));
+        }
+    }
+
+    private void readDuration(Options options, Option<Duration> option, String variableName) {
+        String value = StringUtils.trimToNull(System.getenv(variableName));
+        if (value != null) {
+            try {
+                options.set(option, Duration.duration(value));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException(variableName + " is not a valid duration", e);
+            }
+        }
     }
 }
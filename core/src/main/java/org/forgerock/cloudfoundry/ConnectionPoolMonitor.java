@@ -0,0 +1,98 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A CHF filter placed in front of the OpenAM HTTP client handler that reports how the client's connection pool is
+ * being used.
+ *
+ * <p>The pool itself is internal to the HTTP client, so its utilisation is derived from the number of requests in
+ * flight: up to the configured maximum they each lease a connection, and beyond it they wait for one.</p>
+ */
+public class ConnectionPoolMonitor implements Filter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPoolMonitor.class);
+
+    private final int maxConnections;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Constructs a new monitor.
+     *
+     * @param maxConnections The maximum number of connections of the monitored pool.
+     */
+    public ConnectionPoolMonitor(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(Context context, Request request, Handler next) {
+        if (inFlight.incrementAndGet() == maxConnections + 1) {
+            LOGGER.info("All " + maxConnections + " OpenAM connections are in use, requests are waiting for one");
+        }
+        return next.handle(context, request).thenOnResultOrException(new Runnable() {
+            @Override
+            public void run() {
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Returns the maximum number of connections of the pool.
+     * @return The pool size.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Returns the number of connections currently serving a request.
+     * @return The number of leased connections.
+     */
+    public int getLeased() {
+        return Math.min(inFlight.get(), maxConnections);
+    }
+
+    /**
+     * Returns the number of requests waiting for a connection to become available.
+     * @return The number of pending requests.
+     */
+    public int getPending() {
+        return Math.max(inFlight.get() - maxConnections, 0);
+    }
+
+    /**
+     * Returns the number of connections that could be leased immediately.
+     * @return The number of available connections.
+     */
+    public int getAvailable() {
+        return maxConnections - getLeased();
+    }
+}
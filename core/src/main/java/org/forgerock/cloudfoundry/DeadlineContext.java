@@ -0,0 +1,65 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import org.forgerock.services.context.AbstractContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A {@link Context} carrying the time by which the handling of a request must complete. Calls to OpenAM made on behalf
+ * of the request are abandoned once the deadline has passed.
+ */
+public final class DeadlineContext extends AbstractContext {
+
+    private final long deadline;
+
+    /**
+     * Constructs a new deadline context.
+     *
+     * @param parent The parent {@link Context}.
+     * @param deadline The deadline, in milliseconds since the epoch.
+     */
+    public DeadlineContext(Context parent, long deadline) {
+        super(parent, "deadline");
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the deadline carried by this context.
+     * @return The deadline, in milliseconds since the epoch.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns the time left before the deadline of a request.
+     *
+     * @param context The {@link Context} of the request.
+     * @param time The {@link TimeService} giving the current time.
+     * @return The number of milliseconds left, which is negative once the deadline has passed, or
+     * {@link Long#MAX_VALUE} if the request has no deadline.
+     */
+    public static long getRemaining(Context context, TimeService time) {
+        if (!context.containsContext(DeadlineContext.class)) {
+            return Long.MAX_VALUE;
+        }
+        long deadline = context.asContext(DeadlineContext.class).getDeadline();
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - time.now();
+    }
+}
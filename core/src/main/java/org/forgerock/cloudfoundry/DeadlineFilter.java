@@ -0,0 +1,66 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A CHF filter giving each request a deadline, carried by a {@link DeadlineContext}, after which the Cloud
+ * Controller will have given up on it.
+ */
+public class DeadlineFilter implements Filter {
+
+    private final long timeout;
+    private final TimeService time;
+
+    /**
+     * Constructs a new deadline filter.
+     *
+     * @param timeout The time allowed to handle each request.
+     * @param time The {@link TimeService} used to compute deadlines.
+     */
+    public DeadlineFilter(Duration timeout, TimeService time) {
+        this.timeout = timeout.isUnlimited() ? Long.MAX_VALUE : timeout.to(MILLISECONDS);
+        this.time = time;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(Context context, Request request, Handler next) {
+        return next.handle(new DeadlineContext(context, deadlineFrom(time.now(), timeout)), request);
+    }
+
+    /**
+     * Computes a deadline, which is never earlier than the current time even when the timeout is unlimited.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     * @param timeout The timeout, in milliseconds, or {@link Long#MAX_VALUE} if unlimited.
+     * @return The deadline, in milliseconds since the epoch.
+     */
+    static long deadlineFrom(long now, long timeout) {
+        return timeout > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeout;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, recorded in microseconds into buckets whose width grows with the latency so that every
+ * latency is known to within 25%, in the manner of an HDR histogram.
+ *
+ * <p>Each power of two is split into four buckets. Latencies of 2<sup>26</sup> microseconds (about 67 seconds) or more
+ * are counted in a single overflow bucket. Recording is lock-free and does not allocate, so it can be done on every
+ * request.</p>
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 26;
+
+    /** The number of buckets, the last of which counts the latencies too large for the others. */
+    static final int BUCKETS = SUB_BUCKETS * (MAX_MAGNITUDE - 1) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency, in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(NANOSECONDS.toMicros(nanos), 0);
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+    }
+
+    /**
+     * Returns the number of latencies recorded.
+     * @return The count.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the sum of the latencies recorded.
+     * @return The sum, in nanoseconds.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Returns the number of latencies recorded in a bucket.
+     *
+     * @param bucket The index of the bucket.
+     * @return The count of the bucket.
+     */
+    long getBucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * Returns the latency below which a given percentage of the recorded latencies lie.
+     *
+     * @param percentile The percentage, between 0 and 100.
+     * @return The upper bound of the bucket containing the percentile, in microseconds, {@link Long#MAX_VALUE} if it
+     * is in the overflow bucket, or 0 if no latency has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen > 0 && seen >= rank) {
+                return getUpperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the bucket a latency is counted in.
+     *
+     * @param micros The latency, in microseconds.
+     * @return The index of the bucket.
+     */
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude >= MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (magnitude - 1) + subBucket;
+    }
+
+    /**
+     * Returns the exclusive upper bound of the latencies counted in a bucket.
+     *
+     * @param bucket The index of the bucket.
+     * @return The upper bound, in microseconds, or {@link Long#MAX_VALUE} for the overflow bucket.
+     */
+    static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        } else if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int magnitude = bucket / SUB_BUCKETS + 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket + 1) << (magnitude - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.forgerock.http.protocol.Status;
+
+/**
+ * The latencies and counters of the broker, exposed in the Prometheus text format.
+ *
+ * <p>The latency of Cloud Controller requests is recorded by route, method and status, and that of OpenAM calls by
+ * operation and status, each in a {@link LatencyHistogram} created the first time the combination is seen. The
+ * histograms are found by index rather than by building a key, so that recording neither locks nor allocates. Other
+ * components register gauges and counters that are read when the metrics are exposed.</p>
+ */
+public final class Metrics {
+
+    /** The routes of the broker whose requests are timed. */
+    public enum Route {
+        /** The service catalog. */
+        CATALOG,
+        /** Provisioning, updating and deprovisioning service instances. */
+        PROVISIONING,
+        /** Polling the last operation on a service instance. */
+        LAST_OPERATION,
+        /** Binding and unbinding service instances. */
+        BINDING
+    }
+
+    /** The calls the broker makes to OpenAM. */
+    public enum OpenAMOperation {
+        /** Creating an SSO token. */
+        AUTHENTICATE,
+        /** Reading the server info. */
+        SERVERINFO,
+        /** Creating an OAuth2 client. */
+        CREATE,
+        /** Deleting an OAuth2 client. */
+        DELETE,
+        /** Listing OAuth2 clients, a page at a time. */
+        LIST
+    }
+
+    /** A value read when the metrics are exposed. */
+    public interface Gauge {
+        /**
+         * Returns the current value.
+         * @return The value.
+         */
+        long getValue();
+    }
+
+    private static final String[] METHODS = { "GET", "PUT", "PATCH", "DELETE", "POST", "OTHER" };
+    private static final int STATUSES = 600;
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final AtomicReferenceArray<LatencyHistogram> requests =
+            new AtomicReferenceArray<>(Route.values().length * METHODS.length * STATUSES);
+    private final AtomicReferenceArray<LatencyHistogram> openAMCalls =
+            new AtomicReferenceArray<>(OpenAMOperation.values().length * STATUSES);
+    private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    /**
+     * Records the latency of a Cloud Controller request.
+     *
+     * @param route The route that handled the request.
+     * @param method The method of the request.
+     * @param status The status of the response.
+     * @param nanos The time taken to respond, in nanoseconds.
+     */
+    public void recordRequest(Route route, String method, Status status, long nanos) {
+        int index = (route.ordinal() * METHODS.length + indexOf(method)) * STATUSES + indexOf(status);
+        histogram(requests, index).record(nanos);
+    }
+
+    /**
+     * Records the latency of an OpenAM call.
+     *
+     * @param operation The operation performed.
+     * @param status The status of the response.
+     * @param nanos The time taken by OpenAM to respond, in nanoseconds.
+     */
+    public void recordOpenAMCall(OpenAMOperation operation, Status status, long nanos) {
+        histogram(openAMCalls, operation.ordinal() * STATUSES + indexOf(status)).record(nanos);
+    }
+
+    /**
+     * Returns the latencies of a Cloud Controller route.
+     *
+     * @param route The route that handled the requests.
+     * @param method The method of the requests.
+     * @param status The status of the responses.
+     * @return The histogram, or {@code null} if no such request has been recorded.
+     */
+    public LatencyHistogram getRequestLatencies(Route route, String method, Status status) {
+        return requests.get((route.ordinal() * METHODS.length + indexOf(method)) * STATUSES + indexOf(status));
+    }
+
+    /**
+     * Returns the latencies of an OpenAM operation.
+     *
+     * @param operation The operation performed.
+     * @param status The status of the responses.
+     * @return The histogram, or {@code null} if no such call has been recorded.
+     */
+    public LatencyHistogram getOpenAMCallLatencies(OpenAMOperation operation, Status status) {
+        return openAMCalls.get(operation.ordinal() * STATUSES + indexOf(status));
+    }
+
+    /**
+     * Registers a value that can go up and down.
+     *
+     * @param name The name of the metric, optionally followed by its labels, e.g. {@code name{label="value"}}.
+     * Metrics sharing a name must be registered one after the other.
+     * @param help The description of the metric.
+     * @param gauge The source of the value.
+     */
+    public void registerGauge(String name, String help, Gauge gauge) {
+        registrations.add(new Registration(name, "gauge", help, gauge));
+    }
+
+    /**
+     * Registers a value that only goes up.
+     *
+     * @param name The name of the metric, optionally followed by its labels, e.g. {@code name{label="value"}}.
+     * Metrics sharing a name must be registered one after the other.
+     * @param help The description of the metric.
+     * @param counter The source of the value.
+     */
+    public void registerCounter(String name, String help, Gauge counter) {
+        registrations.add(new Registration(name, "counter", help, counter));
+    }
+
+    /**
+     * Returns the media type of {@link #toPrometheus()}.
+     * @return The content type of the Prometheus text format.
+     */
+    public static String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     * @return The metrics.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        writeHeader(out, "broker_request_duration_seconds", "histogram",
+                "Time taken to respond to Cloud Controller requests.");
+        for (int i = 0; i < requests.length(); i++) {
+            LatencyHistogram histogram = requests.get(i);
+            if (histogram != null) {
+                int status = i % STATUSES;
+                int method = i / STATUSES % METHODS.length;
+                Route route = Route.values()[i / STATUSES / METHODS.length];
+                writeHistogram(out, "broker_request_duration_seconds", "route=\"" + label(route) + "\",method=\""
+                        + METHODS[method] + "\",status=\"" + status + "\"", histogram);
+            }
+        }
+        writeHeader(out, "openam_call_duration_seconds", "histogram", "Time taken by OpenAM to respond to calls.");
+        for (int i = 0; i < openAMCalls.length(); i++) {
+            LatencyHistogram histogram = openAMCalls.get(i);
+            if (histogram != null) {
+                OpenAMOperation operation = OpenAMOperation.values()[i / STATUSES];
+                writeHistogram(out, "openam_call_duration_seconds", "operation=\"" + label(operation)
+                        + "\",status=\"" + i % STATUSES + "\"", histogram);
+            }
+        }
+        String family = null;
+        for (Registration registration : registrations) {
+            if (!registration.family.equals(family)) {
+                family = registration.family;
+                writeHeader(out, family, registration.type, registration.help);
+            }
+            out.append(registration.name).append(' ').append(registration.gauge.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void writeHeader(StringBuilder out, String family, String type, String help) {
+        out.append("# HELP ").append(family).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Writes a histogram, exposing only the bucket boundaries at powers of two from about a millisecond: enough to
+     * tell the broker's latencies apart while keeping the number of series down.
+     */
+    private static void writeHistogram(StringBuilder out, String family, String labels, LatencyHistogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+            cumulative += histogram.getBucketCount(i);
+            long upperBound = LatencyHistogram.getUpperBound(i);
+            if (Long.bitCount(upperBound) == 1 && upperBound >= 1024) {
+                out.append(family).append("_bucket{").append(labels).append(",le=\"")
+                        .append(upperBound / 1e6).append("\"} ").append(cumulative).append('\n');
+            }
+        }
+        cumulative += histogram.getBucketCount(LatencyHistogram.BUCKETS - 1);
+        out.append(family).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(family).append("_sum{").append(labels).append("} ").append(histogram.getSum() / 1e9).append('\n');
+        out.append(family).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    private static LatencyHistogram histogram(AtomicReferenceArray<LatencyHistogram> histograms, int index) {
+        LatencyHistogram histogram = histograms.get(index);
+        if (histogram == null) {
+            histograms.compareAndSet(index, null, new LatencyHistogram());
+            histogram = histograms.get(index);
+        }
+        return histogram;
+    }
+
+    private static int indexOf(String method) {
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    private static int indexOf(Status status) {
+        int code = status.getCode();
+        return code < 0 || code >= STATUSES ? 0 : code;
+    }
+
+    private static String label(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Registration {
+        private final String name;
+        private final String family;
+        private final String type;
+        private final String help;
+        private final Gauge gauge;
+
+        private Registration(String name, String type, String help, Gauge gauge) {
+            this.name = name;
+            this.family = name.indexOf('{') < 0 ? name : name.substring(0, name.indexOf('{'));
+            this.type = type;
+            this.help = help;
+            this.gauge = gauge;
+        }
+    }
+}
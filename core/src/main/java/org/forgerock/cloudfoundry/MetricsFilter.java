@@ -0,0 +1,57 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+
+/**
+ * A CHF filter recording the latency of the requests handled by a route of the broker in its {@link Metrics}.
+ */
+public class MetricsFilter implements Filter {
+
+    private final Metrics metrics;
+    private final Metrics.Route route;
+
+    /**
+     * Constructs a new metrics filter.
+     *
+     * @param metrics The {@link Metrics} in which latencies are recorded.
+     * @param route The route whose requests are filtered.
+     */
+    public MetricsFilter(Metrics metrics, Metrics.Route route) {
+        this.metrics = metrics;
+        this.route = route;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(Context context, final Request request, Handler next) {
+        final long start = System.nanoTime();
+        return next.handle(context, request).thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(Response response) {
+                metrics.recordRequest(route, request.getMethod(), response.getStatus(), System.nanoTime() - start);
+            }
+        });
+    }
+}
@@ -16,26 +16,55 @@
 
 package org.forgerock.cloudfoundry;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.cloudfoundry.Responses.newEmptyJsonResponse;
+import static org.forgerock.cloudfoundry.Responses.newErrorJsonResponse;
+import static org.forgerock.http.handler.Handlers.chainOf;
 import static org.forgerock.json.JsonValue.*;
 import static org.forgerock.util.promise.Promises.newResultPromise;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.commons.lang3.StringUtils;
+import org.forgerock.cloudfoundry.Metrics.OpenAMOperation;
 import org.forgerock.http.Client;
 import org.forgerock.http.HttpApplicationException;
+import org.forgerock.http.apache.async.AsyncHttpClientProvider;
 import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.protocol.Form;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
 import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Factory;
 import org.forgerock.util.Function;
+import org.forgerock.util.Options;
+import org.forgerock.util.promise.ExceptionHandler;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,19 +74,128 @@ import org.slf4j.LoggerFactory;
 public class OpenAMClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(OpenAMClient.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
-    private final Client client = new Client(new HttpClientHandler());
+    private final HttpClientHandler httpClientHandler;
+    private final ConnectionPoolMonitor connectionPool;
+    private final CircuitBreaker circuitBreaker;
+    private final ScheduledExecutorService scheduler;
+    private final RetryPolicy retryPolicy;
+    private final Client client;
     private final Configuration configuration;
-    private String cookieName;
+    private final OpenAMSessionPool sessions;
+    private final Metrics metrics;
+    private final AtomicReference<Promise<String, HttpApplicationException>> cookieName = new AtomicReference<>();
+    private final AtomicBoolean refreshingCookieName = new AtomicBoolean();
+    private volatile String resolvedCookieName;
 
     /**
-     * Constructs a new OpenAM client.
+     * Constructs a new OpenAM client whose metrics are not exposed.
      *
      * @param configuration The {@link Configuration} for the client.
      * @throws HttpApplicationException If the client is unable to determine the configured SSOToken cookie name.
      */
     public OpenAMClient(Configuration configuration) throws HttpApplicationException {
+        this(configuration, new Metrics());
+    }
+
+    /**
+     * Constructs a new OpenAM client.
+     *
+     * @param configuration The {@link Configuration} for the client.
+     * @param metrics The {@link Metrics} in which the latency of OpenAM calls is recorded.
+     * @throws HttpApplicationException If the client is unable to determine the configured SSOToken cookie name.
+     */
+    public OpenAMClient(Configuration configuration, Metrics metrics) throws HttpApplicationException {
         this.configuration = configuration;
+        this.metrics = metrics;
+        Options options = configuration.getOptions();
+        Options clientOptions = Options.defaultOptions()
+                .set(HttpClientHandler.OPTION_MAX_CONNECTIONS, options.get(Configuration.OPENAM_MAX_CONNECTIONS))
+                .set(HttpClientHandler.OPTION_REUSE_CONNECTIONS, options.get(Configuration.OPENAM_KEEP_ALIVE))
+                .set(HttpClientHandler.OPTION_CONNECT_TIMEOUT, options.get(Configuration.OPENAM_CONNECT_TIMEOUT))
+                .set(HttpClientHandler.OPTION_SO_TIMEOUT, getSocketTimeout(options));
+        if (options.get(Configuration.OPENAM_CLIENT_WORKER_THREADS) != null) {
+            clientOptions.set(AsyncHttpClientProvider.OPTION_WORKER_THREADS,
+                    options.get(Configuration.OPENAM_CLIENT_WORKER_THREADS));
+        }
+        this.httpClientHandler = new HttpClientHandler(clientOptions);
+        this.connectionPool = new ConnectionPoolMonitor(options.get(Configuration.OPENAM_MAX_CONNECTIONS));
+        this.client = new Client(chainOf(httpClientHandler, connectionPool));
+        this.circuitBreaker = new CircuitBreaker(options.get(Configuration.CIRCUIT_BREAKER_WINDOW_SIZE),
+                options.get(Configuration.CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD),
+                options.get(Configuration.CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD),
+                options.get(Configuration.CIRCUIT_BREAKER_SLOW_CALL_DURATION),
+                options.get(Configuration.CIRCUIT_BREAKER_OPEN_DURATION), TimeService.SYSTEM);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "openam-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.retryPolicy = new RetryPolicy(options.get(Configuration.OPENAM_RETRY_MAX_ATTEMPTS),
+                options.get(Configuration.OPENAM_RETRY_BASE_DELAY), options.get(Configuration.OPENAM_RETRY_MAX_DELAY),
+                options.get(Configuration.OPENAM_RETRY_BUDGET_PERCENT), scheduler);
+        URI authenticateUri = configuration.getOpenAmApiRealmUrl()
+                .resolve("authenticate?authTokenType=module&authIndexValue=Application");
+        List<OpenAMSession> openAmSessions = new ArrayList<>();
+        for (Map.Entry<String, String> credentials : configuration.getOpenAmCredentials().entrySet()) {
+            openAmSessions.add(new OpenAMSession(client, authenticateUri, credentials.getKey(),
+                    credentials.getValue(), options.get(Configuration.OPENAM_SESSION_MAX_IDLE_TIME),
+                    options.get(Configuration.OPENAM_SESSION_MAX_TIME), TimeService.SYSTEM, metrics));
+        }
+        this.sessions = new OpenAMSessionPool(openAmSessions);
+    }
+
+    /**
+     * Starts resolving the SSO token cookie name, so that it is already known when the first requests arrive rather
+     * than being looked up by each of them. Failures are logged and the lookup is retried on first use.
+     */
+    public void start() {
+        getCookieName().thenOnException(new ExceptionHandler<HttpApplicationException>() {
+            @Override
+            public void handleException(HttpApplicationException exception) {
+                LOGGER.warn("Unable to determine OpenAM SSO token cookie name on startup", exception);
+            }
+        });
+    }
+
+    /**
+     * Releases the connections held by the client.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            httpClientHandler.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to close OpenAM HTTP client", e);
+        }
+    }
+
+    /**
+     * Returns the utilisation of the connection pool used to reach OpenAM.
+     * @return The connection pool monitor.
+     */
+    public ConnectionPoolMonitor getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Returns the circuit breaker protecting OpenAM.
+     * @return The circuit breaker.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Returns the policy retrying idempotent OpenAM calls.
+     * @return The retry policy.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
     }
 
     /**
@@ -71,13 +209,38 @@ public class OpenAMClient {
     /**
      * Creates an OAuth2 Client in OpenAM.
      *
+     * @param context The {@link Context} of the request on whose behalf the call is made, carrying its deadline.
      * @param username The username to use for the client.
      * @param password The password to use for the client.
+     * @param onSent Run just before the request is sent, from when OpenAM may create the client whatever response
+     * the broker gets. Responses to requests that are not sent, because the circuit breaker is open or the deadline
+     * has passed, are made by the broker. May be {@code null}.
      * @return A {@link Promise} containing the {@link Response} from OpenAM.
      */
-    public Promise<Response, NeverThrowsException> createClient(final String username, final String password) {
+    public Promise<Response, NeverThrowsException> createClient(Context context, final String username,
+            final String password, final Runnable onSent) {
         LOGGER.info("Creating OAuth2 client " + username);
-        JsonValue responseBody = json(object(
+        final JsonValue clientResource = newClientResource(username, password);
+        return sendWithCredentials(context, OpenAMOperation.CREATE, new Factory<Request>() {
+            @Override
+            public Request newInstance() {
+                if (onSent != null) {
+                    onSent.run();
+                }
+                return newCreateClientRequest(clientResource);
+            }
+        });
+    }
+
+    /**
+     * Builds the OpenAM agent resource of an OAuth2 client.
+     *
+     * @param username The username to use for the client.
+     * @param password The password to use for the client.
+     * @return The agent resource.
+     */
+    JsonValue newClientResource(String username, String password) {
+        return json(object(
                 field("username", username),
                 field("userpassword", password),
                 field("AgentType", "OAuth2Client"),
@@ -85,123 +248,353 @@ public class OpenAMClient {
                 field("com.forgerock.openam.oauth2provider.scopes",
                         orderedList(configuration.getScopes().toArray(new String[0])))
         ));
+    }
+
+    /**
+     * Builds a request creating an OAuth2 client in OpenAM, which is sent once its credentials have been added.
+     *
+     * @param clientResource The agent resource of the client.
+     * @return The request.
+     */
+    Request newCreateClientRequest(JsonValue clientResource) {
         final Request createClientRequest = new Request();
-        createClientRequest.setEntity(responseBody);
+        createClientRequest.setEntity(clientResource);
         createClientRequest.setMethod("POST");
         createClientRequest.getHeaders().put("Accept-API-Version", "protocol=1.0, resource=3.0");
         createClientRequest.setUri(configuration.getOpenAmApiRealmUrl().resolve("agents?_action=create"));
-
-        return sendWithCredentials(createClientRequest);
+        return createClientRequest;
     }
 
     /**
      * Removes an OAuth2 client from OpenAM.
      *
+     * @param context The {@link Context} of the request on whose behalf the call is made, carrying its deadline.
      * @param username The username to remove.
      * @return A {@link Promise} containing the {@link Response} from OpenAM.
      */
-    public Promise<Response, NeverThrowsException> deleteClient(String username) {
+    public Promise<Response, NeverThrowsException> deleteClient(Context context, final String username) {
         LOGGER.info("Deleting OAuth2 client " + username);
-        final Request request = new Request();
-        request.setMethod("DELETE");
-        request.getHeaders().put("Accept-API-Version", "protocol=1.0, resource=3.0");
-        request.setUri(configuration.getOpenAmApiRealmUrl().resolve("agents/" + username));
-        return sendWithCredentials(request);
+        return sendIdempotent(context, OpenAMOperation.DELETE, new Factory<Request>() {
+            @Override
+            public Request newInstance() {
+                final Request request = new Request();
+                request.setMethod("DELETE");
+                request.getHeaders().put("Accept-API-Version", "protocol=1.0, resource=3.0");
+                request.setUri(configuration.getOpenAmApiRealmUrl().resolve("agents/" + username));
+                return request;
+            }
+        });
     }
 
     /**
-     * Returns a list of OAuth2 clients configured in OpenAM.
-     * @return A {@link Promise} containing the {@link Response} from OpenAM.
+     * Enumerates the OAuth2 clients whose username starts with the given prefix, a page at a time. Each page is passed
+     * to the handler as soon as it arrives while the next one is being retrieved, so that callers can act on the first
+     * clients before the query completes, and memory use depends on the page size
+     * ({@link Configuration#OPENAM_QUERY_PAGE_SIZE}) rather than on the number of matching clients.
+     *
+     * @param context The {@link Context} of the request on whose behalf the call is made, carrying its deadline.
+     * @param prefix The prefix of the usernames to return.
+     * @param handler The {@link ClientPageHandler} receiving each page.
+     * @return A {@link Promise} containing the {@link Response} from OpenAM for the last page retrieved, completed once
+     * every page retrieved has been handled. An unsuccessful response ends the query.
+     */
+    public Promise<Response, NeverThrowsException> listClients(Context context, String prefix,
+            ClientPageHandler handler) {
+        LOGGER.info("Retrieving pages of OAuth2 clients starting with " + prefix);
+        return listClientsPage(context, prefix, null, handler,
+                Promises.<Void, NeverThrowsException>newResultPromise(null));
+    }
+
+    private Promise<Response, NeverThrowsException> listClientsPage(final Context context, final String prefix,
+            final String pagedResultsCookie, final ClientPageHandler handler,
+            final Promise<Void, NeverThrowsException> previousPageHandled) {
+        return sendIdempotent(context, OpenAMOperation.LIST, new Factory<Request>() {
+            @Override
+            public Request newInstance() {
+                final Request queryClientRequest = new Request();
+                queryClientRequest.setMethod("GET");
+                queryClientRequest.getHeaders().put("Accept-API-Version", "protocol=1.0, resource=3.0");
+                queryClientRequest.setUri(configuration.getOpenAmApiRealmUrl().resolve("agents"));
+                Form query = new Form();
+                query.add("_queryFilter", "username sw \"" + escapeQueryFilterValue(prefix) + "\"");
+                query.add("_fields", "username");
+                query.add("_pageSize",
+                        String.valueOf(configuration.getOptions().get(Configuration.OPENAM_QUERY_PAGE_SIZE)));
+                if (pagedResultsCookie != null) {
+                    query.add("_pagedResultsCookie", pagedResultsCookie);
+                }
+                query.appendRequestQuery(queryClientRequest);
+                return queryClientRequest;
+            }
+        }).thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
+            @Override
+            public Promise<Response, NeverThrowsException> apply(Response response) throws NeverThrowsException {
+                if (!response.getStatus().isSuccessful()) {
+                    return whenHandled(previousPageHandled, response);
+                }
+                final ClientPage page;
+                try {
+                    page = readClientPage(response);
+                } catch (IOException e) {
+                    LOGGER.error("OpenAM returned unparsable body retrieving clients starting with " + prefix);
+                    return whenHandled(previousPageHandled, newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR));
+                }
+                final Promise<Void, NeverThrowsException> pageHandled = previousPageHandled.thenAsync(
+                        new AsyncFunction<Void, Void, NeverThrowsException>() {
+                            @Override
+                            public Promise<Void, NeverThrowsException> apply(Void previous) {
+                                return handler.handlePage(page.usernames);
+                            }
+                        });
+                if (page.pagedResultsCookie == null) {
+                    return whenHandled(pageHandled, response);
+                }
+                // The next page is requested while this one is handled, but not before the previous one has been
+                return previousPageHandled.thenAsync(new AsyncFunction<Void, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(Void previous) {
+                        return listClientsPage(context, prefix, page.pagedResultsCookie, handler, pageHandled);
+                    }
+                });
+            }
+        });
+    }
+
+    private static Promise<Response, NeverThrowsException> whenHandled(Promise<Void, NeverThrowsException> handled,
+            final Response response) {
+        return handled.then(new Function<Void, Response, NeverThrowsException>() {
+            @Override
+            public Response apply(Void value) {
+                return response;
+            }
+        });
+    }
+
+    /**
+     * Reads a page of clients without building a tree of the whole response: agents carry many attributes, and only
+     * their username is needed.
      */
-    public Promise<Response, NeverThrowsException> listClients() {
-        LOGGER.info("Retrieving list of OAuth2 clients");
-        final Request queryClientRequest = new Request();
-        queryClientRequest.setMethod("GET");
-        queryClientRequest.getHeaders().put("Accept-API-Version", "protocol=1.0, resource=3.0");
-        queryClientRequest.setUri(configuration.getOpenAmApiRealmUrl().resolve("agents?_queryId=*"));
+    private static ClientPage readClientPage(Response response) throws IOException {
+        List<String> usernames = null;
+        String pagedResultsCookie = null;
+        try (InputStream content = response.getEntity().newDecodedContentInputStream();
+                JsonParser parser = JSON_FACTORY.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Query response is not an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("result".equals(field) && value == JsonToken.START_ARRAY) {
+                    usernames = readUsernames(parser);
+                } else if ("pagedResultsCookie".equals(field) && value == JsonToken.VALUE_STRING) {
+                    pagedResultsCookie = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (usernames == null) {
+            throw new IOException("Query response has no result");
+        }
+        return new ClientPage(usernames, StringUtils.trimToNull(pagedResultsCookie));
+    }
 
-        return sendWithCredentials(queryClientRequest);
+    private static List<String> readUsernames(JsonParser parser) throws IOException {
+        List<String> usernames = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == null) {
+                throw new IOException("Query response is truncated");
+            }
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.VALUE_STRING && "username".equals(field)) {
+                    usernames.add(parser.getText());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return usernames;
     }
 
     private Promise<Response, NeverThrowsException> getServerInfo() {
-        URI serverInfoUri = configuration.getOpenAmApiBaseUrl().resolve("serverinfo/*");
+        final URI serverInfoUri = configuration.getOpenAmApiBaseUrl().resolve("serverinfo/*");
         LOGGER.info("Retrieving OpenAM server info from " + serverInfoUri);
-        Request request = new Request();
-        request.setMethod("GET");
-        request.getHeaders().put("Accept-API-Version", "protocol=1.0, resource=1.1");
-        request.setUri(serverInfoUri);
-        return client.send(request);
+        return retryPolicy.execute(new RootContext(), new Factory<Promise<Response, NeverThrowsException>>() {
+            @Override
+            public Promise<Response, NeverThrowsException> newInstance() {
+                Request request = new Request();
+                request.setMethod("GET");
+                request.getHeaders().put("Accept-API-Version", "protocol=1.0, resource=1.1");
+                request.setUri(serverInfoUri);
+                final long start = System.nanoTime();
+                return client.send(request).thenOnResult(new ResultHandler<Response>() {
+                    @Override
+                    public void handleResult(Response response) {
+                        metrics.recordOpenAMCall(OpenAMOperation.SERVERINFO, response.getStatus(),
+                                System.nanoTime() - start);
+                    }
+                });
+            }
+        });
     }
 
+    /**
+     * Returns the name of the SSO token cookie. The name is looked up once and shared: concurrent callers wait for the
+     * same server info request, and a failed lookup is forgotten so that the next caller tries again.
+     */
     private Promise<String, HttpApplicationException> getCookieName() {
+        Promise<String, HttpApplicationException> current = cookieName.get();
+        if (current != null) {
+            return current;
+        }
+        final PromiseImpl<String, HttpApplicationException> lookup = PromiseImpl.create();
+        if (!cookieName.compareAndSet(null, lookup)) {
+            return getCookieName();
+        }
         LOGGER.info("Determining OpenAM SSO token cookie name");
-        if (cookieName != null) {
-            return newResultPromise(cookieName);
-        } else {
-            return getServerInfo().then(new Function<Response, String, HttpApplicationException>() {
-                @Override
-                public String apply(Response response) throws HttpApplicationException {
-                    try {
-                        cookieName = json(response.getEntity().getJson()).get("cookieName").asString();
-                        if (cookieName != null) {
-                            LOGGER.info("SSO token cookie name is " + cookieName);
-                            return cookieName;
-                        } else {
-                            throw new HttpApplicationException("Unable to resolve cookie name");
+        readCookieName()
+                .thenOnResult(new ResultHandler<String>() {
+                    @Override
+                    public void handleResult(String name) {
+                        LOGGER.info("SSO token cookie name is " + name);
+                        resolvedCookieName = name;
+                        lookup.handleResult(name);
+                    }
+                })
+                .thenOnException(new ExceptionHandler<HttpApplicationException>() {
+                    @Override
+                    public void handleException(HttpApplicationException exception) {
+                        cookieName.compareAndSet(lookup, null);
+                        lookup.handleException(exception);
+                    }
+                });
+        return lookup;
+    }
+
+    /**
+     * Looks the SSO token cookie name up again without disturbing requests in progress, which keep using the current
+     * name until the new one is known. Used when OpenAM rejects a freshly issued token, which suggests that its cookie
+     * name has been reconfigured.
+     */
+    private void refreshCookieName() {
+        if (!refreshingCookieName.compareAndSet(false, true)) {
+            return;
+        }
+        readCookieName()
+                .thenOnResult(new ResultHandler<String>() {
+                    @Override
+                    public void handleResult(String name) {
+                        if (!name.equals(resolvedCookieName)) {
+                            LOGGER.info("SSO token cookie name has changed to " + name);
+                            resolvedCookieName = name;
+                            cookieName.set(Promises.<String, HttpApplicationException>newResultPromise(name));
                         }
-                    } catch (IOException e) {
+                    }
+                })
+                .thenOnResultOrException(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshingCookieName.set(false);
+                    }
+                });
+    }
+
+    private Promise<String, HttpApplicationException> readCookieName() {
+        return getServerInfo().then(new Function<Response, String, HttpApplicationException>() {
+            @Override
+            public String apply(Response response) throws HttpApplicationException {
+                try {
+                    String name = json(response.getEntity().getJson()).get("cookieName").asString();
+                    if (name != null) {
+                        return name;
+                    } else {
                         throw new HttpApplicationException("Unable to resolve cookie name");
                     }
-                }
-            }, new Function<NeverThrowsException, String, HttpApplicationException>() {
-                @Override
-                public String apply(NeverThrowsException value) throws HttpApplicationException {
+                } catch (IOException e) {
                     throw new HttpApplicationException("Unable to resolve cookie name");
                 }
-            });
-        }
+            }
+        }, new Function<NeverThrowsException, String, HttpApplicationException>() {
+            @Override
+            public String apply(NeverThrowsException value) throws HttpApplicationException {
+                throw new HttpApplicationException("Unable to resolve cookie name");
+            }
+        });
     }
 
-    private Promise<String, AuthenticationFailedException> getOpenAmSession(String username, String password) {
-        URI authenticateUri = configuration.getOpenAmApiRealmUrl()
-                .resolve("authenticate?authTokenType=module&authIndexValue=Application");
-        LOGGER.info("Creating OpenAM SSO token from " + authenticateUri);
-        Request authenticateRequest = new Request();
-        authenticateRequest.setMethod("POST");
-        authenticateRequest.setUri(authenticateUri);
-        authenticateRequest.getHeaders().put("X-OpenAM-Username", username);
-        authenticateRequest.getHeaders().put("X-OpenAM-Password", password);
-        return client.send(authenticateRequest).then(new Function<Response, String, AuthenticationFailedException>() {
+    /**
+     * Sends an idempotent request authenticated as one of the broker's OpenAM identities, retrying it while it fails
+     * with a transient error.
+     */
+    private Promise<Response, NeverThrowsException> sendIdempotent(final Context context,
+            final OpenAMOperation operation, final Factory<Request> requestFactory) {
+        return retryPolicy.execute(context, new Factory<Promise<Response, NeverThrowsException>>() {
             @Override
-            public String apply(Response response) throws AuthenticationFailedException {
-                if (!response.getStatus().isSuccessful()) {
-                    LOGGER.warn("Unable to authenticate against OpenAM");
-                    LOGGER.warn("OpenAM response: " + response.getEntity().toString());
-                    throw new AuthenticationFailedException();
-                }
-                try {
-                    LOGGER.info("Authentication successful");
-                    return json(response.getEntity().getJson()).get("tokenId").asString();
-                } catch (Exception e) {
-                    LOGGER.warn("Unable to extract SSO token");
-                    throw new AuthenticationFailedException();
-                }
+            public Promise<Response, NeverThrowsException> newInstance() {
+                return sendWithCredentials(context, operation, requestFactory);
+            }
+        });
+    }
+
+    /**
+     * Sends a request authenticated as one of the broker's OpenAM identities, unless the circuit breaker is open.
+     * Server errors, and failures to authenticate, count as failed calls. Requests whose deadline has already passed
+     * are not sent. The latency of the calls that are made is recorded against the given operation.
+     */
+    private Promise<Response, NeverThrowsException> sendWithCredentials(Context context,
+            final OpenAMOperation operation, final Factory<Request> requestFactory) {
+        if (DeadlineContext.getRemaining(context, TimeService.SYSTEM) <= 0) {
+            return newResultPromise(newDeadlineExceededResponse());
+        }
+        final CircuitBreaker.Permit permit = circuitBreaker.acquire();
+        if (permit == null) {
+            LOGGER.debug("OpenAM circuit breaker is open, rejecting request");
+            return newResultPromise(circuitBreaker.newRejectedResponse());
+        }
+        final long start = System.nanoTime();
+        final AtomicReference<Response> expired = new AtomicReference<>();
+        Promise<Response, NeverThrowsException> sent = sendWithCredentials(context, requestFactory, true, expired);
+        return sent.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(Response response) {
+                metrics.recordOpenAMCall(operation, response.getStatus(), System.nanoTime() - start);
+                // A call abandoned at the deadline of its caller only counts against OpenAM if it was slow
+                permit.release(response != expired.get()
+                        && (response.getStatus().isServerError() || response.getStatus() == Status.UNAUTHORIZED));
             }
-        }, null);
+        });
     }
 
-    private Promise<Response, NeverThrowsException> sendWithCredentials(final Request request) {
-        return getOpenAmSession(configuration.getOpenAmUsername(), configuration.getOpenAmPassword())
+    /**
+     * Sends a request authenticated with the cached SSO token of the least busy session. If OpenAM rejects the token,
+     * for example because the session has been destroyed by an administrator, the token is discarded and the request
+     * is sent once more with a new one. The 504 answered if the request is abandoned at its deadline is set in the
+     * given reference.
+     */
+    private Promise<Response, NeverThrowsException> sendWithCredentials(final Context context,
+            final Factory<Request> requestFactory, final boolean retryWhenUnauthorized,
+            final AtomicReference<Response> expired) {
+        final OpenAMSession session = sessions.select();
+        session.acquire();
+        return session.getToken()
                 .thenAsync(new AsyncFunction<String, Response, NeverThrowsException>() {
                     @Override
                     public Promise<Response, NeverThrowsException> apply(final String token)
                             throws NeverThrowsException {
                         return getCookieName().thenAsync(new AsyncFunction<String, Response, NeverThrowsException>() {
                             @Override
-                            public Promise<? extends Response, ? extends NeverThrowsException> apply(String cookieName)
+                            public Promise<Response, NeverThrowsException> apply(String cookieName)
                                     throws NeverThrowsException {
+                                Request request = requestFactory.newInstance();
                                 request.getHeaders().add(cookieName, token);
-                                return client.send(request);
+                                return sendBeforeDeadline(context, request, expired);
                             }
                         }, new AsyncFunction<HttpApplicationException, Response, NeverThrowsException>() {
                             @Override
@@ -209,17 +602,101 @@ public class OpenAMClient {
                                     throws NeverThrowsException {
                                 return newResultPromise(newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR));
                             }
+                        }).thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
+                            @Override
+                            public Promise<Response, NeverThrowsException> apply(Response response)
+                                    throws NeverThrowsException {
+                                session.release();
+                                if (response.getStatus() == Status.UNAUTHORIZED) {
+                                    session.invalidate(token);
+                                    if (retryWhenUnauthorized) {
+                                        LOGGER.info("OpenAM rejected the SSO token of " + session.getUsername()
+                                                + ", re-authenticating");
+                                        return sendWithCredentials(context, requestFactory, false, expired);
+                                    }
+                                    refreshCookieName();
+                                }
+                                return newResultPromise(response);
+                            }
                         });
                     }
                 }, new AsyncFunction<AuthenticationFailedException, Response, NeverThrowsException>() {
                     @Override
                     public Promise<Response, NeverThrowsException> apply(AuthenticationFailedException exception)
                             throws NeverThrowsException {
+                        session.release();
                         return newResultPromise(newEmptyJsonResponse(Status.UNAUTHORIZED));
                     }
                 });
     }
 
+    /**
+     * Sends a request, answering 504 once the deadline of the request on whose behalf it is made has passed, so that
+     * the caller does not wait for a hung OpenAM call. The 504 is also set in the given reference. CHF cannot abort the
+     * exchange itself: its connection stays leased until OpenAM responds or the socket timeout, which is no longer than
+     * the broker's request timeout, expires.
+     */
+    private Promise<Response, NeverThrowsException> sendBeforeDeadline(Context context, Request request,
+            final AtomicReference<Response> expired) {
+        long remaining = DeadlineContext.getRemaining(context, TimeService.SYSTEM);
+        if (remaining <= 0) {
+            expired.set(newDeadlineExceededResponse());
+            return newResultPromise(expired.get());
+        }
+        final Promise<Response, NeverThrowsException> sent = client.send(context, request);
+        if (remaining == Long.MAX_VALUE) {
+            return sent;
+        }
+        final PromiseImpl<Response, NeverThrowsException> result = PromiseImpl.create();
+        final ScheduledFuture<?> expiry;
+        try {
+            expiry = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expired.set(newDeadlineExceededResponse());
+                    if (result.tryHandleResult(expired.get())) {
+                        LOGGER.warn("Abandoning OpenAM request as its deadline has passed");
+                    }
+                }
+            }, remaining, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The broker is stopping
+            return sent;
+        }
+        sent.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(Response response) {
+                expiry.cancel(false);
+                if (!result.tryHandleResult(response)) {
+                    response.close();
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the OpenAM socket timeout, bounded by the broker's request timeout as an abandoned call cannot be
+     * aborted and keeps its connection until the timeout expires.
+     */
+    private static Duration getSocketTimeout(Options options) {
+        Duration socketTimeout = options.get(Configuration.OPENAM_SOCKET_TIMEOUT);
+        Duration requestTimeout = options.get(Configuration.BROKER_REQUEST_TIMEOUT);
+        if (requestTimeout.isUnlimited()
+                || !socketTimeout.isUnlimited() && socketTimeout.to(MILLISECONDS) <= requestTimeout.to(MILLISECONDS)) {
+            return socketTimeout;
+        }
+        return requestTimeout;
+    }
+
+    private static Response newDeadlineExceededResponse() {
+        return newErrorJsonResponse(Status.GATEWAY_TIMEOUT, "OpenAM did not respond before the request deadline");
+    }
+
+    private static String escapeQueryFilterValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
     private static List<String> orderedList(String... values) {
         List<String> result = new ArrayList<>();
         for (int i = 0; i < values.length; i++) {
@@ -227,4 +704,14 @@ public class OpenAMClient {
         }
         return result;
     }
+
+    private static final class ClientPage {
+        private final List<String> usernames;
+        private final String pagedResultsCookie;
+
+        private ClientPage(List<String> usernames, String pagedResultsCookie) {
+            this.usernames = usernames;
+            this.pagedResultsCookie = pagedResultsCookie;
+        }
+    }
 }
@@ -0,0 +1,343 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.forgerock.http.Client;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.util.Json;
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.Function;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OpenAM SSO token for a single administrative identity, shared by every request the broker sends on its behalf.
+ *
+ * <p>The token is reused until shortly before OpenAM would consider it expired, either because it has been idle for
+ * longer than the session's maximum idle time or because it has reached the session's maximum lifetime. Stateless
+ * (JWT) sessions carry their own expiry, which is read locally. Callers that need a token while a login is already
+ * in progress share that login rather than each creating a new session.</p>
+ *
+ * <p>Each session also tracks the number of requests currently using it and whether its last logins failed, so that
+ * an {@link OpenAMSessionPool} can spread requests over several identities and avoid those that cannot log in.</p>
+ */
+final class OpenAMSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenAMSession.class);
+
+    /**
+     * Tokens are discarded this long before their computed expiry, to allow for clock skew and request latency. The
+     * margin is at most half of the token's idle time or lifetime, so that short-lived sessions are still reused.
+     */
+    private static final long EXPIRY_MARGIN = SECONDS.toMillis(30);
+
+    /** The longest time a session is avoided after failing to log in. */
+    private static final long MAX_UNHEALTHY_TIME = SECONDS.toMillis(60);
+
+    private final Client client;
+    private final URI authenticateUri;
+    private final String username;
+    private final String password;
+    private final long maxIdleTime;
+    private final long maxTime;
+    private final TimeService time;
+    private final Metrics metrics;
+    private final AtomicReference<SessionToken> token = new AtomicReference<>();
+    private final AtomicReference<Promise<String, AuthenticationFailedException>> pendingLogin =
+            new AtomicReference<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long unhealthyUntil;
+
+    /**
+     * Constructs a new session.
+     *
+     * @param client The {@link Client} used to authenticate against OpenAM.
+     * @param authenticateUri The OpenAM authentication endpoint.
+     * @param username The username to authenticate with.
+     * @param password The password to authenticate with.
+     * @param maxIdleTime The maximum idle time of OpenAM sessions.
+     * @param maxTime The maximum lifetime of OpenAM sessions.
+     * @param time The {@link TimeService} used to expire tokens.
+     * @param metrics The {@link Metrics} in which the latency of logins is recorded.
+     */
+    OpenAMSession(Client client, URI authenticateUri, String username, String password, Duration maxIdleTime,
+            Duration maxTime, TimeService time, Metrics metrics) {
+        this.client = client;
+        this.authenticateUri = authenticateUri;
+        this.username = username;
+        this.password = password;
+        this.maxIdleTime = toMillis(maxIdleTime);
+        this.maxTime = toMillis(maxTime);
+        this.time = time;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the username of this session.
+     * @return The username used to authenticate.
+     */
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * Records that a request has started using this session.
+     */
+    void acquire() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records that a request has finished using this session.
+     */
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of requests currently using this session.
+     * @return The number of requests in flight.
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Indicates whether this session should be used. A session becomes unhealthy when it fails to log in, and is
+     * avoided for a period that grows with each consecutive failure.
+     *
+     * @return {@code true} if the session is not currently backing off after a failed login.
+     */
+    boolean isHealthy() {
+        return time.now() >= unhealthyUntil;
+    }
+
+    /**
+     * Returns the time at which an unhealthy session may be tried again.
+     * @return A time in milliseconds since the epoch.
+     */
+    long getUnhealthyUntil() {
+        return unhealthyUntil;
+    }
+
+    /**
+     * Returns a valid SSO token, authenticating against OpenAM only if no usable token is cached.
+     *
+     * @return A {@link Promise} containing the SSO token.
+     */
+    Promise<String, AuthenticationFailedException> getToken() {
+        SessionToken current = token.get();
+        long now = time.now();
+        if (current != null && current.isValidAt(now)) {
+            current.touch(now);
+            return newResultPromise(current.id);
+        }
+        return login();
+    }
+
+    /**
+     * Discards the given token if it is still the cached one, so that the next call to {@link #getToken()} creates a
+     * new session. Used when OpenAM rejects a token before its expected expiry.
+     *
+     * @param tokenId The rejected SSO token.
+     */
+    void invalidate(String tokenId) {
+        SessionToken current = token.get();
+        if (current != null && current.id.equals(tokenId)) {
+            token.compareAndSet(current, null);
+        }
+    }
+
+    private Promise<String, AuthenticationFailedException> login() {
+        final PromiseImpl<String, AuthenticationFailedException> login = PromiseImpl.create();
+        if (!pendingLogin.compareAndSet(null, login)) {
+            Promise<String, AuthenticationFailedException> pending = pendingLogin.get();
+            // The pending login may have completed in the meantime, in which case its token is now cached
+            return pending != null ? pending : getToken();
+        }
+        authenticate()
+                .thenOnResult(new ResultHandler<SessionToken>() {
+                    @Override
+                    public void handleResult(SessionToken result) {
+                        consecutiveFailures.set(0);
+                        unhealthyUntil = 0;
+                        token.set(result);
+                        pendingLogin.set(null);
+                        login.handleResult(result.id);
+                    }
+                })
+                .thenOnException(new ExceptionHandler<AuthenticationFailedException>() {
+                    @Override
+                    public void handleException(AuthenticationFailedException exception) {
+                        int failures = consecutiveFailures.incrementAndGet();
+                        unhealthyUntil = time.now() + Math.min(SECONDS.toMillis(1L << Math.min(failures - 1, 6)),
+                                MAX_UNHEALTHY_TIME);
+                        pendingLogin.set(null);
+                        login.handleException(exception);
+                    }
+                });
+        return login;
+    }
+
+    private Promise<SessionToken, AuthenticationFailedException> authenticate() {
+        LOGGER.info("Creating OpenAM SSO token for " + username + " from " + authenticateUri);
+        Request authenticateRequest = new Request();
+        authenticateRequest.setMethod("POST");
+        authenticateRequest.setUri(authenticateUri);
+        authenticateRequest.getHeaders().put("X-OpenAM-Username", username);
+        authenticateRequest.getHeaders().put("X-OpenAM-Password", password);
+        final long start = System.nanoTime();
+        return client.send(authenticateRequest).then(new Function<Response, SessionToken,
+                AuthenticationFailedException>() {
+            @Override
+            public SessionToken apply(Response response) throws AuthenticationFailedException {
+                try {
+                    return readSessionToken(response, System.nanoTime() - start);
+                } catch (RuntimeException e) {
+                    // Failing the login rather than the promise chain ensures the pending login is cleared
+                    LOGGER.warn("Unable to read OpenAM authentication response", e);
+                    throw new AuthenticationFailedException();
+                }
+            }
+        }, null);
+    }
+
+    private SessionToken readSessionToken(Response response, long latency) throws AuthenticationFailedException {
+        metrics.recordOpenAMCall(Metrics.OpenAMOperation.AUTHENTICATE, response.getStatus(), latency);
+        if (!response.getStatus().isSuccessful()) {
+            LOGGER.warn("Unable to authenticate against OpenAM");
+            LOGGER.warn("OpenAM response: " + response.getEntity().toString());
+            throw new AuthenticationFailedException();
+        }
+        String tokenId;
+        try {
+            tokenId = json(response.getEntity().getJson()).get("tokenId").asString();
+        } catch (Exception e) {
+            LOGGER.warn("Unable to extract SSO token");
+            throw new AuthenticationFailedException();
+        }
+        if (tokenId == null) {
+            LOGGER.warn("Unable to extract SSO token");
+            throw new AuthenticationFailedException();
+        }
+        LOGGER.info("Authentication successful");
+        return newSessionToken(tokenId);
+    }
+
+    private SessionToken newSessionToken(String tokenId) {
+        long now = time.now();
+        long expiresAt = maxTime == Long.MAX_VALUE ? Long.MAX_VALUE : now + maxTime;
+        long idleTime = maxIdleTime;
+        JsonValue claims = readStatelessSessionClaims(tokenId);
+        if (claims != null) {
+            if (claims.get("exp").isNumber()) {
+                expiresAt = Math.min(expiresAt, SECONDS.toMillis(claims.get("exp").asLong()));
+            }
+            JsonValue session = readJson(claims.get("serialized_session").asString());
+            if (session != null) {
+                if (session.get("maxTime").isNumber()) {
+                    expiresAt = Math.min(expiresAt, now + MINUTES.toMillis(session.get("maxTime").asLong()));
+                }
+                if (session.get("maxIdle").isNumber()) {
+                    idleTime = Math.min(idleTime, MINUTES.toMillis(session.get("maxIdle").asLong()));
+                }
+            }
+            LOGGER.debug("SSO token is a stateless session expiring at " + expiresAt);
+        }
+        return new SessionToken(tokenId, expiresAt, idleTime, now);
+    }
+
+    /**
+     * Decodes the claims of a stateless session token. Stateful tokens, and stateless tokens that are encrypted, cannot
+     * be inspected locally and yield {@code null}.
+     */
+    private static JsonValue readStatelessSessionClaims(String tokenId) {
+        String[] parts = tokenId.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        byte[] payload = Base64url.decode(parts[1]);
+        if (payload == null) {
+            return null;
+        }
+        return readJson(new String(payload, StandardCharsets.UTF_8));
+    }
+
+    private static JsonValue readJson(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            JsonValue json = json(Json.readJson(value));
+            return json.isMap() ? json : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long toMillis(Duration duration) {
+        return duration.isUnlimited() ? Long.MAX_VALUE : duration.to(MILLISECONDS);
+    }
+
+    private static final class SessionToken {
+        private final String id;
+        private final long expiresAt;
+        private final long maxIdleTime;
+        private final long expiryMargin;
+        private final long idleMargin;
+        private volatile long lastUsed;
+
+        private SessionToken(String id, long expiresAt, long maxIdleTime, long lastUsed) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.maxIdleTime = maxIdleTime;
+            this.lastUsed = lastUsed;
+            this.expiryMargin = expiresAt == Long.MAX_VALUE
+                    ? 0 : Math.max(Math.min(EXPIRY_MARGIN, (expiresAt - lastUsed) / 2), 0);
+            this.idleMargin = Math.min(EXPIRY_MARGIN, maxIdleTime / 2);
+        }
+
+        private boolean isValidAt(long now) {
+            return now < expiresAt - expiryMargin && now - lastUsed < maxIdleTime - idleMargin;
+        }
+
+        private void touch(long now) {
+            lastUsed = now;
+        }
+    }
+}
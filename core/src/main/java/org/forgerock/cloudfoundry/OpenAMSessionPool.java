@@ -0,0 +1,79 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A fixed set of {@link OpenAMSession}s, one per configured OpenAM identity, over which outbound requests are spread.
+ *
+ * <p>Each request uses the healthy session with the fewest requests in flight. When no session is healthy, the one
+ * whose back-off ends first is used, so that requests still reach OpenAM and a recovered identity is noticed.</p>
+ */
+final class OpenAMSessionPool {
+
+    private final List<OpenAMSession> sessions;
+
+    /**
+     * Constructs a new pool.
+     *
+     * @param sessions The sessions in the pool; must not be empty.
+     */
+    OpenAMSessionPool(List<OpenAMSession> sessions) {
+        if (sessions.isEmpty()) {
+            throw new IllegalArgumentException("At least one OpenAM session is required");
+        }
+        this.sessions = Collections.unmodifiableList(new ArrayList<>(sessions));
+    }
+
+    /**
+     * Returns the sessions in the pool.
+     * @return An unmodifiable list of sessions.
+     */
+    List<OpenAMSession> getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Selects the session the next request should use.
+     *
+     * @return The least loaded healthy session.
+     */
+    OpenAMSession select() {
+        OpenAMSession selected = null;
+        int selectedInFlight = Integer.MAX_VALUE;
+        for (OpenAMSession session : sessions) {
+            int inFlight = session.getInFlight();
+            if (session.isHealthy() && inFlight < selectedInFlight) {
+                selected = session;
+                selectedInFlight = inFlight;
+            }
+        }
+        if (selected != null) {
+            return selected;
+        }
+        selected = sessions.get(0);
+        for (OpenAMSession session : sessions) {
+            if (session.getUnhealthyUntil() < selected.getUnhealthyUntil()) {
+                selected = session;
+            }
+        }
+        return selected;
+    }
+}
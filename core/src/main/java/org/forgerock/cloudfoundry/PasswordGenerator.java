@@ -16,17 +16,184 @@
 
 package org.forgerock.cloudfoundry;
 
-import java.util.UUID;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Securely generates passwords.
+ *
+ * <p>Each thread draws from its own SHA1PRNG generator, seeded once from the platform's non-blocking source, so that
+ * threads neither contend for a shared {@link SecureRandom} nor wait for the entropy pool. A background thread keeps a
+ * lock-free ring buffer of passwords generated in advance, from which callers take theirs; when the buffer has been
+ * emptied, callers generate their password themselves.</p>
  */
 public class PasswordGenerator {
+
+    /** The characters passwords are made of by default. */
+    public static final String DEFAULT_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    /** The length of passwords by default, which with the default alphabet gives about 190 bits of entropy. */
+    public static final int DEFAULT_LENGTH = 32;
+
+    /** The number of passwords generated in advance; a power of two. */
+    private static final int BUFFER_SIZE = 256;
+
+    /** The number of bytes drawn from a generator at once; rejected bytes are replaced from the same draw. */
+    private static final int DRAW_SIZE = 64;
+
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    private static final ThreadLocal<SecureRandom> GENERATOR = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                // Seeding explicitly before first use replaces SHA1PRNG's self-seeding, which may block
+                SecureRandom generator = SecureRandom.getInstance("SHA1PRNG");
+                byte[] seed = new byte[32];
+                synchronized (SEED_SOURCE) {
+                    SEED_SOURCE.nextBytes(seed);
+                }
+                generator.setSeed(seed);
+                return generator;
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    };
+
+    private final int length;
+    private final char[] alphabet;
+    private final int acceptedBytes;
+    private final AtomicReferenceArray<String> buffer = new AtomicReferenceArray<>(BUFFER_SIZE);
+    /** The sequence number of the next password to take; only ever increases. */
+    private final AtomicLong head = new AtomicLong();
+    /** The sequence number of the next password to generate; only written by the refill task. */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ThreadPoolExecutor refiller;
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                for (long next = tail.get(); next - head.get() < BUFFER_SIZE; next++) {
+                    buffer.set((int) (next & (BUFFER_SIZE - 1)), newPassword());
+                    tail.set(next + 1);
+                }
+            } finally {
+                refilling.set(false);
+            }
+        }
+    };
+
+    /**
+     * Constructs a generator of passwords of {@link #DEFAULT_LENGTH} characters from the {@link #DEFAULT_ALPHABET}.
+     */
+    public PasswordGenerator() {
+        this(DEFAULT_LENGTH, DEFAULT_ALPHABET);
+    }
+
+    /**
+     * Constructs a new generator and starts filling its buffer.
+     *
+     * @param length The number of characters of the passwords.
+     * @param alphabet The characters passwords are made of, each drawn with the same probability. Must contain
+     * between 2 and 256 distinct characters.
+     */
+    public PasswordGenerator(int length, String alphabet) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Passwords must have at least one character");
+        }
+        if (alphabet.length() < 2 || alphabet.length() > 256
+                || alphabet.codePointCount(0, alphabet.length()) != alphabet.length()) {
+            throw new IllegalArgumentException("The password alphabet must have between 2 and 256 characters");
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            if (alphabet.indexOf(alphabet.charAt(i)) != i) {
+                throw new IllegalArgumentException("The password alphabet repeats '" + alphabet.charAt(i) + "'");
+            }
+        }
+        this.length = length;
+        this.alphabet = alphabet.toCharArray();
+        // Bytes from the largest multiple of the alphabet size up are rejected so that every character is as likely
+        this.acceptedBytes = 256 - 256 % alphabet.length();
+        this.refiller = new ThreadPoolExecutor(1, 1, 60, SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "password-generator");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.refiller.allowCoreThreadTimeOut(true);
+        requestRefill();
+    }
+
     /**
      * Returns a randomly generated password.
      * @return A randomly generated password.
      */
     public String generatePassword() {
-        return UUID.randomUUID().toString();
+        String password = take();
+        requestRefill();
+        return password != null ? password : newPassword();
+    }
+
+    /**
+     * Stops generating passwords in the background. Passwords are still generated on demand.
+     */
+    public void stop() {
+        refiller.shutdownNow();
+    }
+
+    private String take() {
+        while (true) {
+            long next = head.get();
+            if (next >= tail.get()) {
+                return null;
+            }
+            String password = buffer.get((int) (next & (BUFFER_SIZE - 1)));
+            // The slot cannot have been refilled unless head has moved past it, in which case this fails
+            if (head.compareAndSet(next, next + 1)) {
+                return password;
+            }
+        }
+    }
+
+    private void requestRefill() {
+        if (tail.get() - head.get() <= BUFFER_SIZE / 2 && refilling.compareAndSet(false, true)) {
+            try {
+                refiller.execute(refill);
+            } catch (RejectedExecutionException e) {
+                refilling.set(false);
+            }
+        }
+    }
+
+    private String newPassword() {
+        SecureRandom generator = GENERATOR.get();
+        byte[] bytes = new byte[DRAW_SIZE];
+        char[] password = new char[length];
+        int used = DRAW_SIZE;
+        for (int i = 0; i < length;) {
+            if (used == DRAW_SIZE) {
+                generator.nextBytes(bytes);
+                used = 0;
+            }
+            int value = bytes[used++] & 0xff;
+            if (value < acceptedBytes) {
+                password[i++] = alphabet[value % alphabet.length];
+            }
+        }
+        return new String(password);
     }
 }
@@ -20,8 +20,13 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 
+import java.io.IOException;
+
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
 
 /**
  * Utility class for Responses.
@@ -77,4 +82,28 @@ public final class Responses {
         return new Response(status).setCause(exception).setEntity(json(object(field("description", description))));
     }
 
+    /**
+     * Returns a response once a change to the state of the broker has been stored, or an internal server error if it
+     * could not be stored.
+     *
+     * @param stored The {@link Promise} completed once the change has been stored.
+     * @param response The {@link Response} to return once the change has been stored.
+     * @return A {@link Promise} containing the {@link Response}.
+     */
+    public static Promise<Response, NeverThrowsException> whenStored(Promise<Void, IOException> stored,
+            final Response response) {
+        return stored.then(new Function<Void, Response, NeverThrowsException>() {
+            @Override
+            public Response apply(Void value) {
+                return response;
+            }
+        }, new Function<IOException, Response, NeverThrowsException>() {
+            @Override
+            public Response apply(IOException exception) {
+                return newErrorJsonResponse(Status.INTERNAL_SERVER_ERROR, exception,
+                        "Unable to store the state of the broker");
+            }
+        });
+    }
+
 }
@@ -0,0 +1,183 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Factory;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries idempotent OpenAM calls that fail with a transient error (502, 503 or 504), so that Cloud Foundry does not
+ * have to retry the whole operation.
+ *
+ * <p>Each retry waits for a random delay between zero and an exponentially growing cap ("full jitter"), so that
+ * callers that failed together do not retry together. The wait is a task scheduled on an executor, and holds no
+ * thread. Retries are limited by a budget that grows with each call made, so that retries add at most a fixed
+ * proportion of traffic to an OpenAM that is already failing.</p>
+ *
+ * <p>Responses carrying a {@code Retry-After} header, such as those of an open {@link CircuitBreaker}, are not
+ * retried.</p>
+ */
+public final class RetryPolicy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /** The budget is counted in thousandths of a retry. */
+    private static final long RETRY_COST = 1000;
+
+    /** The budget never exceeds this many retries, so that a long quiet period does not allow a burst of them. */
+    private static final long MAX_BUDGET = 10 * RETRY_COST;
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final long depositPerCall;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong budget = new AtomicLong(MAX_BUDGET);
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    /**
+     * Constructs a new retry policy.
+     *
+     * @param maxAttempts The maximum number of attempts of each call, including the first one.
+     * @param baseDelay The cap of the delay before the first retry, which doubles with each further retry.
+     * @param maxDelay The largest cap of the delay before a retry.
+     * @param budgetPercent The maximum number of retries, as a percentage of the calls made.
+     * @param scheduler The {@link ScheduledExecutorService} on which retries are scheduled.
+     */
+    public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, int budgetPercent,
+            ScheduledExecutorService scheduler) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay.to(MILLISECONDS);
+        this.maxDelay = maxDelay.to(MILLISECONDS);
+        this.depositPerCall = RETRY_COST * budgetPercent / 100;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Makes a call, retrying it while it fails with a transient error and the deadline of the request on whose behalf
+     * it is made leaves time for another attempt.
+     *
+     * @param context The {@link Context} of the request on whose behalf the call is made.
+     * @param call The {@link Factory} making the call each time it is invoked.
+     * @return A {@link Promise} containing the {@link Response} of the last attempt.
+     */
+    public Promise<Response, NeverThrowsException> execute(Context context,
+            Factory<Promise<Response, NeverThrowsException>> call) {
+        deposit();
+        return attempt(context, call, 1);
+    }
+
+    /**
+     * Returns the number of retries made.
+     * @return The number of retries.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Returns the number of retries that were not made because the retry budget was exhausted.
+     * @return The number of retries refused.
+     */
+    public long getBudgetExhausted() {
+        return budgetExhausted.get();
+    }
+
+    private Promise<Response, NeverThrowsException> attempt(final Context context,
+            final Factory<Promise<Response, NeverThrowsException>> call, final int attempt) {
+        return call.newInstance().thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
+            @Override
+            public Promise<Response, NeverThrowsException> apply(final Response response) {
+                if (attempt >= maxAttempts || !isTransient(response)) {
+                    return newResultPromise(response);
+                }
+                long cap = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+                long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+                if (delay >= DeadlineContext.getRemaining(context, TimeService.SYSTEM)) {
+                    return newResultPromise(response);
+                }
+                if (!withdraw()) {
+                    budgetExhausted.incrementAndGet();
+                    LOGGER.debug("Retry budget exhausted, not retrying OpenAM call");
+                    return newResultPromise(response);
+                }
+                final PromiseImpl<Response, NeverThrowsException> retried = PromiseImpl.create();
+                LOGGER.info("OpenAM returned " + response.getStatus().getCode() + ", retrying in " + delay + "ms");
+                try {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            retries.incrementAndGet();
+                            response.close();
+                            attempt(context, call, attempt + 1).thenOnResult(retried);
+                        }
+                    }, delay, MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The broker is stopping
+                    return newResultPromise(response);
+                }
+                return retried;
+            }
+        });
+    }
+
+    private static boolean isTransient(Response response) {
+        Status status = response.getStatus();
+        // The HTTP client answers 502 when OpenAM cannot be reached, whereas a 500 from OpenAM is unlikely to go away
+        return (status == Status.BAD_GATEWAY || status == Status.SERVICE_UNAVAILABLE
+                || status == Status.GATEWAY_TIMEOUT)
+                && !response.getHeaders().containsKey("Retry-After");
+    }
+
+    private void deposit() {
+        long current;
+        do {
+            current = budget.get();
+        } while (current < MAX_BUDGET && !budget.compareAndSet(current, Math.min(current + depositPerCall,
+                MAX_BUDGET)));
+    }
+
+    private boolean withdraw() {
+        long current;
+        do {
+            current = budget.get();
+            if (current < RETRY_COST) {
+                return false;
+            }
+        } while (!budget.compareAndSet(current, current - RETRY_COST));
+        return true;
+    }
+}
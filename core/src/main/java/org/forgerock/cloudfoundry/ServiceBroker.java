@@ -16,13 +16,22 @@
 
 package org.forgerock.cloudfoundry;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import org.forgerock.cloudfoundry.handlers.ServiceBrokerHandler;
+import org.forgerock.cloudfoundry.persistence.FileStateStore;
+import org.forgerock.cloudfoundry.persistence.InMemoryStateStore;
+import org.forgerock.cloudfoundry.persistence.StateStore;
 import org.forgerock.cloudfoundry.services.Service;
 import org.forgerock.cloudfoundry.services.openam.OpenAMOAuth2Service;
 import org.forgerock.http.HttpApplicationException;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Root HTTP request handler for the service broker.
@@ -31,7 +40,15 @@ import org.forgerock.http.HttpApplicationException;
  */
 public class ServiceBroker {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceBroker.class);
+
     private final Map<String, Service> services = new HashMap<>();
+    private final OpenAMClient openAMClient;
+    private final OpenAMOAuth2Service openAmoAuth2Service;
+    private final StateStore stateStore;
+    private final AsyncOperations asyncOperations;
+    private final AdmissionControlFilter admissionControl;
+    private final Metrics metrics = new Metrics();
 
     /**
      * Constructs a new ServiceBroker.
@@ -39,14 +56,172 @@ public class ServiceBroker {
      * @param configuration The {@link Configuration} for the underlying {@link OpenAMClient}.
      * @param pwGen The {@link PasswordGenerator} used to generate client passwords.
      * @throws HttpApplicationException if the underlying {@link OpenAMClient} throws a
-     *                                  {@link HttpApplicationException}.
+     *                                  {@link HttpApplicationException}, or the broker state cannot be opened.
      */
     public ServiceBroker(Configuration configuration, PasswordGenerator pwGen)
             throws HttpApplicationException {
 
-        OpenAMClient openAMClient = new OpenAMClient(configuration);
-        OpenAMOAuth2Service openAmoAuth2Service = new OpenAMOAuth2Service(openAMClient, pwGen);
+        String stateDirectory = configuration.getOptions().get(Configuration.STATE_DIRECTORY);
+        if (stateDirectory == null) {
+            stateStore = new InMemoryStateStore();
+        } else {
+            try {
+                stateStore = FileStateStore.open(new File(stateDirectory),
+                        configuration.getOptions().get(Configuration.STATE_SNAPSHOT_INTERVAL));
+            } catch (IOException e) {
+                throw new HttpApplicationException("Unable to open the broker state in " + stateDirectory, e);
+            }
+        }
+        asyncOperations = new AsyncOperations(stateStore,
+                configuration.getOptions().get(Configuration.ASYNC_OPERATION_THREADS),
+                configuration.getOptions().get(Configuration.ASYNC_OPERATION_QUEUE_SIZE),
+                configuration.getOptions().get(Configuration.ASYNC_OPERATION_TIMEOUT));
+        admissionControl = new AdmissionControlFilter(
+                configuration.getOptions().get(Configuration.BROKER_MAX_CONCURRENT_REQUESTS),
+                configuration.getOptions().get(Configuration.BROKER_MAX_QUEUED_REQUESTS),
+                configuration.getOptions().get(Configuration.BROKER_QUEUE_TARGET_DELAY),
+                configuration.getOptions().get(Configuration.BROKER_QUEUE_INTERVAL), TimeService.SYSTEM);
+        openAMClient = new OpenAMClient(configuration, metrics);
+        openAmoAuth2Service = new OpenAMOAuth2Service(openAMClient, pwGen, configuration, stateStore);
         services.put(OpenAMOAuth2Service.SERVICE_ID, openAmoAuth2Service);
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        metrics.registerGauge("broker_requests_in_flight", "Cloud Controller requests being handled.",
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return admissionControl.getInFlight();
+                    }
+                });
+        metrics.registerGauge("broker_requests_queued", "Cloud Controller requests waiting to be handled.",
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return admissionControl.getQueued();
+                    }
+                });
+        metrics.registerCounter("broker_requests_rejected_total",
+                "Cloud Controller requests rejected with 429 because too many were waiting.", new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return admissionControl.getRejected();
+                    }
+                });
+        metrics.registerCounter("broker_requests_shed_total",
+                "Cloud Controller requests shed with 503 after waiting too long.", new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return admissionControl.getShed();
+                    }
+                });
+        final CircuitBreaker circuitBreaker = openAMClient.getCircuitBreaker();
+        metrics.registerGauge("openam_circuit_breaker_state",
+                "State of the OpenAM circuit breaker: 0 closed, 1 open, 2 half-open.", new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return circuitBreaker.getState().ordinal();
+                    }
+                });
+        for (final CircuitBreaker.State state : CircuitBreaker.State.values()) {
+            metrics.registerCounter("openam_circuit_breaker_transitions_total{state=\""
+                    + state.name().toLowerCase(Locale.ROOT) + "\"}",
+                    "Transitions of the OpenAM circuit breaker to each state.", new Metrics.Gauge() {
+                        @Override
+                        public long getValue() {
+                            return circuitBreaker.getTransitionCount(state);
+                        }
+                    });
+        }
+        final RetryPolicy retryPolicy = openAMClient.getRetryPolicy();
+        metrics.registerCounter("openam_retries_total", "Retries of OpenAM calls.", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return retryPolicy.getRetries();
+            }
+        });
+        metrics.registerCounter("openam_retry_budget_exhausted_total",
+                "OpenAM calls not retried because the retry budget was exhausted.", new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return retryPolicy.getBudgetExhausted();
+                    }
+                });
+        final ConnectionPoolMonitor connectionPool = openAMClient.getConnectionPool();
+        metrics.registerGauge("openam_connections_max", "Size of the OpenAM connection pool.", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return connectionPool.getMaxConnections();
+            }
+        });
+        metrics.registerGauge("openam_connections_leased", "OpenAM connections serving a request.",
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return connectionPool.getLeased();
+                    }
+                });
+        metrics.registerGauge("openam_connections_pending", "Requests waiting for an OpenAM connection.",
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return connectionPool.getPending();
+                    }
+                });
+        metrics.registerGauge("openam_connections_available", "OpenAM connections that could be leased immediately.",
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return connectionPool.getAvailable();
+                    }
+                });
+    }
+
+    /**
+     * Starts the service broker, resolving the OpenAM settings it needs before the first request arrives and loading
+     * the index of bindings in the background.
+     */
+    public void start() {
+        openAMClient.start();
+        openAmoAuth2Service.start();
+    }
+
+    /**
+     * Stops the service broker, releasing its connections to OpenAM and closing its state.
+     */
+    public void stop() {
+        asyncOperations.stop();
+        openAMClient.stop();
+        try {
+            stateStore.close();
+        } catch (IOException e) {
+            LOGGER.error("Unable to close the broker state", e);
+        }
+    }
+
+    /**
+     * Returns the asynchronous operations of this service broker.
+     * @return the asynchronous operations of this service broker.
+     */
+    public AsyncOperations getAsyncOperations() {
+        return asyncOperations;
+    }
+
+    /**
+     * Returns the filter limiting the number of requests this service broker handles at once.
+     * @return the admission control of this service broker.
+     */
+    public AdmissionControlFilter getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * Returns the latencies and counters of this service broker.
+     * @return the metrics of this service broker.
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     /**
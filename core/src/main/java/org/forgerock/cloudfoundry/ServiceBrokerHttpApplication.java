@@ -16,12 +16,15 @@
 
 package org.forgerock.cloudfoundry;
 
+import static org.forgerock.http.handler.Handlers.chainOf;
+
 import org.forgerock.cloudfoundry.handlers.ServiceBrokerHandler;
 import org.forgerock.http.Handler;
 import org.forgerock.http.HttpApplication;
 import org.forgerock.http.HttpApplicationException;
 import org.forgerock.http.io.Buffer;
 import org.forgerock.util.Factory;
+import org.forgerock.util.time.TimeService;
 
 /**
  * The main HTTP Application in the service broker.
@@ -30,16 +33,42 @@ import org.forgerock.util.Factory;
  */
 public class ServiceBrokerHttpApplication implements HttpApplication {
 
+    private final Configuration configuration;
+    private PasswordGenerator passwordGenerator;
     private ServiceBroker broker;
 
+    /**
+     * Constructs an application configured from the environment when it is started.
+     */
+    public ServiceBrokerHttpApplication() {
+        this(null);
+    }
+
+    /**
+     * Constructs an application with the given configuration.
+     *
+     * @param configuration The {@link Configuration} of the broker, or {@code null} to read it from the environment
+     * when the application is started.
+     */
+    public ServiceBrokerHttpApplication(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
     @Override
     public Handler start() throws HttpApplicationException {
-        Configuration configuration = new ConfigurationEnvironmentReader().read();
+        Configuration configuration = this.configuration != null
+                ? this.configuration
+                : new ConfigurationEnvironmentReader().read();
 
-        broker = new ServiceBroker(configuration, new PasswordGenerator());
+        passwordGenerator = new PasswordGenerator(configuration.getOptions().get(Configuration.CLIENT_PASSWORD_LENGTH),
+                configuration.getOptions().get(Configuration.CLIENT_PASSWORD_ALPHABET));
+        broker = new ServiceBroker(configuration, passwordGenerator);
+        broker.start();
 
-        return new ServiceBrokerHandler(broker.getServices(), configuration.getBrokerUsername(),
-                configuration.getBrokerPassword());
+        return chainOf(new ServiceBrokerHandler(broker.getServices(), broker.getAsyncOperations(),
+                broker.getAdmissionControl(), broker.getMetrics(), configuration.getBrokerCredentials()),
+                new DeadlineFilter(configuration.getOptions().get(Configuration.BROKER_REQUEST_TIMEOUT),
+                        TimeService.SYSTEM));
     }
 
     @Override
@@ -48,6 +77,16 @@ public class ServiceBrokerHttpApplication implements HttpApplication {
     }
 
     @Override
-    public void stop() { }
+    public void stop() {
+        // Stopping twice is harmless, as both the servlet container and the code embedding it may stop the application
+        if (broker != null) {
+            broker.stop();
+            broker = null;
+        }
+        if (passwordGenerator != null) {
+            passwordGenerator.stop();
+            passwordGenerator = null;
+        }
+    }
 
 }
@@ -71,7 +71,7 @@ public class BindingHandler implements Handler {
                     return newResultPromise(newErrorJsonResponse(BAD_REQUEST,
                             "Unknown service_id : " + serviceId));
                 }
-                return service.getBindingService().bind(instanceId, bindingId, body.get("bind_resource"),
+                return service.getBindingService().bind(context, instanceId, bindingId, body.get("bind_resource"),
                         body.get("parameters"));
             } catch (IOException e) {
                 return newResultPromise(newErrorJsonResponse(INTERNAL_SERVER_ERROR, e));
@@ -85,7 +85,7 @@ public class BindingHandler implements Handler {
                 return newResultPromise(newErrorJsonResponse(BAD_REQUEST,
                         "Unknown service_id : " + serviceId));
             }
-            return service.getBindingService().unbind(instanceId, bindingId);
+            return service.getBindingService().unbind(context, instanceId, bindingId);
         default:
             return newResultPromise(newEmptyJsonResponse(METHOD_NOT_ALLOWED));
         }
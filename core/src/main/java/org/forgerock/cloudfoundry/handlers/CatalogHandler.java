@@ -23,13 +23,18 @@ import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.util.promise.Promises.newResultPromise;
 
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 import org.forgerock.cloudfoundry.services.Service;
 import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Header;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
+import org.forgerock.http.util.Json;
 import org.forgerock.json.JsonValue;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.promise.NeverThrowsException;
@@ -37,10 +42,16 @@ import org.forgerock.util.promise.Promise;
 
 /**
  * Handles Catalog calls from Cloud Foundry.
+ *
+ * <p>The metadata of the services does not change once the broker has started, so the catalog is serialized once
+ * and served as is. Its {@code ETag} lets callers that poll the catalog revalidate it with {@code If-None-Match}.</p>
  */
 public class CatalogHandler implements Handler {
 
-    private final Iterable<Service> services;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] catalog;
+    private final String etag;
 
     /**
      * Constructs a new CatalogHandler.
@@ -48,7 +59,17 @@ public class CatalogHandler implements Handler {
      * @param services The services that will be exposed by this catalog.
      */
     public CatalogHandler(Iterable<Service> services) {
-        this.services = services;
+        List<Object> arrayServices = array();
+        for (Service service : services) {
+            arrayServices.add(service.getServiceMetadata().getObject());
+        }
+        JsonValue result = json(object(field("services", arrayServices)));
+        try {
+            this.catalog = Json.writeJson(result.getObject());
+            this.etag = "\"" + toHex(MessageDigest.getInstance("SHA-256").digest(catalog), 16) + "\"";
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to serialize the service catalog", e);
+        }
     }
 
     /**
@@ -65,12 +86,42 @@ public class CatalogHandler implements Handler {
             return newResultPromise(newEmptyJsonResponse(Status.METHOD_NOT_ALLOWED));
         }
 
-        List<Object> arrayServices = array();
-        for (Service service : services) {
-            arrayServices.add(service.getServiceMetadata());
+        Response response;
+        if (matchesEtag(request.getHeaders().get("If-None-Match"))) {
+            response = new Response(Status.NOT_MODIFIED);
+        } else {
+            response = new Response(Status.OK);
+            response.getEntity().setBytes(catalog);
+            response.getHeaders().put("Content-Type", "application/json; charset=UTF-8");
         }
-        JsonValue result = json(object(field("services", arrayServices)));
+        response.getHeaders().put("ETag", etag);
+        return newResultPromise(response);
+    }
+
+    private boolean matchesEtag(Header ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String value : ifNoneMatch.getValues()) {
+            for (String candidate : value.split(",")) {
+                candidate = candidate.trim();
+                // If-None-Match uses the weak comparison, which ignores the weakness indicator
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-        return newResultPromise(new Response(Status.OK).setEntity(result));
+    private static String toHex(byte[] bytes, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            hex.append(HEX[(bytes[i] >> 4) & 0xf]).append(HEX[bytes[i] & 0xf]);
+        }
+        return hex.toString();
     }
 }
@@ -0,0 +1,54 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.handlers;
+
+import static org.forgerock.cloudfoundry.Responses.newEmptyJsonResponse;
+import static org.forgerock.http.protocol.Status.METHOD_NOT_ALLOWED;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import org.forgerock.cloudfoundry.AsyncOperations;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.routing.UriRouterContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Reports the state of the last asynchronous operation on a service instance.
+ */
+public class LastOperationHandler implements Handler {
+
+    private final AsyncOperations asyncOperations;
+
+    LastOperationHandler(AsyncOperations asyncOperations) {
+        this.asyncOperations = asyncOperations;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+        // /v2/service_instances/:instance_id/last_operation
+        // https://docs.cloudfoundry.org/services/api.html#polling
+        if (!"GET".equals(request.getMethod())) {
+            return newResultPromise(newEmptyJsonResponse(METHOD_NOT_ALLOWED));
+        }
+        String instanceId = context.asContext(UriRouterContext.class).getUriTemplateVariables().get("instanceId");
+        String operationId = request.getForm().getFirst("operation");
+        return newResultPromise(asyncOperations.getLastOperation(instanceId, operationId));
+    }
+}
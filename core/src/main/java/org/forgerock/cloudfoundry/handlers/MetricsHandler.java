@@ -0,0 +1,55 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.handlers;
+
+import static org.forgerock.cloudfoundry.Responses.newEmptyJsonResponse;
+import static org.forgerock.http.protocol.Status.METHOD_NOT_ALLOWED;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.nio.charset.StandardCharsets;
+
+import org.forgerock.cloudfoundry.Metrics;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Exposes the {@link Metrics} of the broker in the Prometheus text format.
+ */
+public class MetricsHandler implements Handler {
+
+    private final Metrics metrics;
+
+    MetricsHandler(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+        if (!"GET".equals(request.getMethod())) {
+            return newResultPromise(newEmptyJsonResponse(METHOD_NOT_ALLOWED));
+        }
+        Response response = new Response(Status.OK);
+        response.getEntity().setBytes(metrics.toPrometheus().getBytes(StandardCharsets.UTF_8));
+        response.getHeaders().put("Content-Type", Metrics.getContentType());
+        return newResultPromise(response);
+    }
+}
@@ -26,6 +26,7 @@ import static org.forgerock.util.promise.Promises.newResultPromise;
 import java.io.IOException;
 import java.util.Map;
 
+import org.forgerock.cloudfoundry.AsyncOperations;
 import org.forgerock.cloudfoundry.services.ProvisioningService;
 import org.forgerock.cloudfoundry.services.Service;
 import org.forgerock.http.Handler;
@@ -34,6 +35,7 @@ import org.forgerock.http.protocol.Response;
 import org.forgerock.http.routing.UriRouterContext;
 import org.forgerock.json.JsonValue;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.Factory;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.slf4j.Logger;
@@ -41,21 +43,27 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Delegates the provision/deprovision operations to the requested service.
+ *
+ * <p>When the Cloud Controller accepts incomplete operations, they are run by {@link AsyncOperations} and a 202
+ * Accepted response is returned immediately.</p>
  */
 public class ProvisioningHandler implements Handler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningHandler.class);
 
     private final Map<String, Service> services;
+    private final AsyncOperations asyncOperations;
 
-    ProvisioningHandler(Map<String, Service> services) {
+    ProvisioningHandler(Map<String, Service> services, AsyncOperations asyncOperations) {
         this.services = services;
+        this.asyncOperations = asyncOperations;
     }
 
     @Override
-    public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+    public Promise<Response, NeverThrowsException> handle(final Context context, Request request) {
         // /v2/service_instances/:instance_id
         final String instanceId = context.asContext(UriRouterContext.class).getUriTemplateVariables().get("instanceId");
+        final boolean acceptsIncomplete = acceptsIncomplete(request);
 
         switch (request.getMethod()) {
         case "PUT":
@@ -69,14 +77,34 @@ public class ProvisioningHandler implements Handler {
                     return newResultPromise(newErrorJsonResponse(BAD_REQUEST,
                             "Unknown service_id : " + serviceId));
                 }
-                ProvisioningService provisioningService = service.getProvisioningService();
-                JsonValue parameters = body.get("parameters");
+                final ProvisioningService provisioningService = service.getProvisioningService();
+                final JsonValue parameters = body.get("parameters");
 
                 switch (request.getMethod()) {
                 case "PUT":
-                    return provisioningService.provision(instanceId, parameters);
+                    if (acceptsIncomplete) {
+                        return asyncOperations.start(instanceId, AsyncOperations.PROVISION,
+                                new Factory<Promise<Response, NeverThrowsException>>() {
+                                    @Override
+                                    public Promise<Response, NeverThrowsException> newInstance() {
+                                        Context operationContext = asyncOperations.newOperationContext(context);
+                                        return provisioningService.provision(operationContext, instanceId, parameters);
+                                    }
+                                });
+                    }
+                    return provisioningService.provision(context, instanceId, parameters);
                 case "PATCH":
-                    return provisioningService.update(instanceId, parameters);
+                    if (acceptsIncomplete) {
+                        return asyncOperations.start(instanceId, AsyncOperations.UPDATE,
+                                new Factory<Promise<Response, NeverThrowsException>>() {
+                                    @Override
+                                    public Promise<Response, NeverThrowsException> newInstance() {
+                                        Context operationContext = asyncOperations.newOperationContext(context);
+                                        return provisioningService.update(operationContext, instanceId, parameters);
+                                    }
+                                });
+                    }
+                    return provisioningService.update(context, instanceId, parameters);
                 }
             } catch (IOException e) {
                 return newResultPromise(newErrorJsonResponse(INTERNAL_SERVER_ERROR, e));
@@ -90,9 +118,24 @@ public class ProvisioningHandler implements Handler {
                 return newResultPromise(newErrorJsonResponse(BAD_REQUEST,
                         "Unknown service_id : " + serviceId));
             }
-            return service.getProvisioningService().deprovision(instanceId);
+            final ProvisioningService provisioningService = service.getProvisioningService();
+            if (acceptsIncomplete) {
+                return asyncOperations.start(instanceId, AsyncOperations.DEPROVISION,
+                        new Factory<Promise<Response, NeverThrowsException>>() {
+                            @Override
+                            public Promise<Response, NeverThrowsException> newInstance() {
+                                Context operationContext = asyncOperations.newOperationContext(context);
+                                return provisioningService.deprovision(operationContext, instanceId);
+                            }
+                        });
+            }
+            return provisioningService.deprovision(context, instanceId);
         default:
             return newResultPromise(newEmptyJsonResponse(METHOD_NOT_ALLOWED));
         }
     }
+
+    private static boolean acceptsIncomplete(Request request) {
+        return request.getUri() != null && "true".equals(request.getForm().getFirst("accepts_incomplete"));
+    }
 }
@@ -20,9 +20,18 @@ import static org.forgerock.http.handler.Handlers.chainOf;
 import static org.forgerock.http.routing.RouteMatchers.requestUriMatcher;
 import static org.forgerock.http.routing.RoutingMode.EQUALS;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+import org.forgerock.cloudfoundry.AdmissionControlFilter;
+import org.forgerock.cloudfoundry.AsyncOperations;
 import org.forgerock.cloudfoundry.AuthenticationFilter;
+import org.forgerock.cloudfoundry.BrokerCredential;
+import org.forgerock.cloudfoundry.Configuration;
+import org.forgerock.cloudfoundry.Metrics;
+import org.forgerock.cloudfoundry.Metrics.Route;
+import org.forgerock.cloudfoundry.MetricsFilter;
 import org.forgerock.cloudfoundry.ServiceBroker;
 import org.forgerock.cloudfoundry.services.Service;
 import org.forgerock.http.Handler;
@@ -32,6 +41,7 @@ import org.forgerock.http.routing.Router;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
 
 /**
  * Root HTTP request handler for the service broker.
@@ -42,22 +52,78 @@ public class ServiceBrokerHandler implements Handler {
 
     private final Handler handler;
 
+    /**
+     * Construct a new ServiceBrokerHandler, whose admission control uses the default limits.
+     * @param services the service to manage.
+     * @param asyncOperations the asynchronous operations of the service broker.
+     * @param brokerUsername the username to access this service broker.
+     * @param brokerPassword the password to access this service broker.
+     */
+    public ServiceBrokerHandler(Map<String, Service> services, AsyncOperations asyncOperations,
+            String brokerUsername, String brokerPassword) {
+        this(services, asyncOperations, new AdmissionControlFilter(
+                Configuration.BROKER_MAX_CONCURRENT_REQUESTS.getDefaultValue(),
+                Configuration.BROKER_MAX_QUEUED_REQUESTS.getDefaultValue(),
+                Configuration.BROKER_QUEUE_TARGET_DELAY.getDefaultValue(),
+                Configuration.BROKER_QUEUE_INTERVAL.getDefaultValue(), TimeService.SYSTEM),
+                new Metrics(), brokerUsername, brokerPassword);
+    }
+
     /**
      * Construct a new ServiceBrokerHandler.
      * @param services the service to manage.
+     * @param asyncOperations the asynchronous operations of the service broker.
+     * @param admissionControl the filter limiting the requests handled at once, which catalog requests bypass.
+     * @param metrics the metrics recording request latencies and authentication, exposed on {@code /metrics}.
      * @param brokerUsername the username to access this service broker.
      * @param brokerPassword the password to access this service broker.
      */
-    public ServiceBrokerHandler(Map<String, Service> services, String brokerUsername, String brokerPassword) {
+    public ServiceBrokerHandler(Map<String, Service> services, AsyncOperations asyncOperations,
+            AdmissionControlFilter admissionControl, Metrics metrics, String brokerUsername, String brokerPassword) {
+        this(services, asyncOperations, admissionControl, metrics,
+                Collections.singletonList(new BrokerCredential(brokerUsername, brokerPassword)));
+    }
+
+    /**
+     * Construct a new ServiceBrokerHandler accepting any of several credentials.
+     * @param services the service to manage.
+     * @param asyncOperations the asynchronous operations of the service broker.
+     * @param admissionControl the filter limiting the requests handled at once, which catalog requests bypass.
+     * @param metrics the metrics recording request latencies and authentication, exposed on {@code /metrics}.
+     * @param brokerCredentials the credentials with which this service broker may be accessed.
+     */
+    public ServiceBrokerHandler(Map<String, Service> services, AsyncOperations asyncOperations,
+            AdmissionControlFilter admissionControl, Metrics metrics, List<BrokerCredential> brokerCredentials) {
         Router router = new Router();
         router.addRoute(requestUriMatcher(EQUALS, "/v2/catalog"),
-                new CatalogHandler(services.values()));
+                chainOf(new CatalogHandler(services.values()), new MetricsFilter(metrics, Route.CATALOG)));
         router.addRoute(requestUriMatcher(EQUALS, "/v2/service_instances/{instanceId}"),
-                new ProvisioningHandler(services));
+                chainOf(new ProvisioningHandler(services, asyncOperations),
+                        new MetricsFilter(metrics, Route.PROVISIONING), admissionControl));
+        router.addRoute(requestUriMatcher(EQUALS, "/v2/service_instances/{instanceId}/last_operation"),
+                chainOf(new LastOperationHandler(asyncOperations),
+                        new MetricsFilter(metrics, Route.LAST_OPERATION), admissionControl));
         router.addRoute(requestUriMatcher(EQUALS, "/v2/service_instances/{instanceId}/service_bindings/{bindingId}"),
-                new BindingHandler(services));
+                chainOf(new BindingHandler(services), new MetricsFilter(metrics, Route.BINDING), admissionControl));
+        router.addRoute(requestUriMatcher(EQUALS, "/metrics"), new MetricsHandler(metrics));
 
-        handler = chainOf(router, new AuthenticationFilter(brokerUsername, brokerPassword));
+        final AuthenticationFilter authentication = new AuthenticationFilter(brokerCredentials);
+        metrics.registerCounter("broker_password_derivations_total",
+                "Passwords presented by the Cloud Controller that were hashed to verify them.", new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return authentication.getDerivations();
+                    }
+                });
+        metrics.registerCounter("broker_authentication_throttled_total",
+                "Cloud Controller requests rejected with 429 after waiting too long to hash their password.",
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return authentication.getThrottled();
+                    }
+                });
+        handler = chainOf(router, authentication);
     }
 
     @Override
@@ -0,0 +1,517 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.persistence;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StateStore} that keeps its state in memory and makes changes durable in a directory of the local
+ * filesystem, using a write-ahead log and snapshots.
+ *
+ * <p>Each change is appended to a memory-mapped log file and applied in memory. A single thread then flushes the log
+ * to disk and completes the promises of every change appended since the previous flush, so that concurrent changes
+ * share one {@code fsync}. When a log file is full, and periodically, a new log file is started and a snapshot of the
+ * whole state is written alongside the log files it makes redundant, which are then deleted.</p>
+ *
+ * <p>On startup the latest snapshot is loaded and the log files written after it are replayed up to the first
+ * incomplete or corrupt record, which is where the broker stopped. Snapshots are written while changes continue, so
+ * a snapshot may already include some of the changes in the log files replayed after it; since each change sets or
+ * removes keys outright, replaying it again gives the same state.</p>
+ */
+public final class FileStateStore implements StateStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileStateStore.class);
+
+    /** The size of each log file, which bounds both the time to replay the log and the disk space it uses. */
+    static final int DEFAULT_LOG_SIZE = 16 * 1024 * 1024;
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final String LOG_PREFIX = "log-";
+    private static final int SNAPSHOT_MAGIC = 0x43465353;
+    private static final int RECORD_HEADER = 8;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_ALL = 3;
+
+    private final File directory;
+    private final int logSize;
+    private final InMemoryStateStore state = new InMemoryStateStore();
+    private final Object appendLock = new Object();
+    private final Thread syncThread;
+    private final ScheduledExecutorService snapshots;
+
+    // Guarded by appendLock
+    private long generation;
+    private long oldestGeneration;
+    private FileChannel logChannel;
+    private MappedByteBuffer log;
+    private List<PromiseImpl<Void, IOException>> unsynced = new ArrayList<>();
+    private boolean closed;
+
+    private FileStateStore(File directory, int logSize) {
+        this.directory = directory;
+        this.logSize = logSize;
+        this.syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, "state-log-sync");
+        this.syncThread.setDaemon(true);
+        this.snapshots = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "state-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens the store kept in the given directory, creating it if necessary and recovering the state it holds.
+     *
+     * @param directory The directory holding the snapshot and log files.
+     * @param snapshotInterval The interval between snapshots, or an unlimited duration to only take snapshots when a
+     * log file is full.
+     * @return The opened store.
+     * @throws IOException If the directory cannot be used or holds a corrupt snapshot.
+     */
+    public static FileStateStore open(File directory, Duration snapshotInterval) throws IOException {
+        return open(directory, snapshotInterval, DEFAULT_LOG_SIZE);
+    }
+
+    static FileStateStore open(File directory, Duration snapshotInterval, int logSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create state directory " + directory);
+        }
+        FileStateStore store = new FileStateStore(directory, logSize);
+        store.recover();
+        store.syncThread.start();
+        if (!snapshotInterval.isUnlimited()) {
+            long interval = snapshotInterval.to(MILLISECONDS);
+            store.snapshots.scheduleWithFixedDelay(store.newSnapshotTask(), interval, interval, MILLISECONDS);
+        }
+        return store;
+    }
+
+    @Override
+    public String get(Table table, String key) {
+        return state.get(table, key);
+    }
+
+    @Override
+    public SortedMap<String, String> getAll(Table table, String prefix) {
+        return state.getAll(table, prefix);
+    }
+
+    @Override
+    public Promise<Void, IOException> put(Table table, String key, String value) {
+        return append(PUT, table, key, value);
+    }
+
+    @Override
+    public Promise<Void, IOException> remove(Table table, String key) {
+        return append(REMOVE, table, key, null);
+    }
+
+    @Override
+    public Promise<Void, IOException> removeAll(Table table, String prefix) {
+        return append(REMOVE_ALL, table, prefix, null);
+    }
+
+    /**
+     * Takes a snapshot of the state and deletes the log files it makes redundant.
+     *
+     * @throws IOException If the snapshot cannot be written.
+     */
+    void snapshot() throws IOException {
+        long snapshotGeneration;
+        synchronized (appendLock) {
+            if (closed || (oldestGeneration == generation && log.position() == 0)) {
+                return;
+            }
+            rotate();
+            snapshotGeneration = generation;
+        }
+        writeSnapshot(snapshotGeneration);
+        for (long logGeneration : listLogGenerations()) {
+            if (logGeneration < snapshotGeneration) {
+                Files.deleteIfExists(logFile(logGeneration).toPath());
+            }
+        }
+        synchronized (appendLock) {
+            oldestGeneration = snapshotGeneration;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshots.shutdown();
+        try {
+            snapshots.awaitTermination(1, MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appendLock.notifyAll();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            log.force();
+            logChannel.close();
+        }
+    }
+
+    private Promise<Void, IOException> append(byte operation, Table table, String key, String value) {
+        byte[] record;
+        try {
+            record = encodeRecord(operation, table, key, value);
+        } catch (IOException e) {
+            return Promises.<Void, IOException>newExceptionPromise(e);
+        }
+        PromiseImpl<Void, IOException> synced = PromiseImpl.create();
+        synchronized (appendLock) {
+            if (closed) {
+                return Promises.<Void, IOException>newExceptionPromise(new IOException("State store is closed"));
+            }
+            if (log.remaining() < RECORD_HEADER + record.length) {
+                if (RECORD_HEADER + record.length > logSize) {
+                    return Promises.<Void, IOException>newExceptionPromise(
+                            new IOException("State record for " + key + " is too large"));
+                }
+                try {
+                    rotate();
+                } catch (IOException e) {
+                    return Promises.<Void, IOException>newExceptionPromise(e);
+                }
+                scheduleSnapshot();
+            }
+            log.putInt(record.length);
+            log.putInt(checksum(record, 0, record.length));
+            log.put(record);
+            // Applied while holding the lock so that the state in memory changes in log order
+            apply(operation, table, key, value);
+            unsynced.add(synced);
+            appendLock.notifyAll();
+        }
+        return synced;
+    }
+
+    /**
+     * Flushes the log whenever changes have been appended, completing their promises once they are on disk. Changes
+     * appended during a flush are flushed together by the next one.
+     */
+    private void sync() {
+        while (true) {
+            List<PromiseImpl<Void, IOException>> batch;
+            MappedByteBuffer buffer;
+            synchronized (appendLock) {
+                while (unsynced.isEmpty() && !closed) {
+                    try {
+                        appendLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (unsynced.isEmpty()) {
+                    return;
+                }
+                batch = unsynced;
+                unsynced = new ArrayList<>();
+                buffer = log;
+            }
+            IOException failure = null;
+            try {
+                buffer.force();
+            } catch (RuntimeException e) {
+                LOGGER.error("Unable to flush the state log", e);
+                failure = new IOException("Unable to flush the state log", e);
+            }
+            for (PromiseImpl<Void, IOException> promise : batch) {
+                if (failure == null) {
+                    promise.handleResult(null);
+                } else {
+                    promise.handleException(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes the current log file and starts the next one. Called with the append lock held.
+     */
+    private void rotate() throws IOException {
+        log.force();
+        logChannel.close();
+        openLog(generation + 1);
+    }
+
+    private void openLog(long logGeneration) throws IOException {
+        logChannel = FileChannel.open(logFile(logGeneration).toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Mapping extends the new file to its full size, filled with zeros that mark the end of the log
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, logSize);
+        generation = logGeneration;
+        syncDirectory();
+    }
+
+    private void scheduleSnapshot() {
+        try {
+            snapshots.execute(newSnapshotTask());
+        } catch (RejectedExecutionException e) {
+            // The store is closing, the next startup will replay the log instead
+        }
+    }
+
+    private Runnable newSnapshotTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Unable to take a snapshot of the broker state in " + directory, e);
+                }
+            }
+        };
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        long snapshotGeneration = readSnapshot();
+        List<Long> logGenerations = listLogGenerations();
+        long nextGeneration = snapshotGeneration;
+        long oldest = Long.MAX_VALUE;
+        int records = 0;
+        for (long logGeneration : logGenerations) {
+            if (logGeneration < snapshotGeneration) {
+                // Left behind by a snapshot interrupted before it could delete them
+                Files.deleteIfExists(logFile(logGeneration).toPath());
+            } else {
+                records += replay(logGeneration);
+                oldest = Math.min(oldest, logGeneration);
+                nextGeneration = logGeneration + 1;
+            }
+        }
+        synchronized (appendLock) {
+            openLog(nextGeneration);
+            oldestGeneration = Math.min(oldest, nextGeneration);
+        }
+        LOGGER.info("Recovered broker state from " + directory + ", replaying " + records + " changes, in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        if (records > 0) {
+            scheduleSnapshot();
+        }
+    }
+
+    private long readSnapshot() throws IOException {
+        File file = new File(directory, SNAPSHOT);
+        if (!file.exists()) {
+            return 0;
+        }
+        byte[] content = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        try {
+            int length = content.length - 4;
+            buffer.position(length);
+            if (buffer.getInt() != checksum(content, 0, length) || buffer.getInt(0) != SNAPSHOT_MAGIC) {
+                throw new IOException("State snapshot " + file + " is corrupt");
+            }
+            buffer.position(4);
+            long snapshotGeneration = buffer.getLong();
+            for (int table = buffer.get(); table >= 0; table = buffer.get()) {
+                state.apply(Table.values()[table], readString(buffer), readString(buffer));
+            }
+            return snapshotGeneration;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                | NegativeArraySizeException e) {
+            throw new IOException("State snapshot " + file + " is corrupt", e);
+        }
+    }
+
+    private void writeSnapshot(long snapshotGeneration) throws IOException {
+        File temporary = new File(directory, SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc)));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotGeneration);
+            for (Table table : Table.values()) {
+                for (Map.Entry<String, String> entry : state.getAll(table, "").entrySet()) {
+                    out.writeByte(table.ordinal());
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+            }
+            out.writeByte(-1);
+            out.flush();
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+            file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), new File(directory, SNAPSHOT).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    private int replay(long logGeneration) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(logFile(logGeneration).toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int records = 0;
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            buffer.get(record);
+            if (checksum != checksum(record, 0, length)) {
+                LOGGER.warn("Ignoring corrupt record at the end of state log " + logFile(logGeneration));
+                break;
+            }
+            try {
+                ByteBuffer fields = ByteBuffer.wrap(record);
+                byte operation = fields.get();
+                Table table = Table.values()[fields.get()];
+                String key = readString(fields);
+                apply(operation, table, key, operation == PUT ? readString(fields) : null);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+                throw new IOException("State log " + logFile(logGeneration) + " is corrupt", e);
+            }
+            records++;
+        }
+        return records;
+    }
+
+    private void apply(byte operation, Table table, String key, String value) {
+        if (operation == REMOVE_ALL) {
+            state.applyRemoveAll(table, key);
+        } else {
+            state.apply(table, key, value);
+        }
+    }
+
+    private List<Long> listLogGenerations() {
+        List<Long> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(LOG_PREFIX)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(LOG_PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        LOGGER.warn("Ignoring unexpected file " + name + " in state directory " + directory);
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private File logFile(long logGeneration) {
+        return new File(directory, LOG_PREFIX + logGeneration);
+    }
+
+    /**
+     * Makes the creation, deletion and renaming of files in the state directory durable. Not every platform allows a
+     * directory to be flushed, in which case this is left to the filesystem.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to flush state directory " + directory, e);
+        }
+    }
+
+    private static byte[] encodeRecord(byte operation, Table table, String key, String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(operation);
+        out.writeByte(table.ordinal());
+        writeString(out, key);
+        if (value != null) {
+            writeString(out, value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
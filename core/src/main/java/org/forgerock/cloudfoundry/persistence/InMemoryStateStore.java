@@ -0,0 +1,109 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.persistence;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+
+/**
+ * A {@link StateStore} held in memory only, used when no state directory is configured. Its state is lost when the
+ * broker stops.
+ */
+public class InMemoryStateStore implements StateStore {
+
+    private final Map<Table, ConcurrentNavigableMap<String, String>> tables = new EnumMap<>(Table.class);
+
+    /**
+     * Constructs an empty store.
+     */
+    public InMemoryStateStore() {
+        for (Table table : Table.values()) {
+            tables.put(table, new ConcurrentSkipListMap<String, String>());
+        }
+    }
+
+    @Override
+    public String get(Table table, String key) {
+        return tables.get(table).get(key);
+    }
+
+    @Override
+    public SortedMap<String, String> getAll(Table table, String prefix) {
+        return Collections.unmodifiableSortedMap(withPrefix(table, prefix));
+    }
+
+    @Override
+    public Promise<Void, IOException> put(Table table, String key, String value) {
+        apply(table, key, value);
+        return Promises.<Void, IOException>newResultPromise(null);
+    }
+
+    @Override
+    public Promise<Void, IOException> remove(Table table, String key) {
+        apply(table, key, null);
+        return Promises.<Void, IOException>newResultPromise(null);
+    }
+
+    @Override
+    public Promise<Void, IOException> removeAll(Table table, String prefix) {
+        applyRemoveAll(table, prefix);
+        return Promises.<Void, IOException>newResultPromise(null);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    /**
+     * Sets or removes the value of a key.
+     *
+     * @param table The table holding the key.
+     * @param key The key.
+     * @param value The value, or {@code null} to remove the key.
+     */
+    void apply(Table table, String key, String value) {
+        if (value == null) {
+            tables.get(table).remove(key);
+        } else {
+            tables.get(table).put(key, value);
+        }
+    }
+
+    /**
+     * Removes every key starting with the given prefix.
+     *
+     * @param table The table holding the keys.
+     * @param prefix The prefix of the keys.
+     */
+    void applyRemoveAll(Table table, String prefix) {
+        withPrefix(table, prefix).clear();
+    }
+
+    private ConcurrentNavigableMap<String, String> withPrefix(Table table, String prefix) {
+        ConcurrentNavigableMap<String, String> entries = tables.get(table);
+        return prefix.isEmpty() ? entries : entries.subMap(prefix, prefix + '\uffff');
+    }
+}
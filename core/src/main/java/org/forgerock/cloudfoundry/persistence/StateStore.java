@@ -0,0 +1,91 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.SortedMap;
+
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Stores the state of the broker as string values in a fixed set of tables, each sorted by key.
+ *
+ * <p>Reads are served from memory. Changes are visible to readers as soon as they are made, and the promise they
+ * return completes once they are durable, so callers should only report success to the Cloud Controller after it has
+ * completed.</p>
+ */
+public interface StateStore extends Closeable {
+
+    /**
+     * The tables of the store.
+     */
+    enum Table {
+        /** Service instances, keyed by instance identifier. */
+        INSTANCES,
+        /** Bindings, keyed by OAuth2 client username, {@code <instanceId>-<bindingId>}. */
+        BINDINGS,
+        /** Asynchronous operations, keyed by instance identifier. */
+        OPERATIONS
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param table The table holding the key.
+     * @param key The key.
+     * @return The value, or {@code null} if the key is not present.
+     */
+    String get(Table table, String key);
+
+    /**
+     * Returns the keys and values whose key starts with the given prefix.
+     *
+     * @param table The table holding the keys.
+     * @param prefix The prefix of the keys, or an empty string for the whole table.
+     * @return An unmodifiable, live view of the matching entries.
+     */
+    SortedMap<String, String> getAll(Table table, String prefix);
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param table The table holding the key.
+     * @param key The key.
+     * @param value The value.
+     * @return A {@link Promise} completed once the change is durable.
+     */
+    Promise<Void, IOException> put(Table table, String key, String value);
+
+    /**
+     * Removes a key.
+     *
+     * @param table The table holding the key.
+     * @param key The key.
+     * @return A {@link Promise} completed once the change is durable.
+     */
+    Promise<Void, IOException> remove(Table table, String key);
+
+    /**
+     * Removes every key starting with the given prefix.
+     *
+     * @param table The table holding the keys.
+     * @param prefix The prefix of the keys.
+     * @return A {@link Promise} completed once the change is durable.
+     */
+    Promise<Void, IOException> removeAll(Table table, String prefix);
+}
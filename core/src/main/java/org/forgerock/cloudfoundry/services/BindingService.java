@@ -2,6 +2,7 @@ package org.forgerock.cloudfoundry.services;
 
 import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 
@@ -12,21 +13,23 @@ public interface BindingService {
 
     /**
      * Register a new binding for this service.
+     * @param context the context of the request, carrying its deadline.
      * @param instanceId the identifier of the service instance.
      * @param bindingId the identififer of the requested new binding.
      * @param bindResource the resource to bind.
      * @param parameters the parameters of the binding.
      * @return The response of the operation
      */
-    Promise<Response, NeverThrowsException> bind(String instanceId, String bindingId, JsonValue bindResource,
-            JsonValue parameters);
+    Promise<Response, NeverThrowsException> bind(Context context, String instanceId, String bindingId,
+            JsonValue bindResource, JsonValue parameters);
 
     /**
      * Unbind a binding for this service.
+     * @param context the context of the request, carrying its deadline.
      * @param instanceId the identifier of the service instance.
      * @param bindingId the identififer of the requested new binding.
      * @return The response of the operation
      */
-    Promise<Response, NeverThrowsException> unbind(String instanceId, String bindingId);
+    Promise<Response, NeverThrowsException> unbind(Context context, String instanceId, String bindingId);
 }
 
@@ -2,6 +2,7 @@ package org.forgerock.cloudfoundry.services;
 
 import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 
@@ -12,25 +13,28 @@ public interface ProvisioningService {
 
     /**
      * Provision a new instance of the service.
+     * @param context the context of the request, carrying its deadline.
      * @param instanceId the identifier of the requested new instance
      * @param parameters the parameters of the service instance
      * @return The response of the operation
      */
-    Promise<Response, NeverThrowsException> provision(String instanceId, JsonValue parameters);
+    Promise<Response, NeverThrowsException> provision(Context context, String instanceId, JsonValue parameters);
 
     /**
      * Update a instance of the service.
+     * @param context the context of the request, carrying its deadline.
      * @param instanceId the identifier of the service instance to update
      * @param parameters the parameters of the service instance
      * @return The response of the operation
      */
-    Promise<Response, NeverThrowsException> update(String instanceId, JsonValue parameters);
+    Promise<Response, NeverThrowsException> update(Context context, String instanceId, JsonValue parameters);
 
     /**
      * Deprovision a instance of the service.
+     * @param context the context of the request, carrying its deadline.
      * @param instanceId the identifier of the service instance to deprovision
      * @return The response of the operation
      */
-    Promise<Response, NeverThrowsException> deprovision(String instanceId);
+    Promise<Response, NeverThrowsException> deprovision(Context context, String instanceId);
 }
 
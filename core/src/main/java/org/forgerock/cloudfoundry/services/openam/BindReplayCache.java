@@ -0,0 +1,154 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.services.openam;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.cloudfoundry.Responses.newEmptyJsonResponse;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Remembers the bindings recently created, so that a bind request retried by the Cloud Controller after a timeout is
+ * answered locally rather than by creating the OAuth2 client again.
+ *
+ * <p>As required by the Open Service Broker API, a retry with the same body is answered with 200 OK and the
+ * credentials originally returned, while a request for the same binding with a different body is answered with 409
+ * Conflict. Entries are kept for a limited time, and the oldest are dropped when the cache is full. Only a digest of
+ * each request body is kept.</p>
+ */
+final class BindReplayCache {
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final TimeService time;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param maxSize The maximum number of bindings remembered.
+     * @param timeToLive The time during which a binding is remembered.
+     * @param time The {@link TimeService} used to expire bindings.
+     */
+    BindReplayCache(final int maxSize, Duration timeToLive, TimeService time) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive.isUnlimited() ? Long.MAX_VALUE : timeToLive.to(MILLISECONDS);
+        this.time = time;
+        this.entries = new LinkedHashMap<String, Entry>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > BindReplayCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Computes the digest identifying the body of a bind request.
+     *
+     * @param bindResource The bind resource of the request.
+     * @param parameters The parameters of the request.
+     * @return The digest of the request.
+     */
+    static byte[] digest(JsonValue bindResource, JsonValue parameters) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(bindResource.getObject()).getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(parameters.getObject()).getBytes(UTF_8));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * Returns the response to a bind request that retries a recently created binding.
+     *
+     * @param username The username of the binding's OAuth2 client.
+     * @param digest The digest of the request body.
+     * @return The {@link Response} to return, or {@code null} if the binding was not created recently.
+     */
+    synchronized Response replay(String username, byte[] digest) {
+        Entry entry = entries.get(username);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= time.now()) {
+            entries.remove(username);
+            return null;
+        }
+        if (!MessageDigest.isEqual(entry.digest, digest)) {
+            return newEmptyJsonResponse(Status.CONFLICT);
+        }
+        return new Response(Status.OK).setEntity(entry.body.copy());
+    }
+
+    /**
+     * Remembers a binding that has been created.
+     *
+     * @param username The username of the binding's OAuth2 client.
+     * @param digest The digest of the request body.
+     * @param body The body of the response returned for the binding.
+     */
+    synchronized void put(String username, byte[] digest, JsonValue body) {
+        long now = time.now();
+        // Entries are in creation order and share one time to live, so the expired ones are the eldest
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().expiresAt > now) {
+                break;
+            }
+            iterator.remove();
+        }
+        entries.remove(username);
+        long expiresAt = timeToLive == Long.MAX_VALUE ? Long.MAX_VALUE : now + timeToLive;
+        entries.put(username, new Entry(digest, body.copy(), expiresAt));
+    }
+
+    /**
+     * Forgets a binding, once it has been removed.
+     *
+     * @param username The username of the binding's OAuth2 client.
+     */
+    synchronized void remove(String username) {
+        entries.remove(username);
+    }
+
+    private static final class Entry {
+        private final byte[] digest;
+        private final JsonValue body;
+        private final long expiresAt;
+
+        private Entry(byte[] digest, JsonValue body, long expiresAt) {
+            this.digest = digest;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.services.openam;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.forgerock.cloudfoundry.OpenAMClient;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.promise.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes the OAuth2 clients of a service instance with at most a fixed number of deletions in flight.
+ *
+ * <p>The window slides: each deletion that completes immediately starts the next waiting one, rather than waiting for
+ * a whole batch to complete. Callers are told when their deletion has started, so that they can stop producing
+ * usernames while the window is full.</p>
+ */
+final class DeletionWindow {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeletionWindow.class);
+
+    private final OpenAMClient openAMClient;
+    private final Context context;
+    private final int maxInFlight;
+    private final String instanceId;
+    private final Deque<PendingDeletion> waiting = new ArrayDeque<>();
+    private final AtomicReference<Response> failure = new AtomicReference<>();
+    private int inFlight;
+    private PromiseImpl<Void, NeverThrowsException> drained;
+
+    /**
+     * Constructs a new deletion window.
+     *
+     * @param openAMClient The {@link OpenAMClient} used to delete clients.
+     * @param context The {@link Context} of the request on whose behalf clients are deleted.
+     * @param maxInFlight The maximum number of deletions in flight.
+     * @param instanceId The service instance whose clients are deleted, for logging.
+     */
+    DeletionWindow(OpenAMClient openAMClient, Context context, int maxInFlight, String instanceId) {
+        this.openAMClient = openAMClient;
+        this.context = context;
+        this.maxInFlight = maxInFlight;
+        this.instanceId = instanceId;
+    }
+
+    /**
+     * Deletes a client as soon as the window allows.
+     *
+     * @param username The username of the client to delete.
+     * @return A {@link Promise} completed once the deletion has started.
+     */
+    Promise<Void, NeverThrowsException> delete(String username) {
+        PendingDeletion deletion = new PendingDeletion(username);
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                waiting.add(deletion);
+                return deletion.started;
+            }
+            inFlight++;
+        }
+        startDeletions(deletion);
+        return deletion.started;
+    }
+
+    /**
+     * Returns a promise completed once every deletion requested so far has completed.
+     *
+     * @return A {@link Promise} completed when the window is empty.
+     */
+    Promise<Void, NeverThrowsException> drain() {
+        synchronized (this) {
+            if (inFlight > 0) {
+                if (drained == null) {
+                    drained = PromiseImpl.create();
+                }
+                return drained;
+            }
+        }
+        return Promises.<Void, NeverThrowsException>newResultPromise(null);
+    }
+
+    /**
+     * Returns the response of the first deletion that failed.
+     *
+     * @return The OpenAM {@link Response}, or {@code null} if no deletion failed.
+     */
+    Response getFailure() {
+        return failure.get();
+    }
+
+    /**
+     * Starts the given deletion, then each waiting one while a slot is freed by a deletion that completed
+     * synchronously, for example because the circuit breaker is open. Looping rather than starting the next deletion
+     * from the completion handler keeps the stack from growing with the number of waiting deletions.
+     */
+    private void startDeletions(PendingDeletion first) {
+        PendingDeletion deletion = first;
+        while (deletion != null && start(deletion)) {
+            deletion = completed();
+        }
+    }
+
+    /**
+     * Starts a deletion.
+     *
+     * @return {@code true} if the deletion completed before this method returned, in which case the caller must
+     * release its slot, or {@code false} if its completion handler will.
+     */
+    private boolean start(PendingDeletion deletion) {
+        // Set by whichever of this method and the completion handler finishes first; the other releases the slot
+        final AtomicBoolean claimed = new AtomicBoolean();
+        deletion.started.handleResult(null);
+        openAMClient.deleteClient(context, deletion.username).thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(Response response) {
+                if (!response.getStatus().isSuccessful() && response.getStatus() != Status.BAD_REQUEST) {
+                    LOGGER.error("OpenAM returned an unexpected status (" + response.getStatus().getCode()
+                            + ") deleting client for instance " + instanceId);
+                    failure.compareAndSet(null, response);
+                }
+                if (!claimed.compareAndSet(false, true)) {
+                    startDeletions(completed());
+                }
+            }
+        });
+        return !claimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Hands the slot of a completed deletion to the next waiting one, or releases it.
+     *
+     * @return The waiting deletion to start, or {@code null} if there is none.
+     */
+    private PendingDeletion completed() {
+        PendingDeletion next;
+        PromiseImpl<Void, NeverThrowsException> nowDrained = null;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                inFlight--;
+                if (inFlight == 0) {
+                    nowDrained = drained;
+                    drained = null;
+                }
+            }
+        }
+        if (nowDrained != null) {
+            nowDrained.handleResult(null);
+        }
+        return next;
+    }
+
+    private static final class PendingDeletion {
+        private final String username;
+        private final PromiseImpl<Void, NeverThrowsException> started = PromiseImpl.create();
+
+        private PendingDeletion(String username) {
+            this.username = username;
+        }
+    }
+}
@@ -17,18 +17,24 @@
 package org.forgerock.cloudfoundry.services.openam;
 
 import static org.forgerock.cloudfoundry.Responses.newEmptyJsonResponse;
+import static org.forgerock.cloudfoundry.Responses.whenStored;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.util.promise.Promises.newResultPromise;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.forgerock.cloudfoundry.BindingIndex;
 import org.forgerock.cloudfoundry.OpenAMClient;
 import org.forgerock.cloudfoundry.PasswordGenerator;
+import org.forgerock.cloudfoundry.persistence.StateStore;
 import org.forgerock.cloudfoundry.services.BindingService;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
-import org.forgerock.util.Function;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.slf4j.Logger;
@@ -43,21 +49,31 @@ class OpenAMOAuth2BindingService implements BindingService {
 
     private final OpenAMClient openAMClient;
     private final PasswordGenerator passwordGenerator;
+    private final BindingIndex bindingIndex;
+    private final StateStore stateStore;
+    private final BindReplayCache replayCache;
 
     /**
      * Constructs a new BindingHandler.
      *
      * @param openAMClient The {@link OpenAMClient} used to communicate with OpenAM.
      * @param passwordGenerator The {@link PasswordGenerator} used to generate OAuth2 Client passwords.
+     * @param bindingIndex The {@link BindingIndex} of the bindings known to the broker.
+     * @param stateStore The {@link StateStore} recording the bindings created by the broker.
+     * @param replayCache The {@link BindReplayCache} used to answer retried bind requests.
      */
-    public OpenAMOAuth2BindingService(OpenAMClient openAMClient, PasswordGenerator passwordGenerator) {
+    public OpenAMOAuth2BindingService(OpenAMClient openAMClient, PasswordGenerator passwordGenerator,
+            BindingIndex bindingIndex, StateStore stateStore, BindReplayCache replayCache) {
         this.openAMClient = openAMClient;
         this.passwordGenerator = passwordGenerator;
+        this.bindingIndex = bindingIndex;
+        this.stateStore = stateStore;
+        this.replayCache = replayCache;
     }
 
     @Override
-    public Promise<Response, NeverThrowsException> bind(final String instanceId, final String bindingId,
-            final JsonValue bindResource, final JsonValue parameters) {
+    public Promise<Response, NeverThrowsException> bind(Context context, final String instanceId,
+            final String bindingId, final JsonValue bindResource, final JsonValue parameters) {
         LOGGER.info("Creating binding for instance " + instanceId);
         if (!bindResource.isDefined("app_guid")) {
             LOGGER.warn("Unable to create binding for instance " + instanceId
@@ -71,49 +87,86 @@ class OpenAMOAuth2BindingService implements BindingService {
         }
 
         final String username = instanceId + "-" + bindingId;
+        final byte[] digest = BindReplayCache.digest(bindResource, parameters);
+        Response replayed = replayCache.replay(username, digest);
+        if (replayed != null) {
+            LOGGER.info("Replaying the response to an earlier bind request for " + username);
+            return newResultPromise(replayed);
+        }
         final String password = passwordGenerator.generatePassword();
+        final String appGuid = bindResource.get("app_guid").asString();
 
-        return openAMClient.createClient(username, password)
-                .then(new Function<Response, Response, NeverThrowsException>() {
+        final AtomicBoolean sent = new AtomicBoolean();
+        Runnable onSent = new Runnable() {
+            @Override
+            public void run() {
+                sent.set(true);
+            }
+        };
+        return openAMClient.createClient(context, username, password, onSent)
+                .thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
                     @Override
-                    public Response apply(Response response) throws NeverThrowsException {
+                    public Promise<Response, NeverThrowsException> apply(Response response) {
                         Status status = response.getStatus();
+                        // The client exists, or may exist if OpenAM failed or timed out after receiving the request,
+                        // and an index that claims otherwise is worse than one that leads to a needless deletion
+                        if (status.isSuccessful() || status == Status.CONFLICT
+                                || (sent.get() && status.isServerError())) {
+                            bindingIndex.add(instanceId, bindingId);
+                        }
                         if (status.isSuccessful()) {
-                            return new Response(Status.CREATED).setEntity(json(object(
+                            JsonValue body = json(object(
                                     field("credentials", object(
                                             field("uri", openAMClient.getOAuth2Endpoint().toString()),
                                             field("username", username),
                                             field("password", password)
                                     ))
-                            )));
+                            ));
+                            replayCache.put(username, digest, body);
+                            return whenStored(stateStore.put(StateStore.Table.BINDINGS, username, appGuid),
+                                    new Response(Status.CREATED).setEntity(body));
                         } else if (status == Status.CONFLICT) {
                             LOGGER.warn("OpenAM already has a binding for " + username);
-                            return newEmptyJsonResponse(Status.CONFLICT);
+                            return newResultPromise(newEmptyJsonResponse(Status.CONFLICT));
+                        } else if (status == Status.SERVICE_UNAVAILABLE || status == Status.GATEWAY_TIMEOUT) {
+                            return newResultPromise(response);
                         } else {
                             LOGGER.error("OpenAM returned an unexpected status (" + status.getCode() + ") "
                                     + "creating binding " + username);
-                            return newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR);
+                            return newResultPromise(newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR));
                         }
                     }
                 });
     }
 
     @Override
-    public Promise<Response, NeverThrowsException> unbind(String instanceId, String bindingId) {
+    public Promise<Response, NeverThrowsException> unbind(Context context, final String instanceId,
+            final String bindingId) {
         final String username = instanceId + "-" + bindingId;
         LOGGER.info("Deleting binding " + bindingId + " for instance " + instanceId);
-        return openAMClient.deleteClient(username).then(new Function<Response, Response, NeverThrowsException>() {
-            @Override
-            public Response apply(Response response) throws NeverThrowsException {
-                if (response.getStatus().isSuccessful()) {
-                    return newEmptyJsonResponse(Status.OK);
-                } else if (response.getStatus() == Status.BAD_REQUEST) {
-                    LOGGER.warn("Binding " + username + " has already been removed");
-                    return newEmptyJsonResponse(Status.GONE);
-                } else {
-                    return response;
-                }
-            }
-        });
+        replayCache.remove(username);
+        if (bindingIndex.isComplete() && BindingIndex.isIndexable(instanceId) && BindingIndex.isIndexable(bindingId)
+                && !bindingIndex.contains(instanceId, bindingId)) {
+            LOGGER.warn("Binding " + username + " is not known to the broker");
+            return newResultPromise(newEmptyJsonResponse(Status.GONE));
+        }
+        return openAMClient.deleteClient(context, username).thenAsync(
+                new AsyncFunction<Response, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(Response response) {
+                        if (response.getStatus().isSuccessful()) {
+                            bindingIndex.remove(instanceId, bindingId);
+                            return whenStored(stateStore.remove(StateStore.Table.BINDINGS, username),
+                                    newEmptyJsonResponse(Status.OK));
+                        } else if (response.getStatus() == Status.BAD_REQUEST) {
+                            bindingIndex.remove(instanceId, bindingId);
+                            LOGGER.warn("Binding " + username + " has already been removed");
+                            return whenStored(stateStore.remove(StateStore.Table.BINDINGS, username),
+                                    newEmptyJsonResponse(Status.GONE));
+                        } else {
+                            return newResultPromise(response);
+                        }
+                    }
+                });
     }
 }
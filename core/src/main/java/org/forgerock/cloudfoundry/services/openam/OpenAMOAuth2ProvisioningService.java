@@ -17,20 +17,22 @@
 package org.forgerock.cloudfoundry.services.openam;
 
 import static org.forgerock.cloudfoundry.Responses.newEmptyJsonResponse;
-import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.cloudfoundry.Responses.whenStored;
 import static org.forgerock.util.promise.Promises.newResultPromise;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
+import org.forgerock.cloudfoundry.BindingIndex;
+import org.forgerock.cloudfoundry.ClientPageHandler;
 import org.forgerock.cloudfoundry.OpenAMClient;
+import org.forgerock.cloudfoundry.persistence.StateStore;
 import org.forgerock.cloudfoundry.services.ProvisioningService;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
-import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.Promises;
@@ -45,73 +47,116 @@ class OpenAMOAuth2ProvisioningService implements ProvisioningService {
     private static final Logger LOGGER = LoggerFactory.getLogger(OpenAMOAuth2ProvisioningService.class);
 
     private final OpenAMClient openAMClient;
+    private final int maxDeletionsInFlight;
+    private final BindingIndex bindingIndex;
+    private final StateStore stateStore;
 
     /**
      * Constructs a new ProvisioningHandler.
      *
      * @param openAMClient The {@link OpenAMClient} used to communicate with OpenAM.
+     * @param maxDeletionsInFlight The maximum number of clients deleted concurrently when deprovisioning an instance.
+     * @param bindingIndex The {@link BindingIndex} of the bindings known to the broker.
+     * @param stateStore The {@link StateStore} recording the instances and bindings created by the broker.
      */
-    public OpenAMOAuth2ProvisioningService(OpenAMClient openAMClient) {
+    public OpenAMOAuth2ProvisioningService(OpenAMClient openAMClient, int maxDeletionsInFlight,
+            BindingIndex bindingIndex, StateStore stateStore) {
         this.openAMClient = openAMClient;
+        this.maxDeletionsInFlight = maxDeletionsInFlight;
+        this.bindingIndex = bindingIndex;
+        this.stateStore = stateStore;
     }
 
     @Override
-    public Promise<Response, NeverThrowsException> provision(String instanceId, JsonValue parameters) {
+    public Promise<Response, NeverThrowsException> provision(Context context, String instanceId,
+            JsonValue parameters) {
         LOGGER.info("Provisioning instance " + instanceId);
-        return newResultPromise(newEmptyJsonResponse(Status.OK));
+        return whenStored(stateStore.put(StateStore.Table.INSTANCES, instanceId, parameters.toString()),
+                newEmptyJsonResponse(Status.OK));
     }
 
     @Override
-    public Promise<Response, NeverThrowsException> update(String instanceId, JsonValue parameters) {
+    public Promise<Response, NeverThrowsException> update(Context context, String instanceId, JsonValue parameters) {
         LOGGER.info("Updating instance " + instanceId);
-        return newResultPromise(newEmptyJsonResponse(Status.OK));
+        return whenStored(stateStore.put(StateStore.Table.INSTANCES, instanceId, parameters.toString()),
+                newEmptyJsonResponse(Status.OK));
     }
 
     @Override
-    public Promise<Response, NeverThrowsException> deprovision(final String instanceId) {
+    public Promise<Response, NeverThrowsException> deprovision(Context context, final String instanceId) {
         LOGGER.info("Deprovisioning instance " + instanceId);
-        return openAMClient.listClients().thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
-            @Override
-            public Promise<Response, NeverThrowsException> apply(Response response) throws NeverThrowsException {
-                if (!response.getStatus().isSuccessful()) {
-                    LOGGER.error("OpenAM returned an unexpected status (" + response.getStatus().getCode()
-                            + ") retrieving client list for instance " + instanceId);
-                    return newResultPromise(newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR));
+        final DeletionWindow deletions = new DeletionWindow(openAMClient, context, maxDeletionsInFlight,
+                instanceId);
+        if (bindingIndex.isComplete() && BindingIndex.isIndexable(instanceId)) {
+            // Every binding of the instance is known, so OpenAM does not need to be searched for them
+            for (String bindingId : bindingIndex.getBindings(instanceId)) {
+                deletions.delete(instanceId + "-" + bindingId);
+            }
+            return deletions.drain().thenAsync(new AsyncFunction<Void, Response, NeverThrowsException>() {
+                @Override
+                public Promise<Response, NeverThrowsException> apply(Void value) {
+                    return deprovisioned(instanceId, deletions);
                 }
-                try {
-                    return deleteClients(response, instanceId);
-                } catch (IOException e) {
-                    LOGGER.error("OpenAM returned unparsable body retrieving client list for instance " + instanceId);
-                    return newResultPromise(newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR));
+            });
+        }
+        return openAMClient.listClients(context, instanceId + "-", new ClientPageHandler() {
+            @Override
+            public Promise<Void, NeverThrowsException> handlePage(List<String> usernames) {
+                Promise<Void, NeverThrowsException> lastStarted =
+                        Promises.<Void, NeverThrowsException>newResultPromise(null);
+                for (String username : usernames) {
+                    if (username.startsWith(instanceId + "-")) {
+                        lastStarted = deletions.delete(username);
+                    }
                 }
+                // Deletions start in order, so the page is handled once its last deletion has started
+                return lastStarted;
+            }
+        }).thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
+            @Override
+            public Promise<Response, NeverThrowsException> apply(final Response response) {
+                return deletions.drain().thenAsync(new AsyncFunction<Void, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(Void value) {
+                        if (isUnavailable(response)) {
+                            return newResultPromise(response);
+                        } else if (!response.getStatus().isSuccessful()) {
+                            LOGGER.error("OpenAM returned an unexpected status (" + response.getStatus().getCode()
+                                    + ") retrieving client list for instance " + instanceId);
+                            return newResultPromise(newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR));
+                        }
+                        return deprovisioned(instanceId, deletions);
+                    }
+                });
             }
         });
     }
 
-    private Promise<Response, NeverThrowsException> deleteClients(Response response, final String instanceId)
-            throws IOException {
-        JsonValue json = json(response.getEntity().getJson());
-        List<Promise<Response, NeverThrowsException>> deletionPromises = new ArrayList<>();
-        for (Object result : json.get("result").asList()) {
-            JsonValue r = json(result);
-            String username = r.get("username").asString();
-            if (username.startsWith(instanceId + "-")) {
-                deletionPromises.add(openAMClient.deleteClient(username));
-            }
+    private Promise<Response, NeverThrowsException> deprovisioned(final String instanceId,
+            DeletionWindow deletions) {
+        Response failure = deletions.getFailure();
+        if (failure != null) {
+            return newResultPromise(isUnavailable(failure)
+                    ? failure
+                    : newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR));
         }
-        return Promises.when(deletionPromises).then(new Function<List<Response>, Response, NeverThrowsException>() {
-            @Override
-            public Response apply(List<Response> responses) throws NeverThrowsException {
-                for (Response response : responses) {
-                    if (!response.getStatus().isSuccessful() && response.getStatus() != Status.BAD_REQUEST) {
-                        LOGGER.error("OpenAM returned an unexpected status (" + response.getStatus().getCode()
-                                + ") deleting client for instance " + instanceId);
-                        return newEmptyJsonResponse(Status.INTERNAL_SERVER_ERROR);
+        bindingIndex.removeInstance(instanceId);
+        Promise<Void, IOException> stored = stateStore.removeAll(StateStore.Table.BINDINGS, instanceId + "-")
+                .thenAsync(new AsyncFunction<Void, Void, IOException>() {
+                    @Override
+                    public Promise<Void, IOException> apply(Void value) {
+                        return stateStore.remove(StateStore.Table.INSTANCES, instanceId);
                     }
-                }
-                return newEmptyJsonResponse(Status.OK);
-            }
-        });
+                });
+        return whenStored(stored, newEmptyJsonResponse(Status.OK));
+    }
+
+    /**
+     * Indicates whether OpenAM could not be called, or did not answer in time, in which case the response is passed on
+     * to the Cloud Controller as is.
+     */
+    private static boolean isUnavailable(Response response) {
+        return response.getStatus() == Status.SERVICE_UNAVAILABLE || response.getStatus() == Status.GATEWAY_TIMEOUT;
     }
 
 }
@@ -21,16 +21,34 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 
+import java.util.List;
+
+import org.forgerock.cloudfoundry.BindingIndex;
+import org.forgerock.cloudfoundry.ClientPageHandler;
+import org.forgerock.cloudfoundry.Configuration;
 import org.forgerock.cloudfoundry.OpenAMClient;
 import org.forgerock.cloudfoundry.PasswordGenerator;
+import org.forgerock.cloudfoundry.persistence.StateStore;
 import org.forgerock.cloudfoundry.services.Service;
+import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Implementation of the openam-oauth2 service.
  */
 public class OpenAMOAuth2Service implements Service {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenAMOAuth2Service.class);
+
     /** The identifier of the service. */
     public static final String SERVICE_ID = "3997be2d-e262-438e-8a31-8c90fa7156e5";
 
@@ -39,15 +57,104 @@ public class OpenAMOAuth2Service implements Service {
 
     private final org.forgerock.cloudfoundry.services.ProvisioningService provisioningService;
     private final org.forgerock.cloudfoundry.services.BindingService bindingService;
+    private final OpenAMClient openAMClient;
+    private final StateStore stateStore;
+    private final BindingIndex bindingIndex = new BindingIndex();
+    private final boolean bindingIndexEnabled;
 
     /**
      * Constructs a service that will handle the creation of OAuth2 clients in OpenAM.
      * @param openAMClient the client to use to call OpenAM
      * @param pwGen the password generator to use when creating the OAuth2 clients
+     * @param configuration the configuration of the broker
+     * @param stateStore the store of the broker state
+     */
+    public OpenAMOAuth2Service(OpenAMClient openAMClient, PasswordGenerator pwGen, Configuration configuration,
+            StateStore stateStore) {
+        this.provisioningService = new OpenAMOAuth2ProvisioningService(openAMClient,
+                configuration.getOptions().get(Configuration.OPENAM_MAX_DELETIONS_IN_FLIGHT), bindingIndex, stateStore);
+        this.bindingService = new OpenAMOAuth2BindingService(openAMClient, pwGen, bindingIndex, stateStore,
+                new BindReplayCache(configuration.getOptions().get(Configuration.BIND_REPLAY_CACHE_SIZE),
+                        configuration.getOptions().get(Configuration.BIND_REPLAY_CACHE_TTL), TimeService.SYSTEM));
+        this.openAMClient = openAMClient;
+        this.stateStore = stateStore;
+        this.bindingIndexEnabled = configuration.getOptions().get(Configuration.BINDING_INDEX_ENABLED);
+    }
+
+    /**
+     * Loads the index of bindings from the stored broker state and, if {@link Configuration#BINDING_INDEX_ENABLED} is
+     * set, from the OAuth2 clients in OpenAM. Bindings created or removed while loading are recorded as usual, and
+     * unbind and deprovision requests keep querying OpenAM until the whole index has been loaded.
+     *
+     * @return A {@link Promise} completed once the index has been loaded, or has failed to load.
+     */
+    public Promise<Void, NeverThrowsException> start() {
+        for (String username : stateStore.getAll(StateStore.Table.BINDINGS, "").keySet()) {
+            addStoredBinding(username);
+        }
+        if (!bindingIndexEnabled) {
+            return Promises.<Void, NeverThrowsException>newResultPromise(null);
+        }
+        return openAMClient.listClients(new RootContext(), "", new ClientPageHandler() {
+            @Override
+            public Promise<Void, NeverThrowsException> handlePage(List<String> usernames) {
+                for (String username : usernames) {
+                    addClient(username);
+                }
+                return Promises.<Void, NeverThrowsException>newResultPromise(null);
+            }
+        }).thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(Response response) {
+                if (response.getStatus().isSuccessful()) {
+                    bindingIndex.markComplete();
+                    LOGGER.info("Loaded " + bindingIndex.size() + " bindings from OpenAM");
+                } else {
+                    LOGGER.warn("OpenAM returned an unexpected status (" + response.getStatus().getCode()
+                            + ") loading bindings, OpenAM will be queried for each unbind and deprovision");
+                }
+            }
+        }).then(new Function<Response, Void, NeverThrowsException>() {
+            @Override
+            public Void apply(Response response) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Adds a stored binding, named {@code <instanceId>-<bindingId>}, to the index. Every stored binding is the
+     * broker's, so one whose identifiers cannot be indexed makes the index incomplete, as it does when bound.
+     */
+    private void addStoredBinding(String username) {
+        if (username.length() > 37 && username.charAt(36) == '-') {
+            bindingIndex.add(username.substring(0, 36), username.substring(37));
+        } else {
+            bindingIndex.add(username, null);
+        }
+    }
+
+    /**
+     * Adds the binding an OAuth2 client was created for to the index. Broker clients are named
+     * {@code <instanceId>-<bindingId>}; a client whose name starts with a canonical instance GUID but whose binding
+     * identifier cannot be indexed makes the index incomplete, so that deprovisioning the instance still queries
+     * OpenAM. Other agents of the realm are ignored.
+     */
+    private void addClient(String username) {
+        if (username.length() > 37 && username.charAt(36) == '-') {
+            String instanceId = username.substring(0, 36);
+            if (BindingIndex.isIndexable(instanceId)) {
+                bindingIndex.add(instanceId, username.substring(37));
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the bindings of this service.
+     * @return The {@link BindingIndex}.
      */
-    public OpenAMOAuth2Service(OpenAMClient openAMClient, PasswordGenerator pwGen) {
-        this.provisioningService = new OpenAMOAuth2ProvisioningService(openAMClient);
-        this.bindingService = new OpenAMOAuth2BindingService(openAMClient, pwGen);
+    public BindingIndex getBindingIndex() {
+        return bindingIndex;
     }
 
     @Override
@@ -0,0 +1,147 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class AdmissionControlFilterTest {
+
+    private TimeService time;
+    private AdmissionControlFilter filter;
+    private List<PromiseImpl<Response, NeverThrowsException>> handled;
+    private Handler next;
+
+    @BeforeMethod
+    public void setUp() {
+        time = mock(TimeService.class);
+        when(time.now()).thenReturn(0L);
+        filter = new AdmissionControlFilter(2, 2, duration("100 milliseconds"), duration("1 second"), time);
+        handled = new ArrayList<>();
+        next = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+                PromiseImpl<Response, NeverThrowsException> response = PromiseImpl.create();
+                handled.add(response);
+                return response;
+            }
+        };
+    }
+
+    @Test
+    public void shouldQueueRequestsBeyondLimitUntilOneCompletes() throws Exception {
+        send();
+        send();
+        Promise<Response, NeverThrowsException> queued = send();
+
+        assertThat(handled).hasSize(2);
+        assertThat(filter.getQueued()).isEqualTo(1);
+
+        handled.get(0).handleResult(new Response(Status.OK));
+
+        assertThat(handled).hasSize(3);
+        assertThat(filter.getInFlight()).isEqualTo(2);
+        assertThat(filter.getQueued()).isEqualTo(0);
+        handled.get(2).handleResult(new Response(Status.OK));
+        assertThat(queued.get().getStatus()).isEqualTo(Status.OK);
+    }
+
+    @Test
+    public void shouldRejectRequestsWhenQueueIsFull() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            send();
+        }
+
+        Response response = send().get();
+
+        assertThat(response.getStatus().getCode()).isEqualTo(429);
+        assertThat(response.getHeaders().getFirst("Retry-After")).isEqualTo("1");
+        assertThat(filter.getRejected()).isEqualTo(1);
+        assertThat(handled).hasSize(2);
+    }
+
+    @Test
+    public void shouldShedRequestsWaitingWhileOverloaded() throws Exception {
+        send();
+        send();
+        Promise<Response, NeverThrowsException> queued = send();
+
+        when(time.now()).thenReturn(1500L);
+        send();
+
+        Response response = queued.get();
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(response.getHeaders().getFirst("Retry-After")).isEqualTo("1");
+        assertThat(filter.getShed()).isEqualTo(1);
+        assertThat(filter.getQueued()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldOnlyAllowTargetDelayOnceQueueHasStayedNonEmpty() throws Exception {
+        send();
+        send();
+        send();
+        when(time.now()).thenReturn(900L);
+        Promise<Response, NeverThrowsException> queued = send();
+
+        when(time.now()).thenReturn(1050L);
+        handled.get(0).handleResult(new Response(Status.OK));
+
+        assertThat(queued.get().getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(filter.getShed()).isEqualTo(2);
+        assertThat(filter.getInFlight()).isEqualTo(1);
+        assertThat(handled).hasSize(2);
+    }
+
+    @Test
+    public void shouldAllowIntervalWhileQueueEmptiesRegularly() throws Exception {
+        send();
+        send();
+        when(time.now()).thenReturn(5000L);
+        Promise<Response, NeverThrowsException> queued = send();
+
+        when(time.now()).thenReturn(5500L);
+        handled.get(0).handleResult(new Response(Status.OK));
+
+        assertThat(queued.isDone()).isFalse();
+        assertThat(handled).hasSize(3);
+        assertThat(filter.getShed()).isEqualTo(0);
+    }
+
+    private Promise<Response, NeverThrowsException> send() {
+        return filter.filter(new RootContext(), new Request(), next);
+    }
+}
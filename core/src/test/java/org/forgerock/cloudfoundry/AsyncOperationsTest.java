@@ -0,0 +1,153 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.json;
+
+import org.forgerock.cloudfoundry.persistence.InMemoryStateStore;
+import org.forgerock.cloudfoundry.persistence.StateStore;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.Factory;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class AsyncOperationsTest {
+
+    private StateStore stateStore;
+    private AsyncOperations asyncOperations;
+    private PromiseImpl<Response, NeverThrowsException> result;
+
+    @BeforeMethod
+    public void setUp() {
+        stateStore = new InMemoryStateStore();
+        asyncOperations = new AsyncOperations(stateStore, 1, 10);
+        result = PromiseImpl.create();
+    }
+
+    @Test
+    public void shouldReportOperationInProgressThenSucceeded() throws Exception {
+        Response accepted = asyncOperations.start("instanceId", AsyncOperations.DEPROVISION, operation()).get();
+        String operationId = json(accepted.getEntity().getJson()).get("operation").asString();
+
+        assertThat(accepted.getStatus()).isEqualTo(Status.ACCEPTED);
+        assertThat(state(asyncOperations.getLastOperation("instanceId", operationId))).isEqualTo("in progress");
+
+        result.handleResult(new Response(Status.OK));
+
+        assertThat(awaitCompletion(operationId)).isEqualTo("succeeded");
+        assertThat(asyncOperations.getLastOperation("instanceId", operationId).getStatus()).isEqualTo(Status.GONE);
+    }
+
+    @Test
+    public void shouldRejectOperationWhileAnotherIsInProgress() throws Exception {
+        asyncOperations.start("instanceId", AsyncOperations.PROVISION, operation()).get();
+
+        Response response = asyncOperations.start("instanceId", AsyncOperations.DEPROVISION, operation()).get();
+
+        assertThat(response.getStatus().getCode()).isEqualTo(422);
+        result.handleResult(new Response(Status.OK));
+    }
+
+    @Test
+    public void shouldReportInterruptedOperationsAsFailedAfterRestart() throws Exception {
+        Response accepted = asyncOperations.start("instanceId", AsyncOperations.PROVISION, operation()).get();
+        String operationId = json(accepted.getEntity().getJson()).get("operation").asString();
+
+        AsyncOperations restarted = new AsyncOperations(stateStore, 1, 10);
+
+        assertThat(state(restarted.getLastOperation("instanceId", operationId))).isEqualTo("failed");
+        result.handleResult(new Response(Status.OK));
+    }
+
+    @Test
+    public void shouldStartWaitingOperationOnceRunningOneCompletes() throws Exception {
+        PromiseImpl<Response, NeverThrowsException> waitingResult = PromiseImpl.create();
+        asyncOperations.start("instanceId", AsyncOperations.PROVISION, operation()).get();
+        Response accepted = asyncOperations.start("otherInstanceId", AsyncOperations.PROVISION,
+                operation(waitingResult)).get();
+        String operationId = json(accepted.getEntity().getJson()).get("operation").asString();
+
+        result.handleResult(new Response(Status.OK));
+        waitingResult.handleResult(new Response(Status.OK));
+
+        assertThat(state(asyncOperations.getLastOperation("otherInstanceId", operationId))).isEqualTo("succeeded");
+    }
+
+    @Test
+    public void shouldKeepPreviousOperationWhenQueueIsFull() throws Exception {
+        AsyncOperations full = new AsyncOperations(stateStore, 1, 0);
+        PromiseImpl<Response, NeverThrowsException> provisioned = PromiseImpl.create();
+        provisioned.handleResult(new Response(Status.OK));
+        Response accepted = full.start("otherInstanceId", AsyncOperations.PROVISION, operation(provisioned)).get();
+        String operationId = json(accepted.getEntity().getJson()).get("operation").asString();
+        full.start("instanceId", AsyncOperations.PROVISION, operation()).get();
+
+        Response response = full.start("otherInstanceId", AsyncOperations.UPDATE, operation()).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(state(full.getLastOperation("otherInstanceId", operationId))).isEqualTo("succeeded");
+        result.handleResult(new Response(Status.OK));
+    }
+
+    @Test
+    public void shouldNotRecordOperationsCompletingOnceStopped() throws Exception {
+        Response accepted = asyncOperations.start("instanceId", AsyncOperations.PROVISION, operation()).get();
+        String operationId = json(accepted.getEntity().getJson()).get("operation").asString();
+
+        asyncOperations.stop();
+        result.handleResult(new Response(Status.OK));
+
+        assertThat(state(asyncOperations.getLastOperation("instanceId", operationId))).isEqualTo("in progress");
+    }
+
+    private String awaitCompletion(String operationId) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            String state = state(asyncOperations.getLastOperation("instanceId", operationId));
+            if (!"in progress".equals(state)) {
+                return state;
+            }
+            Thread.sleep(10);
+        }
+        return "in progress";
+    }
+
+    private Factory<Promise<Response, NeverThrowsException>> operation() {
+        return operation(result);
+    }
+
+    private static Factory<Promise<Response, NeverThrowsException>> operation(
+            final Promise<Response, NeverThrowsException> result) {
+        return new Factory<Promise<Response, NeverThrowsException>>() {
+            @Override
+            public Promise<Response, NeverThrowsException> newInstance() {
+                return result;
+            }
+        };
+    }
+
+    private static String state(Response response) throws Exception {
+        JsonValue body = json(response.getEntity().getJson());
+        return body.get("state").asString();
+    }
+}
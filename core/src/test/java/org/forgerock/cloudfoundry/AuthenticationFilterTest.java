@@ -1,13 +1,19 @@
 package org.forgerock.cloudfoundry;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.forgerock.cloudfoundry.TestHelper.createBasicAuth;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
@@ -54,6 +60,90 @@ public class AuthenticationFilterTest {
         verifyZeroInteractions(next);
     }
 
+    @Test
+    public void shouldAllowAccessWithAnyOfSeveralCredentials() throws Exception {
+        AuthenticationFilter rotatingFilter = new AuthenticationFilter(asList(
+                new BrokerCredential("broker_user", "old_password"),
+                new BrokerCredential("broker_user", BrokerCredential.hash("new_password", 1000))));
+
+        rotatingFilter.filter(new RootContext(), newRequest("broker_user", "old_password"), next);
+        rotatingFilter.filter(new RootContext(), newRequest("broker_user", "new_password"), next);
+
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldKeepCheckingCredentialsOnceVerified() throws Exception {
+        AuthenticationFilter hashingFilter = new AuthenticationFilter(singletonList(
+                new BrokerCredential("broker_user", BrokerCredential.hash("broker_password", 1000))));
+        hashingFilter.filter(new RootContext(), newRequest("broker_user", "broker_password"), next);
+        hashingFilter.filter(new RootContext(), newRequest("broker_user", "broker_password"), next);
+
+        Response response = hashingFilter.filter(new RootContext(), newRequest("broker_user", "bad_password"),
+                next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.UNAUTHORIZED);
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldHashPasswordOnceWhenUsernameIsUnknown() throws Exception {
+        AuthenticationFilter rotatingFilter = new AuthenticationFilter(rotatingCredentials());
+
+        Response response = rotatingFilter.filter(new RootContext(), newRequest("unknown_user", "broker_password"),
+                next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.UNAUTHORIZED);
+        assertThat(rotatingFilter.getDerivations()).isEqualTo(1);
+        verifyZeroInteractions(next);
+    }
+
+    @Test
+    public void shouldHashPasswordOnlyForCredentialsOfUsername() throws Exception {
+        AuthenticationFilter rotatingFilter = new AuthenticationFilter(rotatingCredentials());
+
+        rotatingFilter.filter(new RootContext(), newRequest("other_user", "other_password"), next);
+
+        assertThat(rotatingFilter.getDerivations()).isEqualTo(1);
+        verify(next).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldDenyAccessWith429WhenTooManyPasswordsAreHashed() throws Exception {
+        AuthenticationFilter busyFilter = new AuthenticationFilter(rotatingCredentials(), new Semaphore(0), 10);
+
+        Response response = busyFilter.filter(new RootContext(), newRequest("broker_user", "new_password"),
+                next).get();
+
+        assertThat(response.getStatus().getCode()).isEqualTo(429);
+        assertThat(response.getHeaders().getFirst("Retry-After")).isEqualTo("1");
+        assertThat(busyFilter.getDerivations()).isEqualTo(0);
+        assertThat(busyFilter.getThrottled()).isEqualTo(1);
+        verifyZeroInteractions(next);
+    }
+
+    @Test
+    public void shouldVerifyPlainPasswordsWithoutWaiting() throws Exception {
+        AuthenticationFilter busyFilter = new AuthenticationFilter(singletonList(
+                new BrokerCredential("broker_user", "broker_password")), new Semaphore(0), 10);
+
+        busyFilter.filter(new RootContext(), newRequest("broker_user", "broker_password"), next);
+
+        assertThat(busyFilter.getThrottled()).isEqualTo(0);
+        verify(next).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldDenyAccessWith401WhenHeaderIsMalformed() throws Exception {
+        Request request = new Request();
+        request.getHeaders().put("Authorization", "Basic not-base64!");
+
+        Response response = filter.filter(new RootContext(), request, next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.UNAUTHORIZED);
+        verifyZeroInteractions(next);
+    }
+
     @Test
     public void shouldDenyAccessWith401WhenNoHeader() throws Exception {
         Request request = new Request();
@@ -63,4 +153,17 @@ public class AuthenticationFilterTest {
         assertThat(response.getStatus()).isEqualTo(Status.UNAUTHORIZED);
         verifyZeroInteractions(next);
     }
+
+    private static List<BrokerCredential> rotatingCredentials() {
+        return asList(
+                new BrokerCredential("broker_user", "old_password"),
+                new BrokerCredential("broker_user", BrokerCredential.hash("new_password", 1000)),
+                new BrokerCredential("other_user", BrokerCredential.hash("other_password", 1000)));
+    }
+
+    private static Request newRequest(String username, String password) {
+        Request request = new Request();
+        request.getHeaders().put("Authorization", createBasicAuth(username, password));
+        return request;
+    }
 }
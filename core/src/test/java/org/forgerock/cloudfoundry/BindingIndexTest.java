@@ -0,0 +1,92 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class BindingIndexTest {
+
+    private static final String INSTANCE_ID = "0d8b1c3e-4f2a-4b7e-9c1d-2e3f4a5b6c7d";
+    private static final String BINDING_ID = "a1b2c3d4-e5f6-4789-abcd-ef0123456789";
+
+    @Test
+    public void shouldFindAddedBinding() {
+        BindingIndex index = new BindingIndex();
+
+        assertThat(index.add(INSTANCE_ID, BINDING_ID)).isTrue();
+        assertThat(index.add(INSTANCE_ID, BINDING_ID)).isFalse();
+
+        assertThat(index.contains(INSTANCE_ID, BINDING_ID)).isTrue();
+        assertThat(index.getBindings(INSTANCE_ID)).containsExactly(BINDING_ID);
+        assertThat(index.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldForgetRemovedBinding() {
+        BindingIndex index = new BindingIndex();
+        index.add(INSTANCE_ID, BINDING_ID);
+
+        assertThat(index.remove(INSTANCE_ID, BINDING_ID)).isTrue();
+        assertThat(index.remove(INSTANCE_ID, BINDING_ID)).isFalse();
+
+        assertThat(index.contains(INSTANCE_ID, BINDING_ID)).isFalse();
+        assertThat(index.getBindings(INSTANCE_ID)).isEmpty();
+        assertThat(index.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldEnumerateAndRemoveBindingsOfOneInstanceAcrossResizes() {
+        BindingIndex index = new BindingIndex();
+        String otherInstanceId = UUID.randomUUID().toString();
+        List<String> bindingIds = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String bindingId = UUID.randomUUID().toString();
+            bindingIds.add(bindingId);
+            index.add(INSTANCE_ID, bindingId);
+            index.add(otherInstanceId, UUID.randomUUID().toString());
+        }
+        for (int i = 0; i < 500; i++) {
+            index.remove(INSTANCE_ID, bindingIds.get(i));
+        }
+
+        assertThat(index.getBindings(INSTANCE_ID)).hasSize(500)
+                .containsOnly(bindingIds.subList(500, 1000).toArray(new String[500]));
+        assertThat(index.removeInstance(INSTANCE_ID)).isEqualTo(500);
+        assertThat(index.getBindings(INSTANCE_ID)).isEmpty();
+        assertThat(index.getBindings(otherInstanceId)).hasSize(1000);
+        assertThat(index.size()).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldBecomeIncompleteWhenBindingCannotBeIndexed() {
+        BindingIndex index = new BindingIndex();
+        index.markComplete();
+
+        assertThat(index.add("instanceId", "bindingId")).isFalse();
+        assertThat(index.add(INSTANCE_ID, BINDING_ID.toUpperCase())).isFalse();
+
+        assertThat(index.isComplete()).isFalse();
+        assertThat(index.size()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class BrokerCredentialTest {
+
+    @Test
+    public void shouldMatchPlainPassword() {
+        BrokerCredential credential = new BrokerCredential("broker_user", "broker_password");
+
+        assertThat(credential.matchesPassword("broker_password")).isTrue();
+        assertThat(credential.matchesPassword("bad_password")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchHashedPassword() {
+        BrokerCredential credential = new BrokerCredential("broker_user",
+                BrokerCredential.hash("broker_password", 1000));
+
+        assertThat(credential.matchesPassword("broker_password")).isTrue();
+        assertThat(credential.matchesPassword("bad_password")).isFalse();
+        assertThat(credential.matchesPassword("")).isFalse();
+    }
+
+    @Test
+    public void shouldCreateDecoyHashedLikeCredential() {
+        BrokerCredential credential = new BrokerCredential("broker_user",
+                BrokerCredential.hash("broker_password", 1000));
+
+        BrokerCredential decoy = credential.decoy();
+
+        assertThat(decoy.getIterations()).isEqualTo(1000);
+        assertThat(decoy.matchesPassword("broker_password")).isFalse();
+    }
+
+    @Test
+    public void shouldSaltHashes() {
+        assertThat(BrokerCredential.hash("broker_password", 1000))
+                .startsWith("{PBKDF2}1000:")
+                .isNotEqualTo(BrokerCredential.hash("broker_password", 1000));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectMalformedHash() {
+        new BrokerCredential("broker_user", "{PBKDF2}1000:salt");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectHashWithoutIterations() {
+        new BrokerCredential("broker_user", "{PBKDF2}0:c2FsdA==:aGFzaA==");
+    }
+}
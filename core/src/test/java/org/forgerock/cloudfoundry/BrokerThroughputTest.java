@@ -0,0 +1,249 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.cloudfoundry.FakeOpenAM.Latency;
+import org.forgerock.cloudfoundry.services.openam.OpenAMOAuth2Service;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Form;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.util.Json;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Drives the whole broker, as started by {@link ServiceBrokerHttpApplication}, against a {@link FakeOpenAM} and
+ * checks the throughput and latency it sustains against budgets.
+ *
+ * <p>Each of a fixed number of workers repeatedly walks an instance through its lifecycle, as the Cloud Controller
+ * would: provision, bind a few applications, unbind them and deprovision. Requests are handled in-process, so the
+ * results do not include the cost of a servlet container. The suite is in the {@code performance} group, which only
+ * the {@code performance} profile runs; the budgets and load are set by system properties.</p>
+ */
+@SuppressWarnings("javadoc")
+@Test(groups = "performance")
+public class BrokerThroughputTest {
+
+    private enum Operation { PROVISION, BIND, UNBIND, DEPROVISION }
+
+    private final int concurrency = Integer.getInteger("performance.concurrency", 16);
+    private final int bindingsPerInstance = Integer.getInteger("performance.bindingsPerInstance", 3);
+    private final long warmupSeconds = Long.getLong("performance.warmupSeconds", 5);
+    private final long durationSeconds = Long.getLong("performance.durationSeconds", 20);
+    private final double minThroughput = Double.parseDouble(System.getProperty("performance.minThroughput", "500"));
+    private final double maxP99Millis = Double.parseDouble(System.getProperty("performance.maxP99Millis", "250"));
+    private final double tolerance = Double.parseDouble(System.getProperty("performance.tolerance", "0.1"));
+    private final long openAMMedianMillis = Long.getLong("performance.openAMMedianMillis", 5);
+    private final long openAMP99Millis = Long.getLong("performance.openAMP99Millis", 50);
+    private final String resultsFile = System.getProperty("performance.results",
+            "target/performance/broker-throughput.json");
+
+    private final AtomicLong instances = new AtomicLong();
+    private FakeOpenAM openAM;
+    private ServiceBrokerHttpApplication application;
+    private Handler handler;
+    private ExecutorService workers;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        openAM = new FakeOpenAM("/", "amadmin", "password");
+        openAM.setLatency(Latency.logNormal(duration(openAMMedianMillis, MILLISECONDS),
+                duration(openAMP99Millis, MILLISECONDS)));
+        application = new ServiceBrokerHttpApplication(new Configuration(openAM.getBaseUri(), "amadmin", "password",
+                "/", "broker_user", "broker_password", "profile email"));
+        handler = application.start();
+        workers = Executors.newFixedThreadPool(concurrency);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        workers.shutdownNow();
+        application.stop();
+        openAM.stop();
+    }
+
+    @Test
+    public void shouldSustainThroughputWithinBudget() throws Exception {
+        run(warmupSeconds);
+        Run run = run(durationSeconds);
+
+        double throughput = run.getThroughput();
+        double p99Millis = toMillis(run.total.getValueAtPercentile(99));
+        boolean passed = run.errors.get() == 0 && throughput >= minThroughput * (1 - tolerance)
+                && p99Millis <= maxP99Millis * (1 + tolerance);
+        writeResults(run, passed);
+
+        assertThat(run.errors.get()).as("failed operations").isZero();
+        assertThat(throughput).as("operations per second").isGreaterThanOrEqualTo(minThroughput * (1 - tolerance));
+        assertThat(p99Millis).as("99th percentile latency (ms)").isLessThanOrEqualTo(maxP99Millis * (1 + tolerance));
+    }
+
+    private Run run(long seconds) throws Exception {
+        final Run run = new Run();
+        final long end = System.nanoTime() + SECONDS.toNanos(seconds);
+        long start = System.nanoTime();
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            results.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (System.nanoTime() < end) {
+                        runLifecycle(run, "instance" + instances.incrementAndGet());
+                    }
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        run.elapsedNanos = System.nanoTime() - start;
+        return run;
+    }
+
+    private void runLifecycle(Run run, String instanceId) {
+        String instancePath = "v2/service_instances/" + instanceId;
+        execute(run, Operation.PROVISION, newRequest("PUT", instancePath, json(object(
+                field("service_id", OpenAMOAuth2Service.SERVICE_ID),
+                field("plan_id", OpenAMOAuth2Service.PLAN_ID),
+                field("organization_guid", "organization"),
+                field("space_guid", "space")))));
+        for (int i = 0; i < bindingsPerInstance; i++) {
+            execute(run, Operation.BIND, newRequest("PUT", instancePath + "/service_bindings/binding" + i, json(object(
+                    field("service_id", OpenAMOAuth2Service.SERVICE_ID),
+                    field("plan_id", OpenAMOAuth2Service.PLAN_ID),
+                    field("app_guid", "application" + i),
+                    field("bind_resource", object(field("app_guid", "application" + i)))))));
+        }
+        for (int i = 0; i < bindingsPerInstance; i++) {
+            execute(run, Operation.UNBIND, newRequest("DELETE", instancePath + "/service_bindings/binding" + i, null));
+        }
+        execute(run, Operation.DEPROVISION, newRequest("DELETE", instancePath, null));
+    }
+
+    private void execute(Run run, Operation operation, Request request) {
+        long start = System.nanoTime();
+        Response response = handler.handle(new RootContext(), request).getOrThrowUninterruptibly();
+        long latency = System.nanoTime() - start;
+        run.latencies.get(operation).record(latency);
+        run.total.record(latency);
+        if (!response.getStatus().isSuccessful()) {
+            run.errors.incrementAndGet();
+        }
+    }
+
+    private static Request newRequest(String method, String path, JsonValue body) {
+        try {
+            Request request = TestHelper.createRequest(method, path);
+            if (body != null) {
+                request.setEntity(body.getObject());
+            } else {
+                Form form = new Form();
+                form.add("service_id", OpenAMOAuth2Service.SERVICE_ID);
+                form.add("plan_id", OpenAMOAuth2Service.PLAN_ID);
+                form.appendRequestQuery(request);
+            }
+            return request;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeResults(Run run, boolean passed) throws Exception {
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            operations.put(operation.name().toLowerCase(), summarize(run.latencies.get(operation), run.elapsedNanos));
+        }
+        Map<String, Object> results = object(
+                field("timestamp", System.currentTimeMillis()),
+                field("concurrency", concurrency),
+                field("bindingsPerInstance", bindingsPerInstance),
+                field("durationSeconds", NANOSECONDS.toMillis(run.elapsedNanos) / 1000.0),
+                field("openAMLatency", object(
+                        field("medianMillis", openAMMedianMillis),
+                        field("p99Millis", openAMP99Millis))),
+                field("budget", object(
+                        field("minThroughput", minThroughput),
+                        field("maxP99Millis", maxP99Millis),
+                        field("tolerance", tolerance))),
+                field("errors", run.errors.get()),
+                field("total", summarize(run.total, run.elapsedNanos)),
+                field("operations", operations),
+                field("passed", passed));
+        Path path = Paths.get(resultsFile);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Files.write(path, Json.writeJson(results));
+    }
+
+    private static Map<String, Object> summarize(LatencyHistogram histogram, long elapsedNanos) {
+        return object(
+                field("count", histogram.getCount()),
+                field("throughput", histogram.getCount() / (elapsedNanos / 1e9)),
+                field("meanMillis", histogram.getCount() == 0 ? 0 : histogram.getSum() / 1e6 / histogram.getCount()),
+                field("p50Millis", toMillis(histogram.getValueAtPercentile(50))),
+                field("p99Millis", toMillis(histogram.getValueAtPercentile(99))),
+                field("p999Millis", toMillis(histogram.getValueAtPercentile(99.9))));
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static final class Run {
+        private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private long elapsedNanos;
+
+        private Run() {
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, new LatencyHistogram());
+            }
+        }
+
+        private double getThroughput() {
+            return total.getCount() / (elapsedNanos / 1e9);
+        }
+    }
+}
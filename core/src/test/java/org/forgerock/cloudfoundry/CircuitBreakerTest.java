@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.cloudfoundry.CircuitBreaker.State;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CircuitBreakerTest {
+
+    private TimeService time;
+    private CircuitBreaker circuitBreaker;
+
+    @BeforeMethod
+    public void setUp() {
+        time = mock(TimeService.class);
+        when(time.now()).thenReturn(0L);
+        circuitBreaker = new CircuitBreaker(4, 50, 100, duration("1 second"), duration("10 seconds"), time);
+    }
+
+    @Test
+    public void shouldStayClosedUntilWindowIsFull() {
+        circuitBreaker.acquire().release(true);
+        circuitBreaker.acquire().release(true);
+        circuitBreaker.acquire().release(true);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+        assertThat(circuitBreaker.acquire()).isNotNull();
+    }
+
+    @Test
+    public void shouldOpenWhenFailureRateIsReached() {
+        circuitBreaker.acquire().release(false);
+        circuitBreaker.acquire().release(true);
+        circuitBreaker.acquire().release(false);
+        circuitBreaker.acquire().release(true);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+        assertThat(circuitBreaker.acquire()).isNull();
+        assertThat(circuitBreaker.getTransitionCount(State.OPEN)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldOnlyConsiderCallsInWindow() {
+        circuitBreaker.acquire().release(true);
+        for (int i = 0; i < 6; i++) {
+            circuitBreaker.acquire().release(false);
+        }
+        circuitBreaker.acquire().release(true);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void shouldOpenWhenAllCallsAreSlow() {
+        for (int i = 0; i < 4; i++) {
+            CircuitBreaker.Permit permit = circuitBreaker.acquire();
+            when(time.now()).thenReturn((i + 1) * 1000L);
+            permit.release(false);
+        }
+
+        assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+    }
+
+    @Test
+    public void shouldRejectWithRetryAfterWhileOpen() {
+        openCircuitBreaker();
+        when(time.now()).thenReturn(2500L);
+
+        Response response = circuitBreaker.newRejectedResponse();
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(response.getHeaders().getFirst("Retry-After")).isEqualTo("8");
+    }
+
+    @Test
+    public void shouldLetSingleTrialCallThroughOnceOpenDurationHasElapsed() {
+        openCircuitBreaker();
+        when(time.now()).thenReturn(10000L);
+
+        CircuitBreaker.Permit trial = circuitBreaker.acquire();
+
+        assertThat(trial).isNotNull();
+        assertThat(circuitBreaker.getState()).isEqualTo(State.HALF_OPEN);
+        assertThat(circuitBreaker.acquire()).isNull();
+        trial.release(false);
+        assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+        assertThat(circuitBreaker.getTransitionCount(State.HALF_OPEN)).isEqualTo(1);
+        assertThat(circuitBreaker.getTransitionCount(State.CLOSED)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldOpenAgainWhenTrialCallFails() {
+        openCircuitBreaker();
+        when(time.now()).thenReturn(10000L);
+
+        circuitBreaker.acquire().release(true);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+        assertThat(circuitBreaker.acquire()).isNull();
+        assertThat(circuitBreaker.getTransitionCount(State.OPEN)).isEqualTo(2);
+    }
+
+    private void openCircuitBreaker() {
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.acquire().release(true);
+        }
+    }
+}
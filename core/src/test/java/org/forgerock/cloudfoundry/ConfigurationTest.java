@@ -17,7 +17,11 @@
 package org.forgerock.cloudfoundry;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 
+import java.util.Collections;
+
+import org.forgerock.util.Options;
 import org.testng.annotations.Test;
 
 public class ConfigurationTest {
@@ -155,4 +159,15 @@ public class ConfigurationTest {
         assertThat(config.getScopes()).containsExactly("scope1", "scope2");
     }
 
+    @Test
+    public void openAmCredentialsShouldStartWithPrimaryCredentials() {
+        Options options = Options.defaultOptions()
+                .set(Configuration.OPENAM_ADDITIONAL_CREDENTIALS, Collections.singletonMap("user2", "password2"));
+        config = new Configuration("http://host:port/openam/", "user", "password", "/", "broker_user",
+                "broker_password", "scope1 scope2", options);
+
+        assertThat(config.getOpenAmCredentials()).containsExactly(
+                entry("user", "password"), entry("user2", "password2"));
+    }
+
 }
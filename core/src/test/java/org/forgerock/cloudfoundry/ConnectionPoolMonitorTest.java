@@ -0,0 +1,66 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ConnectionPoolMonitorTest {
+
+    @Test
+    public void shouldReportLeasedPendingAndAvailableConnections() throws Exception {
+        ConnectionPoolMonitor monitor = new ConnectionPoolMonitor(2);
+        PendingHandler next = new PendingHandler();
+
+        assertThat(monitor.getAvailable()).isEqualTo(2);
+
+        monitor.filter(new RootContext(), new Request(), next);
+        assertThat(monitor.getLeased()).isEqualTo(1);
+        assertThat(monitor.getAvailable()).isEqualTo(1);
+
+        monitor.filter(new RootContext(), new Request(), next);
+        monitor.filter(new RootContext(), new Request(), next);
+        assertThat(monitor.getLeased()).isEqualTo(2);
+        assertThat(monitor.getPending()).isEqualTo(1);
+        assertThat(monitor.getAvailable()).isEqualTo(0);
+
+        next.response.handleResult(new Response(Status.OK));
+        assertThat(monitor.getLeased()).isEqualTo(0);
+        assertThat(monitor.getPending()).isEqualTo(0);
+        assertThat(monitor.getAvailable()).isEqualTo(2);
+    }
+
+    private static final class PendingHandler implements Handler {
+        private final PromiseImpl<Response, NeverThrowsException> response = PromiseImpl.create();
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+            return response;
+        }
+    }
+}
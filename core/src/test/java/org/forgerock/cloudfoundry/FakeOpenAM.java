@@ -0,0 +1,536 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.forgerock.cloudfoundry.Metrics.OpenAMOperation;
+import org.forgerock.guava.common.io.ByteStreams;
+import org.forgerock.http.util.Json;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.time.Duration;
+
+/**
+ * A stateful stand-in for the parts of the OpenAM REST API used by the broker, served from this JVM by the JDK's
+ * HTTP server.
+ *
+ * <p>It authenticates the configured identities, issues SSO tokens, answers server info requests, and keeps the
+ * agents created through it so that they can be queried, with {@code _queryFilter} and paging, and deleted. Each
+ * operation can be given a latency distribution and made to fail, on its next calls or at random. Responses are
+ * delayed without holding a thread, so the server sustains as many concurrent slow calls as the broker sends.</p>
+ */
+public final class FakeOpenAM {
+
+    /** The name of the header carrying SSO tokens. */
+    public static final String COOKIE_NAME = "iPlanetDirectoryPro";
+
+    private static final Pattern QUERY_FILTER = Pattern.compile("(\\w+) (sw|eq) \"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Pattern ESCAPED = Pattern.compile("\\\\(.)");
+    /** The exchange attribute holding the operation called, once it has been recognised. */
+    private static final String OPERATION_ATTRIBUTE = "operation";
+
+    private final String realmPath;
+    private final Map<String, String> identities = new ConcurrentHashMap<>();
+    private final Set<String> tokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentSkipListMap<String, Map<String, Object>> agents = new ConcurrentSkipListMap<>();
+    private final AtomicReferenceArray<Latency> latencies =
+            new AtomicReferenceArray<>(OpenAMOperation.values().length);
+    private final AtomicReferenceArray<Fault> faults = new AtomicReferenceArray<>(OpenAMOperation.values().length);
+    private final AtomicLongArray requestCounts = new AtomicLongArray(OpenAMOperation.values().length);
+    private final AtomicLongArray concurrentRequests = new AtomicLongArray(OpenAMOperation.values().length);
+    private final AtomicLongArray peakConcurrentRequests = new AtomicLongArray(OpenAMOperation.values().length);
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Starts a fake OpenAM on a free port of the loopback interface.
+     *
+     * @param realm The realm served, as given to the broker's {@link Configuration}.
+     * @param username The username of the identity the broker authenticates as.
+     * @param password The password of that identity.
+     * @throws IOException If the server cannot be started.
+     */
+    public FakeOpenAM(String realm, String username, String password) throws IOException {
+        this.realmPath = normalize("/openam/json/" + realm.trim() + "/");
+        identities.put(username, password);
+        for (OpenAMOperation operation : OpenAMOperation.values()) {
+            latencies.set(operation.ordinal(), Latency.none());
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        executor = Executors.newFixedThreadPool(2 * threads);
+        scheduler = Executors.newScheduledThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                dispatch(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops the server and discards any response that is still delayed.
+     */
+    public void stop() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the base URI of this OpenAM, as given to the broker's {@link Configuration}.
+     * @return The base URI.
+     */
+    public String getBaseUri() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/openam/";
+    }
+
+    /**
+     * Allows another identity to authenticate.
+     *
+     * @param username The username of the identity.
+     * @param password The password of the identity.
+     */
+    public void addIdentity(String username, String password) {
+        identities.put(username, password);
+    }
+
+    /**
+     * Adds an agent, as if a client had already been created. Used to populate the realm before a test.
+     *
+     * @param username The username of the agent.
+     */
+    public void addAgent(String username) {
+        agents.put(username, newAgent(username, object(field("username", username))));
+    }
+
+    /**
+     * Returns the usernames of the agents in the realm.
+     * @return The usernames, in order.
+     */
+    public List<String> getAgents() {
+        return new ArrayList<>(agents.keySet());
+    }
+
+    /**
+     * Forgets every SSO token issued so far, as if the sessions had expired.
+     */
+    public void invalidateSessions() {
+        tokens.clear();
+    }
+
+    /**
+     * Delays the responses to every operation.
+     *
+     * @param latency The distribution of the delays.
+     */
+    public void setLatency(Latency latency) {
+        for (OpenAMOperation operation : OpenAMOperation.values()) {
+            setLatency(operation, latency);
+        }
+    }
+
+    /**
+     * Delays the responses to an operation.
+     *
+     * @param operation The operation.
+     * @param latency The distribution of the delays.
+     */
+    public void setLatency(OpenAMOperation operation, Latency latency) {
+        latencies.set(operation.ordinal(), latency);
+    }
+
+    /**
+     * Makes the next calls to an operation fail, without changing the state of the realm.
+     *
+     * @param operation The operation.
+     * @param count The number of calls to fail.
+     * @param statusCode The status of the failed calls.
+     */
+    public void failNext(OpenAMOperation operation, int count, int statusCode) {
+        faults.set(operation.ordinal(), new Fault(1.0, new AtomicInteger(count), statusCode));
+    }
+
+    /**
+     * Makes a random proportion of the calls to an operation fail, without changing the state of the realm.
+     *
+     * @param operation The operation.
+     * @param probability The probability that each call fails, between 0 and 1.
+     * @param statusCode The status of the failed calls.
+     */
+    public void failRandomly(OpenAMOperation operation, double probability, int statusCode) {
+        faults.set(operation.ordinal(), new Fault(probability, null, statusCode));
+    }
+
+    /**
+     * Stops injecting failures into every operation.
+     */
+    public void clearFaults() {
+        for (OpenAMOperation operation : OpenAMOperation.values()) {
+            faults.set(operation.ordinal(), null);
+        }
+    }
+
+    /**
+     * Returns the number of calls received for an operation, including those that failed.
+     *
+     * @param operation The operation.
+     * @return The number of calls.
+     */
+    public long getRequestCount(OpenAMOperation operation) {
+        return requestCounts.get(operation.ordinal());
+    }
+
+    /**
+     * Returns the largest number of calls for an operation that were waiting for their response at once.
+     *
+     * @param operation The operation.
+     * @return The peak number of concurrent calls.
+     */
+    public long getPeakConcurrentRequests(OpenAMOperation operation) {
+        return peakConcurrentRequests.get(operation.ordinal());
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        String path = normalize(exchange.getRequestURI().getRawPath());
+        String method = exchange.getRequestMethod();
+        OpenAMOperation operation;
+        if (path.equals("/openam/json/serverinfo/*") && method.equals("GET")) {
+            operation = OpenAMOperation.SERVERINFO;
+        } else if (path.equals(realmPath + "authenticate") && method.equals("POST")) {
+            operation = OpenAMOperation.AUTHENTICATE;
+        } else if (path.equals(realmPath + "agents") && method.equals("POST")) {
+            operation = OpenAMOperation.CREATE;
+        } else if (path.equals(realmPath + "agents") && method.equals("GET")) {
+            operation = OpenAMOperation.LIST;
+        } else if (path.startsWith(realmPath + "agents/") && method.equals("DELETE")) {
+            operation = OpenAMOperation.DELETE;
+        } else {
+            send(exchange, 0, 404, error(404, "Not Found", "Resource '" + path + "' not found"));
+            return;
+        }
+        requestCounts.incrementAndGet(operation.ordinal());
+        exchange.setAttribute(OPERATION_ATTRIBUTE, operation);
+        long concurrent = concurrentRequests.incrementAndGet(operation.ordinal());
+        long peak = peakConcurrentRequests.get(operation.ordinal());
+        while (concurrent > peak && !peakConcurrentRequests.compareAndSet(operation.ordinal(), peak, concurrent)) {
+            peak = peakConcurrentRequests.get(operation.ordinal());
+        }
+        long delay = latencies.get(operation.ordinal()).nextNanos();
+        Fault fault = faults.get(operation.ordinal());
+        if (fault != null && fault.fails()) {
+            send(exchange, delay, fault.statusCode, error(fault.statusCode, "Injected", "Injected failure"));
+            return;
+        }
+        Map<String, String> query = readQuery(exchange.getRequestURI().getRawQuery());
+        switch (operation) {
+        case SERVERINFO:
+            send(exchange, delay, 200, object(field("cookieName", COOKIE_NAME), field("domains", new ArrayList<>())));
+            break;
+        case AUTHENTICATE:
+            authenticate(exchange, delay);
+            break;
+        default:
+            String token = exchange.getRequestHeaders().getFirst(COOKIE_NAME);
+            if (token == null || !tokens.contains(token)) {
+                send(exchange, delay, 401, error(401, "Unauthorized", "Access Denied"));
+            } else if (operation == OpenAMOperation.CREATE) {
+                createAgent(exchange, delay, query);
+            } else if (operation == OpenAMOperation.LIST) {
+                queryAgents(exchange, delay, query);
+            } else {
+                deleteAgent(exchange, delay, path.substring((realmPath + "agents/").length()));
+            }
+        }
+    }
+
+    private void authenticate(HttpExchange exchange, long delay) throws IOException {
+        String username = exchange.getRequestHeaders().getFirst("X-OpenAM-Username");
+        String password = exchange.getRequestHeaders().getFirst("X-OpenAM-Password");
+        if (username == null || password == null || !password.equals(identities.get(username))) {
+            send(exchange, delay, 401, error(401, "Unauthorized", "Authentication Failed"));
+            return;
+        }
+        String token = "AQIC5w" + UUID.randomUUID().toString().replace("-", "") + "*";
+        tokens.add(token);
+        send(exchange, delay, 200, object(field("tokenId", token), field("successUrl", "/openam/console")));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void createAgent(HttpExchange exchange, long delay, Map<String, String> query) throws IOException {
+        Object body;
+        try (InputStream content = exchange.getRequestBody()) {
+            body = Json.readJson(new String(ByteStreams.toByteArray(content), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            body = null;
+        }
+        if (!"create".equals(query.get("_action")) || !(body instanceof Map)
+                || !(((Map<String, Object>) body).get("username") instanceof String)) {
+            send(exchange, delay, 400, error(400, "Bad Request", "Invalid agent"));
+            return;
+        }
+        String username = (String) ((Map<String, Object>) body).get("username");
+        Map<String, Object> agent = newAgent(username, (Map<String, Object>) body);
+        if (agents.putIfAbsent(username, agent) != null) {
+            send(exchange, delay, 409, error(409, "Conflict", "Resource already exists"));
+            return;
+        }
+        send(exchange, delay, 201, agent);
+    }
+
+    private void deleteAgent(HttpExchange exchange, long delay, String username) throws IOException {
+        // OpenAM reports deleting an unknown agent as a bad request, which the broker relies on
+        if (agents.remove(URLDecoder.decode(username, "UTF-8")) == null) {
+            send(exchange, delay, 400, error(400, "Bad Request", "Unable to delete agent"));
+            return;
+        }
+        send(exchange, delay, 200, object(field("success", "true")));
+    }
+
+    private void queryAgents(HttpExchange exchange, long delay, Map<String, String> query) throws IOException {
+        NavigableMap<String, Map<String, Object>> matching;
+        if ("*".equals(query.get("_queryId")) || "true".equals(query.get("_queryFilter"))) {
+            matching = agents;
+        } else {
+            Matcher filter = QUERY_FILTER.matcher(String.valueOf(query.get("_queryFilter")));
+            if (!filter.matches() || !filter.group(1).equals("username")) {
+                send(exchange, delay, 400, error(400, "Bad Request", "Unsupported query filter"));
+                return;
+            }
+            String value = ESCAPED.matcher(filter.group(3)).replaceAll("$1");
+            if (filter.group(2).equals("eq")) {
+                matching = agents.subMap(value, true, value, true);
+            } else {
+                matching = agents.subMap(value, true, value + Character.MAX_VALUE, false);
+            }
+        }
+        String cookie = query.get("_pagedResultsCookie");
+        if (cookie != null) {
+            matching = matching.tailMap(new String(Base64url.decode(cookie), StandardCharsets.UTF_8), false);
+        }
+        int pageSize = query.containsKey("_pageSize") ? Integer.parseInt(query.get("_pageSize")) : 0;
+        boolean usernameOnly = "username".equals(query.get("_fields"));
+        List<Object> result = new ArrayList<>();
+        String last = null;
+        for (Map.Entry<String, Map<String, Object>> agent : matching.entrySet()) {
+            if (pageSize > 0 && result.size() == pageSize) {
+                break;
+            }
+            result.add(usernameOnly
+                    ? object(field("_id", agent.getKey()), field("username", agent.getKey()))
+                    : agent.getValue());
+            last = agent.getKey();
+        }
+        String nextCookie = pageSize > 0 && last != null && matching.higherKey(last) != null
+                ? Base64url.encode(last.getBytes(StandardCharsets.UTF_8))
+                : null;
+        send(exchange, delay, 200, object(
+                field("result", result),
+                field("resultCount", result.size()),
+                field("pagedResultsCookie", nextCookie),
+                field("totalPagedResultsPolicy", "NONE"),
+                field("totalPagedResults", -1),
+                field("remainingPagedResults", -1)));
+    }
+
+    private void send(final HttpExchange exchange, long delay, final int statusCode, Object body) throws IOException {
+        final byte[] content = Json.writeJson(body);
+        if (delay <= 0) {
+            write(exchange, statusCode, content);
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(exchange, statusCode, content);
+                } catch (IOException e) {
+                    exchange.close();
+                }
+            }
+        }, delay, NANOSECONDS);
+    }
+
+    private void write(HttpExchange exchange, int statusCode, byte[] content) throws IOException {
+        OpenAMOperation operation = (OpenAMOperation) exchange.getAttribute(OPERATION_ATTRIBUTE);
+        if (operation != null) {
+            concurrentRequests.decrementAndGet(operation.ordinal());
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(statusCode, content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+    }
+
+    private static Map<String, Object> newAgent(String username, Map<String, Object> attributes) {
+        Map<String, Object> agent = new LinkedHashMap<>(attributes);
+        agent.remove("userpassword");
+        agent.put("_id", username);
+        return agent;
+    }
+
+    private static Map<String, Object> error(int code, String reason, String message) {
+        return object(field("code", code), field("reason", reason), field("message", message));
+    }
+
+    private static Map<String, String> readQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new LinkedHashMap<>();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                int separator = parameter.indexOf('=');
+                String name = separator < 0 ? parameter : parameter.substring(0, separator);
+                String value = separator < 0 ? "" : parameter.substring(separator + 1);
+                query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static String normalize(String path) {
+        return path.replaceAll("/{2,}", "/");
+    }
+
+    private static final class Fault {
+        private final double probability;
+        private final AtomicInteger remaining;
+        private final int statusCode;
+
+        private Fault(double probability, AtomicInteger remaining, int statusCode) {
+            this.probability = probability;
+            this.remaining = remaining;
+            this.statusCode = statusCode;
+        }
+
+        private boolean fails() {
+            if (remaining != null) {
+                return remaining.getAndDecrement() > 0;
+            }
+            return ThreadLocalRandom.current().nextDouble() < probability;
+        }
+    }
+
+    /**
+     * A distribution of response delays.
+     */
+    public abstract static class Latency {
+
+        /**
+         * Returns the delay of the next response.
+         * @return A delay in nanoseconds.
+         */
+        abstract long nextNanos();
+
+        /**
+         * Responds immediately.
+         * @return The distribution.
+         */
+        public static Latency none() {
+            return fixed(Duration.duration(0, MILLISECONDS));
+        }
+
+        /**
+         * Delays every response by the same time.
+         *
+         * @param delay The delay.
+         * @return The distribution.
+         */
+        public static Latency fixed(Duration delay) {
+            final long nanos = delay.to(NANOSECONDS);
+            return new Latency() {
+                @Override
+                long nextNanos() {
+                    return nanos;
+                }
+            };
+        }
+
+        /**
+         * Delays responses by a time drawn uniformly between two bounds.
+         *
+         * @param min The shortest delay.
+         * @param max The longest delay.
+         * @return The distribution.
+         */
+        public static Latency uniform(Duration min, Duration max) {
+            final long minNanos = min.to(NANOSECONDS);
+            final long maxNanos = max.to(NANOSECONDS);
+            return new Latency() {
+                @Override
+                long nextNanos() {
+                    return minNanos + (long) (ThreadLocalRandom.current().nextDouble() * (maxNanos - minNanos));
+                }
+            };
+        }
+
+        /**
+         * Delays responses by a log-normally distributed time, the usual shape of service latencies: most responses
+         * are close to the median, and a few take much longer.
+         *
+         * @param median The median delay.
+         * @param p99 The 99th percentile of the delays, which must be longer than the median.
+         * @return The distribution.
+         */
+        public static Latency logNormal(Duration median, Duration p99) {
+            final double medianNanos = median.to(NANOSECONDS);
+            // 2.326 is the 99th percentile of the standard normal distribution
+            final double sigma = Math.log(p99.to(NANOSECONDS) / medianNanos) / 2.326;
+            return new Latency() {
+                @Override
+                long nextNanos() {
+                    return (long) (medianNanos * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.cloudfoundry.FakeOpenAM.Latency;
+import org.forgerock.cloudfoundry.Metrics.OpenAMOperation;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.Options;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class FakeOpenAMTest {
+
+    private FakeOpenAM openAM;
+    private OpenAMClient openAMClient;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        openAM = new FakeOpenAM("/realm", "username", "password");
+        openAMClient = new OpenAMClient(new Configuration(openAM.getBaseUri(), "username", "password", "/realm",
+                "broker_user", "broker_password", "scope1 scope2",
+                Options.defaultOptions().set(Configuration.OPENAM_QUERY_PAGE_SIZE, 2)));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        openAMClient.stop();
+        openAM.stop();
+    }
+
+    @Test
+    public void shouldKeepCreatedClients() throws Exception {
+        assertThat(openAMClient.createClient(new RootContext(), "instanceId-binding1", "secret", null).get()
+                .getStatus()).isEqualTo(Status.CREATED);
+        assertThat(openAMClient.createClient(new RootContext(), "instanceId-binding1", "secret", null).get()
+                .getStatus()).isEqualTo(Status.CONFLICT);
+        assertThat(openAM.getAgents()).containsExactly("instanceId-binding1");
+
+        assertThat(openAMClient.deleteClient(new RootContext(), "instanceId-binding1").get().getStatus())
+                .isEqualTo(Status.OK);
+        assertThat(openAMClient.deleteClient(new RootContext(), "instanceId-binding1").get().getStatus())
+                .isEqualTo(Status.BAD_REQUEST);
+        assertThat(openAM.getAgents()).isEmpty();
+    }
+
+    @Test
+    public void shouldPageClientsMatchingQueryFilter() throws Exception {
+        openAM.addAgent("instanceId-binding1");
+        openAM.addAgent("instanceId-binding2");
+        openAM.addAgent("instanceId-binding3");
+        openAM.addAgent("otherInstance-binding1");
+        final List<List<String>> pages = new ArrayList<>();
+
+        Status status = openAMClient.listClients(new RootContext(), "instanceId-", new ClientPageHandler() {
+            @Override
+            public Promise<Void, NeverThrowsException> handlePage(List<String> usernames) {
+                pages.add(usernames);
+                return Promises.<Void, NeverThrowsException>newResultPromise(null);
+            }
+        }).get().getStatus();
+
+        assertThat(status).isEqualTo(Status.OK);
+        assertThat(pages).hasSize(2);
+        assertThat(pages.get(0)).containsExactly("instanceId-binding1", "instanceId-binding2");
+        assertThat(pages.get(1)).containsExactly("instanceId-binding3");
+        assertThat(openAM.getRequestCount(OpenAMOperation.LIST)).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRejectTokensOfInvalidatedSessions() throws Exception {
+        assertThat(listInstanceClients(new RootContext()).get().getStatus()).isEqualTo(Status.OK);
+        openAM.invalidateSessions();
+
+        assertThat(listInstanceClients(new RootContext()).get().getStatus()).isEqualTo(Status.OK);
+        assertThat(openAM.getRequestCount(OpenAMOperation.AUTHENTICATE)).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldFailInjectedCallsWithoutChangingState() throws Exception {
+        openAM.failNext(OpenAMOperation.CREATE, 1, 503);
+
+        assertThat(openAMClient.createClient(new RootContext(), "instanceId-binding1", "secret", null).get()
+                .getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(openAM.getAgents()).isEmpty();
+        assertThat(openAMClient.createClient(new RootContext(), "instanceId-binding1", "secret", null).get()
+                .getStatus()).isEqualTo(Status.CREATED);
+    }
+
+    @Test
+    public void shouldDelayResponses() throws Exception {
+        openAMClient.start();
+        listInstanceClients(new RootContext()).get();
+        openAM.setLatency(OpenAMOperation.LIST, Latency.fixed(duration(300, MILLISECONDS)));
+
+        long start = System.nanoTime();
+        listInstanceClients(new RootContext()).get();
+
+        assertThat(NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(300);
+    }
+
+    @Test
+    public void shouldRecordPeakOfConcurrentRequests() throws Exception {
+        openAMClient.start();
+        listInstanceClients(new RootContext()).get();
+        openAM.setLatency(OpenAMOperation.LIST, Latency.fixed(duration(300, MILLISECONDS)));
+
+        List<Promise<Response, NeverThrowsException>> lists = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            lists.add(listInstanceClients(new RootContext()));
+        }
+        for (Promise<Response, NeverThrowsException> list : lists) {
+            list.get();
+        }
+
+        assertThat(openAM.getPeakConcurrentRequests(OpenAMOperation.LIST)).isEqualTo(3);
+        assertThat(openAM.getPeakConcurrentRequests(OpenAMOperation.CREATE)).isEqualTo(0);
+    }
+
+    private Promise<Response, NeverThrowsException> listInstanceClients(Context context) {
+        return openAMClient.listClients(context, "instanceId-", new ClientPageHandler() {
+            @Override
+            public Promise<Void, NeverThrowsException> handlePage(List<String> usernames) {
+                return Promises.<Void, NeverThrowsException>newResultPromise(null);
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsShouldCoverEveryLatencyWithinAQuarter() {
+        for (long micros = 0; micros < (1L << 26); micros = micros * 5 / 4 + 1) {
+            int bucket = LatencyHistogram.indexOf(micros);
+            long upperBound = LatencyHistogram.getUpperBound(bucket);
+            assertThat(upperBound).isGreaterThan(micros);
+            assertThat(bucket == 0 || LatencyHistogram.getUpperBound(bucket - 1) <= micros).isTrue();
+            assertThat(upperBound - micros).isLessThanOrEqualTo(Math.max(micros / 4, 1));
+        }
+    }
+
+    @Test
+    public void shouldCountLatenciesTooLargeForTheBucketsInOverflowBucket() {
+        assertThat(LatencyHistogram.indexOf(1L << 26)).isEqualTo(LatencyHistogram.BUCKETS - 1);
+        assertThat(LatencyHistogram.indexOf(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.BUCKETS - 1);
+        assertThat(LatencyHistogram.getUpperBound(LatencyHistogram.BUCKETS - 1)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void shouldReportPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(MILLISECONDS.toNanos(1));
+        }
+        histogram.record(SECONDS.toNanos(1));
+
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getSum()).isEqualTo(MILLISECONDS.toNanos(99) + SECONDS.toNanos(1));
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(1024);
+        assertThat(histogram.getValueAtPercentile(99)).isEqualTo(1024);
+        assertThat(histogram.getValueAtPercentile(100)).isBetween(MICROSECONDS.convert(1, SECONDS),
+                MICROSECONDS.convert(1250, MILLISECONDS));
+    }
+
+    @Test
+    public void shouldReportNoPercentileWhenEmpty() {
+        assertThat(new LatencyHistogram().getValueAtPercentile(99)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.forgerock.cloudfoundry.Metrics.OpenAMOperation;
+import org.forgerock.cloudfoundry.Metrics.Route;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.util.Options;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class MetricsTest {
+
+    @Test
+    public void shouldExposeRequestLatenciesAsCumulativeBuckets() {
+        Metrics metrics = new Metrics();
+        metrics.recordRequest(Route.BINDING, "PUT", Status.CREATED, MILLISECONDS.toNanos(3));
+        metrics.recordRequest(Route.BINDING, "PUT", Status.CREATED, MILLISECONDS.toNanos(300));
+
+        String exposed = metrics.toPrometheus();
+
+        String labels = "route=\"binding\",method=\"PUT\",status=\"201\"";
+        assertThat(exposed)
+                .contains("# TYPE broker_request_duration_seconds histogram\n")
+                .contains("broker_request_duration_seconds_bucket{" + labels + ",le=\"0.002048\"} 0\n")
+                .contains("broker_request_duration_seconds_bucket{" + labels + ",le=\"0.004096\"} 1\n")
+                .contains("broker_request_duration_seconds_bucket{" + labels + ",le=\"0.262144\"} 1\n")
+                .contains("broker_request_duration_seconds_bucket{" + labels + ",le=\"0.524288\"} 2\n")
+                .contains("broker_request_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 2\n")
+                .contains("broker_request_duration_seconds_sum{" + labels + "} 0.303\n")
+                .contains("broker_request_duration_seconds_count{" + labels + "} 2\n");
+    }
+
+    @Test
+    public void shouldGroupMethodsAndStatusesIntoSeries() {
+        Metrics metrics = new Metrics();
+        metrics.recordOpenAMCall(OpenAMOperation.DELETE, Status.OK, 1000);
+        metrics.recordOpenAMCall(OpenAMOperation.DELETE, Status.NOT_FOUND, 1000);
+        metrics.recordOpenAMCall(OpenAMOperation.DELETE, Status.OK, 1000);
+        metrics.recordRequest(Route.CATALOG, "OPTIONS", Status.METHOD_NOT_ALLOWED, 1000);
+
+        assertThat(metrics.getOpenAMCallLatencies(OpenAMOperation.DELETE, Status.OK).getCount()).isEqualTo(2);
+        assertThat(metrics.getOpenAMCallLatencies(OpenAMOperation.DELETE, Status.NOT_FOUND).getCount()).isEqualTo(1);
+        assertThat(metrics.getOpenAMCallLatencies(OpenAMOperation.LIST, Status.OK)).isNull();
+        assertThat(metrics.toPrometheus())
+                .contains("openam_call_duration_seconds_count{operation=\"delete\",status=\"404\"} 1\n")
+                .contains("broker_request_duration_seconds_count{route=\"catalog\",method=\"OTHER\",status=\"405\"} 1");
+    }
+
+    @Test
+    public void shouldDescribeEachRegisteredFamilyOnce() {
+        Metrics metrics = new Metrics();
+        metrics.registerCounter("transitions_total{state=\"open\"}", "Transitions.", constant(2));
+        metrics.registerCounter("transitions_total{state=\"closed\"}", "Transitions.", constant(3));
+        metrics.registerGauge("in_flight", "In flight.", constant(5));
+
+        assertThat(metrics.toPrometheus()).endsWith("# HELP transitions_total Transitions.\n"
+                + "# TYPE transitions_total counter\n"
+                + "transitions_total{state=\"open\"} 2\n"
+                + "transitions_total{state=\"closed\"} 3\n"
+                + "# HELP in_flight In flight.\n"
+                + "# TYPE in_flight gauge\n"
+                + "in_flight 5\n");
+    }
+
+    @Test
+    public void shouldExposeOpenAMConnectionPoolUsage() throws Exception {
+        PasswordGenerator passwordGenerator = new PasswordGenerator();
+        ServiceBroker broker = new ServiceBroker(new Configuration("http://openam.example/openam", "amadmin",
+                "password", "/", "broker_user", "broker_password", "profile",
+                Options.defaultOptions().set(Configuration.OPENAM_MAX_CONNECTIONS, 8)), passwordGenerator);
+        try {
+            assertThat(broker.getMetrics().toPrometheus())
+                    .contains("openam_connections_max 8\n")
+                    .contains("openam_connections_leased 0\n")
+                    .contains("openam_connections_pending 0\n")
+                    .contains("# TYPE openam_connections_available gauge\n")
+                    .contains("openam_connections_available 8\n");
+        } finally {
+            broker.stop();
+            passwordGenerator.stop();
+        }
+    }
+
+    private static Metrics.Gauge constant(final long value) {
+        return new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.Options;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.Delay;
+import org.mockserver.model.Parameter;
+import org.mockserver.socket.PortFactory;
+import org.mockserver.verify.VerificationTimes;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class OpenAMClientTest {
+
+    private static final String COOKIE_DOMAIN = "CookieDomain";
+    private static final String SSO_TOKEN = "ssoToken";
+
+    private static ClientAndServer mockServerClient;
+
+    private OpenAMClient openAMClient;
+
+    @BeforeClass
+    public static void startServer() {
+        mockServerClient = ClientAndServer.startClientAndServer(PortFactory.findFreePort());
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        mockServerClient.stop();
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        mockServerClient.reset();
+        openAMClient = new OpenAMClient(new Configuration("http://localhost:" + mockServerClient.getPort(),
+                "username", "password", "/realm", "broker_user", "broker_password", "scope1 scope2"));
+    }
+
+    @Test
+    public void shouldReuseSsoTokenAcrossRequests() throws Exception {
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        TestHelper.expectListClients(mockServerClient);
+        TestHelper.expectClientDeletion(mockServerClient, "instanceId-bindingId", 200);
+
+        assertThat(listInstanceClients(new RootContext()).get().getStatus()).isEqualTo(Status.OK);
+        assertThat(listInstanceClients(new RootContext()).get().getStatus()).isEqualTo(Status.OK);
+        assertThat(openAMClient.deleteClient(new RootContext(), "instanceId-bindingId").get().getStatus())
+                .isEqualTo(Status.OK);
+
+        mockServerClient.verify(TestHelper.verifySuccessfulAuthentication(), VerificationTimes.once());
+        mockServerClient.verify(TestHelper.verifyClientDeletion("instanceId-bindingId", COOKIE_DOMAIN, SSO_TOKEN),
+                VerificationTimes.once());
+    }
+
+    @Test
+    public void shouldReauthenticateWhenSsoTokenIsRejected() throws Exception {
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        mockServerClient.when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/json/realm/agents"),
+                Times.once()
+        ).respond(
+                response()
+                        .withStatusCode(401));
+        TestHelper.expectListClients(mockServerClient);
+
+        Response response = listInstanceClients(new RootContext()).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        mockServerClient.verify(TestHelper.verifySuccessfulAuthentication(), VerificationTimes.exactly(2));
+    }
+
+    @Test
+    public void shouldReauthenticateWhenStatelessSessionHasExpired() throws Exception {
+        String claims = Base64url.encode("{\"exp\":1}".getBytes(StandardCharsets.UTF_8));
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, "eyJhbGciOiJIUzI1NiJ9." + claims + ".signature");
+        TestHelper.expectListClients(mockServerClient);
+
+        listInstanceClients(new RootContext()).get();
+        listInstanceClients(new RootContext()).get();
+
+        mockServerClient.verify(TestHelper.verifySuccessfulAuthentication(), VerificationTimes.exactly(2));
+    }
+
+    @Test
+    public void shouldResolveCookieNameOnceWhenStarted() throws Exception {
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        TestHelper.expectListClients(mockServerClient);
+
+        openAMClient.start();
+        Promise<Response, NeverThrowsException> first = listInstanceClients(new RootContext());
+        Promise<Response, NeverThrowsException> second = listInstanceClients(new RootContext());
+
+        assertThat(first.get().getStatus()).isEqualTo(Status.OK);
+        assertThat(second.get().getStatus()).isEqualTo(Status.OK);
+        mockServerClient.verify(TestHelper.verifyServerInfoCall(), VerificationTimes.once());
+        mockServerClient.verify(TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN, "instanceId-"),
+                VerificationTimes.exactly(2));
+    }
+
+    @Test
+    public void shouldHandleEachPageOfClientsInOrder() throws Exception {
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        mockServerClient.when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/json/realm/agents")
+                        .withQueryStringParameter(new Parameter("_pagedResultsCookie", "page2"))
+        ).respond(
+                response()
+                        .withStatusCode(200)
+                        .withBody("{\"result\":[{\"username\":\"instanceId-binding3\"}],"
+                                + "\"pagedResultsCookie\":null}"));
+        mockServerClient.when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/json/realm/agents")
+        ).respond(
+                response()
+                        .withStatusCode(200)
+                        .withBody("{\"result\":[{\"username\":\"instanceId-binding1\"},"
+                                + "{\"username\":\"instanceId-binding2\"}],\"pagedResultsCookie\":\"page2\"}"));
+        final List<List<String>> pages = new ArrayList<>();
+
+        Response response = openAMClient.listClients(new RootContext(), "instanceId-", new ClientPageHandler() {
+            @Override
+            public Promise<Void, NeverThrowsException> handlePage(List<String> usernames) {
+                pages.add(usernames);
+                return Promises.<Void, NeverThrowsException>newResultPromise(null);
+            }
+        }).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(pages).containsExactly(
+                asList("instanceId-binding1", "instanceId-binding2"),
+                asList("instanceId-binding3"));
+    }
+
+    @Test
+    public void shouldReadOnlyUsernamesFromClientListing() throws Exception {
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        mockServerClient.when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/json/realm/agents")
+        ).respond(
+                response()
+                        .withStatusCode(200)
+                        .withBody("{\"resultCount\":2,\"result\":["
+                                + "{\"com.forgerock.openam.oauth2provider.scopes\":[\"scope1\",\"scope2\"],"
+                                + "\"attributes\":{\"username\":\"nested\"},\"username\":\"instanceId-binding1\"},"
+                                + "{\"username\":\"instanceId-binding2\",\"sunIdentityServerDeviceStatus\":"
+                                + "[\"Active\"]}],\"pagedResultsCookie\":null,\"remainingPagedResults\":-1}"));
+        final List<String> usernames = new ArrayList<>();
+
+        Response response = openAMClient.listClients(new RootContext(), "instanceId-", new ClientPageHandler() {
+            @Override
+            public Promise<Void, NeverThrowsException> handlePage(List<String> page) {
+                usernames.addAll(page);
+                return Promises.<Void, NeverThrowsException>newResultPromise(null);
+            }
+        }).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(usernames).containsExactly("instanceId-binding1", "instanceId-binding2");
+    }
+
+    @Test
+    public void shouldFailWhenClientListingIsTruncated() throws Exception {
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        mockServerClient.when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/json/realm/agents")
+        ).respond(
+                response()
+                        .withStatusCode(200)
+                        .withBody("{\"result\":[{\"username\":\"instanceId-binding1\"},"));
+
+        Response response = openAMClient.listClients(new RootContext(), "instanceId-", new ClientPageHandler() {
+            @Override
+            public Promise<Void, NeverThrowsException> handlePage(List<String> page) {
+                return Promises.<Void, NeverThrowsException>newResultPromise(null);
+            }
+        }).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
+    }
+
+    @Test
+    public void shouldNotCallOpenAMOnceDeadlineHasPassed() throws Exception {
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        TestHelper.expectListClients(mockServerClient);
+
+        Response response = listInstanceClients(new DeadlineContext(new RootContext(), 0L)).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.GATEWAY_TIMEOUT);
+        mockServerClient.verify(TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN, "instanceId-"),
+                VerificationTimes.exactly(0));
+    }
+
+    @Test
+    public void shouldAbandonCallsThatOutliveTheirDeadline() throws Exception {
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        mockServerClient.when(
+                request()
+                        .withMethod("GET")
+                        .withPath("/json/realm/agents")
+        ).respond(
+                response()
+                        .withStatusCode(200)
+                        .withBody("{\"result\":[],\"pagedResultsCookie\":null}")
+                        .withDelay(new Delay(TimeUnit.SECONDS, 5)));
+        openAMClient.start();
+
+        long start = System.currentTimeMillis();
+        Response response = listInstanceClients(new DeadlineContext(new RootContext(), start + 500)).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.GATEWAY_TIMEOUT);
+        assertThat(System.currentTimeMillis() - start).isLessThan(4000);
+    }
+
+    @Test
+    public void shouldNotCountCallsAbandonedAtDeadlineAsFailures() throws Exception {
+        openAMClient.stop();
+        openAMClient = new OpenAMClient(new Configuration("http://localhost:" + mockServerClient.getPort(),
+                "username", "password", "/realm", "broker_user", "broker_password", "scope1 scope2",
+                Options.defaultOptions().set(Configuration.CIRCUIT_BREAKER_WINDOW_SIZE, 2)));
+        TestHelper.expectServerInfoCall(mockServerClient, COOKIE_DOMAIN);
+        TestHelper.expectSuccessfulAuthentication(mockServerClient, SSO_TOKEN);
+        mockServerClient.when(
+                request()
+                        .withMethod("DELETE")
+                        .withPath("/json/realm/agents/client")
+        ).respond(
+                response()
+                        .withStatusCode(200)
+                        .withBody("{}")
+                        .withDelay(new Delay(TimeUnit.SECONDS, 5)));
+        openAMClient.start();
+
+        for (int i = 0; i < 2; i++) {
+            Response response = openAMClient.deleteClient(new DeadlineContext(new RootContext(),
+                    System.currentTimeMillis() + 300), "client").get();
+            assertThat(response.getStatus()).isEqualTo(Status.GATEWAY_TIMEOUT);
+        }
+
+        assertThat(openAMClient.getCircuitBreaker().getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    private Promise<Response, NeverThrowsException> listInstanceClients(Context context) {
+        return openAMClient.listClients(context, "instanceId-", new ClientPageHandler() {
+            @Override
+            public Promise<Void, NeverThrowsException> handlePage(List<String> usernames) {
+                return Promises.<Void, NeverThrowsException>newResultPromise(null);
+            }
+        });
+    }
+}
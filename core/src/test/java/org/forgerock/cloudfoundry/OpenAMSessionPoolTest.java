@@ -0,0 +1,61 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class OpenAMSessionPoolTest {
+
+    @Test
+    public void shouldSelectSessionWithFewestRequestsInFlight() {
+        OpenAMSession first = newSession("first");
+        OpenAMSession second = newSession("second");
+        OpenAMSessionPool pool = new OpenAMSessionPool(asList(first, second));
+
+        first.acquire();
+
+        assertThat(pool.select()).isSameAs(second);
+
+        second.acquire();
+        second.acquire();
+
+        assertThat(pool.select()).isSameAs(first);
+
+        second.release();
+        second.release();
+        first.release();
+
+        assertThat(pool.select()).isSameAs(first);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRequireAtLeastOneSession() {
+        new OpenAMSessionPool(asList(new OpenAMSession[0]));
+    }
+
+    private OpenAMSession newSession(String username) {
+        return new OpenAMSession(null, null, username, "password", duration(30, MINUTES), duration(120, MINUTES),
+                TimeService.SYSTEM, new Metrics());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.http.Client;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class OpenAMSessionTest {
+
+    @Test
+    public void shouldFailLoginWhenAuthenticationResponseCannotBeRead() throws Exception {
+        // A response without a status cannot be read
+        CountingHandler openAM = new CountingHandler(new Response());
+        OpenAMSession session = newSession(openAM, duration(30, MINUTES));
+
+        assertLoginFails(session);
+        assertLoginFails(session);
+        assertThat(openAM.requests.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReuseTokenWhenIdleTimeIsShorterThanExpiryMargin() throws Exception {
+        CountingHandler openAM = new CountingHandler(new Response(Status.OK)
+                .setEntity(json(object(field("tokenId", "token"))).getObject()));
+        OpenAMSession session = newSession(openAM, duration(20, SECONDS));
+
+        assertThat(session.getToken().getOrThrow()).isEqualTo("token");
+        assertThat(session.getToken().getOrThrow()).isEqualTo("token");
+        assertThat(openAM.requests.get()).isEqualTo(1);
+    }
+
+    private static void assertLoginFails(OpenAMSession session) throws Exception {
+        try {
+            session.getToken().getOrThrow();
+            throw new AssertionError("Login should have failed");
+        } catch (AuthenticationFailedException e) {
+            // expected
+        }
+    }
+
+    private static OpenAMSession newSession(Handler openAM, Duration maxIdleTime) {
+        return new OpenAMSession(new Client(openAM), URI.create("http://openam.example/json/authenticate"),
+                "amadmin", "password", maxIdleTime, duration(120, MINUTES), TimeService.SYSTEM, new Metrics());
+    }
+
+    private static final class CountingHandler implements Handler {
+        private final Response response;
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private CountingHandler(Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+            requests.incrementAndGet();
+            return newResultPromise(response);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PasswordGeneratorTest {
+
+    private PasswordGenerator passwordGenerator;
+
+    @AfterMethod
+    public void tearDown() {
+        if (passwordGenerator != null) {
+            passwordGenerator.stop();
+        }
+    }
+
+    @Test
+    public void shouldGeneratePasswordsOfDefaultLengthAndAlphabet() {
+        passwordGenerator = new PasswordGenerator();
+
+        String password = passwordGenerator.generatePassword();
+
+        assertThat(password).hasSize(PasswordGenerator.DEFAULT_LENGTH).matches("[A-Za-z0-9]+");
+    }
+
+    @Test
+    public void shouldGeneratePasswordsOfConfiguredLengthAndAlphabet() {
+        passwordGenerator = new PasswordGenerator(12, "ab");
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(passwordGenerator.generatePassword()).hasSize(12).matches("[ab]+");
+        }
+    }
+
+    @Test
+    public void shouldUseEveryCharacterOfTheAlphabet() {
+        passwordGenerator = new PasswordGenerator(1000, "xyz");
+
+        assertThat(passwordGenerator.generatePassword()).contains("x", "y", "z");
+    }
+
+    @Test
+    public void shouldGenerateDistinctPasswordsConcurrently() throws Exception {
+        passwordGenerator = new PasswordGenerator();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() {
+                    List<String> passwords = new ArrayList<>();
+                    for (int j = 0; j < 1000; j++) {
+                        passwords.add(passwordGenerator.generatePassword());
+                    }
+                    return passwords;
+                }
+            }));
+        }
+        Set<String> passwords = new HashSet<>();
+        for (Future<List<String>> result : results) {
+            passwords.addAll(result.get());
+        }
+        executor.shutdown();
+
+        assertThat(passwords).hasSize(8000).doesNotContainNull();
+    }
+
+    @Test
+    public void shouldGeneratePasswordsOnceStopped() {
+        passwordGenerator = new PasswordGenerator();
+        passwordGenerator.stop();
+
+        assertThat(passwordGenerator.generatePassword()).hasSize(PasswordGenerator.DEFAULT_LENGTH);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectAlphabetWithRepeatedCharacters() {
+        new PasswordGenerator(10, "abca");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectAlphabetOfOneCharacter() {
+        new PasswordGenerator(10, "a");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectEmptyPasswords() {
+        new PasswordGenerator(0, PasswordGenerator.DEFAULT_ALPHABET);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.Factory;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class RetryPolicyTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldRetryTransientErrorsUntilSuccessful() throws Exception {
+        RetryPolicy retryPolicy = newRetryPolicy(3, 100);
+        Calls calls = new Calls(Status.BAD_GATEWAY, Status.SERVICE_UNAVAILABLE, Status.OK);
+
+        Response response = retryPolicy.execute(new RootContext(), calls).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(calls.count.get()).isEqualTo(3);
+        assertThat(retryPolicy.getRetries()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldStopRetryingAfterMaxAttempts() throws Exception {
+        RetryPolicy retryPolicy = newRetryPolicy(2, 100);
+        Calls calls = new Calls(Status.GATEWAY_TIMEOUT, Status.GATEWAY_TIMEOUT, Status.OK);
+
+        Response response = retryPolicy.execute(new RootContext(), calls).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.GATEWAY_TIMEOUT);
+        assertThat(calls.count.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotRetryOtherErrors() throws Exception {
+        RetryPolicy retryPolicy = newRetryPolicy(3, 100);
+        Calls calls = new Calls(Status.INTERNAL_SERVER_ERROR, Status.OK);
+
+        Response response = retryPolicy.execute(new RootContext(), calls).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
+        assertThat(calls.count.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotRetryResponsesWithRetryAfter() throws Exception {
+        RetryPolicy retryPolicy = newRetryPolicy(3, 100);
+        final Response rejected = new Response(Status.SERVICE_UNAVAILABLE);
+        rejected.getHeaders().put("Retry-After", "30");
+
+        Factory<Promise<Response, NeverThrowsException>> call = new Factory<Promise<Response, NeverThrowsException>>() {
+            @Override
+            public Promise<Response, NeverThrowsException> newInstance() {
+                return Promises.<Response, NeverThrowsException>newResultPromise(rejected);
+            }
+        };
+
+        Response response = retryPolicy.execute(new RootContext(), call).get();
+
+        assertThat(response).isSameAs(rejected);
+        assertThat(retryPolicy.getRetries()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldStopRetryingWhenBudgetIsExhausted() throws Exception {
+        RetryPolicy retryPolicy = newRetryPolicy(2, 1);
+
+        for (int i = 0; i < 12; i++) {
+            retryPolicy.execute(new RootContext(), new Calls(Status.BAD_GATEWAY, Status.BAD_GATEWAY)).get();
+        }
+
+        assertThat(retryPolicy.getRetries()).isEqualTo(10);
+        assertThat(retryPolicy.getBudgetExhausted()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotRetryPastTheDeadline() throws Exception {
+        RetryPolicy retryPolicy = newRetryPolicy(3, 100);
+        Calls calls = new Calls(Status.BAD_GATEWAY, Status.OK);
+
+        Response response = retryPolicy.execute(new DeadlineContext(new RootContext(), System.currentTimeMillis()),
+                calls).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.BAD_GATEWAY);
+        assertThat(calls.count.get()).isEqualTo(1);
+        assertThat(retryPolicy.getRetries()).isEqualTo(0);
+    }
+
+    private RetryPolicy newRetryPolicy(int maxAttempts, int budgetPercent) {
+        return new RetryPolicy(maxAttempts, duration("1 milliseconds"), duration("5 milliseconds"), budgetPercent,
+                scheduler);
+    }
+
+    private static final class Calls implements Factory<Promise<Response, NeverThrowsException>> {
+        private final Iterator<Status> statuses;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private Calls(Status... statuses) {
+            this.statuses = Arrays.asList(statuses).iterator();
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> newInstance() {
+            count.incrementAndGet();
+            return Promises.<Response, NeverThrowsException>newResultPromise(new Response(statuses.next()));
+        }
+    }
+}
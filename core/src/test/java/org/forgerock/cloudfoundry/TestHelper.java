@@ -135,12 +135,14 @@ public final class TestHelper {
                         new Header("X-OpenAM-Password", "password"));
     }
 
-    public static HttpRequest verifyListClients(String cookieName, String ssoToken) {
+    public static HttpRequest verifyListClients(String cookieName, String ssoToken, String prefix) {
         return request()
                 .withMethod("GET")
                 .withPath("/json/realm/agents")
-                .withHeader(new Header(cookieName, "ssoToken"))
-                .withQueryStringParameter(new Parameter("_queryId", "*"));
+                .withHeader(new Header(cookieName, ssoToken))
+                .withQueryStringParameters(
+                        new Parameter("_queryFilter", "username sw \"" + prefix + "\""),
+                        new Parameter("_fields", "username"));
     }
 
     public static HttpRequest verifyClientCreation(String username, String generatedPassword, String cookieName,
@@ -70,7 +70,8 @@ public class BindingHandlerTest {
 
         bindingHandler.handle(context(), request);
 
-        verify(bindingService).bind(eq(INSTANCE_ID), eq(BINDING_ID), any(JsonValue.class), parameters.capture());
+        verify(bindingService).bind(any(Context.class), eq(INSTANCE_ID), eq(BINDING_ID), any(JsonValue.class),
+                parameters.capture());
         assertThat(parameters.getValue().isNull()).isTrue();
     }
 
@@ -83,7 +84,7 @@ public class BindingHandlerTest {
 
         bindingHandler.handle(context(), request);
 
-        verify(bindingService).unbind(eq(INSTANCE_ID), eq(BINDING_ID));
+        verify(bindingService).unbind(any(Context.class), eq(INSTANCE_ID), eq(BINDING_ID));
     }
 
     private Context context() {
@@ -53,4 +53,33 @@ public class CatalogHandlerTest {
                         object(field("foo_service2", "bar"))))));
         assertThat(json(response.getEntity().getJson()).isEqualTo(expectedBody)).isTrue();
     }
+
+    @Test
+    public void shouldReturnNotModifiedWhenCatalogIsUnchanged() throws Exception {
+        Service service = mock(Service.class);
+        when(service.getServiceMetadata()).thenReturn(json(object(field("foo_service1", "bar"))));
+        CatalogHandler catalogHandler = new CatalogHandler(Collections.singletonList(service));
+        String etag = catalogHandler.handle(new RootContext(), new Request().setMethod("GET")).get()
+                .getHeaders().getFirst("ETag");
+
+        Request request = new Request().setMethod("GET");
+        request.getHeaders().put("If-None-Match", "\"other\", " + etag);
+        Response response = catalogHandler.handle(new RootContext(), request).get();
+
+        assertThat(etag).isNotNull();
+        assertThat(response.getStatus()).isEqualTo(Status.NOT_MODIFIED);
+        assertThat(response.getHeaders().getFirst("ETag")).isEqualTo(etag);
+    }
+
+    @Test
+    public void shouldReturnCatalogWhenEtagDoesNotMatch() throws Exception {
+        CatalogHandler catalogHandler = new CatalogHandler(Collections.<Service>emptyList());
+
+        Request request = new Request().setMethod("GET");
+        request.getHeaders().put("If-None-Match", "\"other\"");
+        Response response = catalogHandler.handle(new RootContext(), request).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(json(response.getEntity().getJson()).get("services").size()).isEqualTo(0);
+    }
 }
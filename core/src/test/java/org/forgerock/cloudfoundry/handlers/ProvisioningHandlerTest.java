@@ -6,11 +6,15 @@ import static org.forgerock.http.routing.UriRouterContext.uriRouterContext;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import org.forgerock.cloudfoundry.AsyncOperations;
+import org.forgerock.cloudfoundry.persistence.InMemoryStateStore;
 import org.forgerock.cloudfoundry.services.ProvisioningService;
 import org.forgerock.cloudfoundry.services.Service;
 import org.forgerock.http.protocol.Form;
@@ -20,9 +24,12 @@ import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promises;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -42,6 +49,8 @@ public class ProvisioningHandlerTest {
     @Captor
     private ArgumentCaptor<JsonValue> parameters;
 
+    private AsyncOperations asyncOperations;
+
     private ProvisioningHandler provisioningHandler;
 
     @BeforeMethod
@@ -49,7 +58,13 @@ public class ProvisioningHandlerTest {
         initMocks(this);
         when(service.getProvisioningService()).thenReturn(provisioningService);
 
-        provisioningHandler = new ProvisioningHandler(singletonMap(SERVICE_ID, service));
+        asyncOperations = new AsyncOperations(new InMemoryStateStore(), 1, 10);
+        provisioningHandler = new ProvisioningHandler(singletonMap(SERVICE_ID, service), asyncOperations);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        asyncOperations.stop();
     }
 
     @Test
@@ -70,7 +85,7 @@ public class ProvisioningHandlerTest {
 
         provisioningHandler.handle(context(), request);
 
-        verify(provisioningService).provision(eq(INSTANCE_ID), parameters.capture());
+        verify(provisioningService).provision(any(Context.class), eq(INSTANCE_ID), parameters.capture());
         assertThat(parameters.getValue().isNull()).isTrue();
     }
 
@@ -82,7 +97,7 @@ public class ProvisioningHandlerTest {
 
         provisioningHandler.handle(context(), request);
 
-        verify(provisioningService).update(eq(INSTANCE_ID), parameters.capture());
+        verify(provisioningService).update(any(Context.class), eq(INSTANCE_ID), parameters.capture());
         assertThat(parameters.getValue().isNull()).isTrue();
     }
 
@@ -95,7 +110,24 @@ public class ProvisioningHandlerTest {
 
         provisioningHandler.handle(context(), request);
 
-        verify(provisioningService).deprovision(eq(INSTANCE_ID));
+        verify(provisioningService).deprovision(any(Context.class), eq(INSTANCE_ID));
+    }
+
+    @Test
+    public void shouldDeprovisionAsynchronouslyWhenIncompleteOperationsAreAccepted() throws Exception {
+        when(provisioningService.deprovision(any(Context.class), eq(INSTANCE_ID))).thenReturn(
+                Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK)));
+        Request request = new Request().setMethod("DELETE").setUri("/does/not/matter");
+        Form form = new Form();
+        form.add("service_id", SERVICE_ID);
+        form.add("accepts_incomplete", "true");
+        form.appendRequestQuery(request);
+
+        Response response = provisioningHandler.handle(context(), request).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.ACCEPTED);
+        assertThat(json(response.getEntity().getJson()).get("operation").isString()).isTrue();
+        verify(provisioningService, timeout(1000)).deprovision(any(Context.class), eq(INSTANCE_ID));
     }
 
     @DataProvider(name = "httpMethods")
@@ -6,20 +6,26 @@ import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.json.test.assertj.AssertJJsonValueAssert.assertThat;
 import static org.forgerock.util.test.assertj.Conditions.equalTo;
+import static org.forgerock.util.time.Duration.duration;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.util.Collections;
 import java.util.Map;
 
+import org.forgerock.cloudfoundry.AdmissionControlFilter;
+import org.forgerock.cloudfoundry.AsyncOperations;
 import org.forgerock.cloudfoundry.Configuration;
+import org.forgerock.cloudfoundry.Metrics;
 import org.forgerock.cloudfoundry.TestHelper;
+import org.forgerock.cloudfoundry.persistence.InMemoryStateStore;
 import org.forgerock.cloudfoundry.services.Service;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.time.TimeService;
 import org.testng.annotations.Test;
 
 @SuppressWarnings("javadoc")
@@ -32,12 +38,17 @@ public class ServiceBrokerHandlerTest {
         Configuration configuration = new Configuration("http://host:port/openam/", "user",
                 "password", "/", "broker_user", "broker_password",
                 "scope1 scope2");
+        AsyncOperations asyncOperations = new AsyncOperations(new InMemoryStateStore(), 1, 100);
         ServiceBrokerHandler handler = new ServiceBrokerHandler(Collections.<String, Service>emptyMap(),
-                configuration.getBrokerUsername(), configuration.getBrokerPassword());
+                asyncOperations, configuration.getBrokerUsername(), configuration.getBrokerPassword());
 
-        Response response = handler.handle(new RootContext(), new Request()).get();
+        try {
+            Response response = handler.handle(new RootContext(), new Request()).get();
 
-        assertThat(response.getStatus()).isEqualTo(Status.UNAUTHORIZED);
+            assertThat(response.getStatus()).isEqualTo(Status.UNAUTHORIZED);
+        } finally {
+            asyncOperations.stop();
+        }
     }
 
     @Test
@@ -50,14 +61,67 @@ public class ServiceBrokerHandlerTest {
         when(service.getServiceMetadata()).thenReturn(json(object(field("name", "openam-oauth2"))));
         Map<String, Service> services = Collections.singletonMap("foo", service);
 
-        ServiceBrokerHandler handler = new ServiceBrokerHandler(services, configuration.getBrokerUsername(),
-                configuration.getBrokerPassword());
+        AsyncOperations asyncOperations = new AsyncOperations(new InMemoryStateStore(), 1, 100);
+        ServiceBrokerHandler handler = new ServiceBrokerHandler(services, asyncOperations,
+                configuration.getBrokerUsername(), configuration.getBrokerPassword());
+
+        try {
+            Request request = TestHelper.createRequest("GET", "v2/catalog");
+            Response response = handler.handle(new RootContext(), request).get();
+            assertThat(response.getStatus()).isEqualTo(Status.OK);
+            JsonValue json = json(response.getEntity().getJson());
+            assertThat(json).stringIs("/services/0/name", equalTo("openam-oauth2"));
+        } finally {
+            asyncOperations.stop();
+        }
+    }
+
+    @Test
+    public void catalogRequestsBypassAdmissionControl() throws Exception {
+        Service service = mock(Service.class);
+        when(service.getServiceMetadata()).thenReturn(json(object(field("name", "openam-oauth2"))));
+        Map<String, Service> services = Collections.singletonMap("foo", service);
+        AdmissionControlFilter admissionControl = new AdmissionControlFilter(0, 0, duration("100 milliseconds"),
+                duration("1 second"), TimeService.SYSTEM);
+
+        AsyncOperations asyncOperations = new AsyncOperations(new InMemoryStateStore(), 1, 100);
+        ServiceBrokerHandler handler = new ServiceBrokerHandler(services, asyncOperations, admissionControl,
+                new Metrics(), "broker_user", "broker_password");
+
+        try {
+            Response catalog = handler.handle(new RootContext(), TestHelper.createRequest("GET", "v2/catalog")).get();
+            Response provisioning = handler.handle(new RootContext(),
+                    TestHelper.createRequest("PUT", "v2/service_instances/instanceId")).get();
+            assertThat(catalog.getStatus()).isEqualTo(Status.OK);
+            assertThat(provisioning.getStatus().getCode()).isEqualTo(429);
+        } finally {
+            asyncOperations.stop();
+        }
+    }
+
+    @Test
+    public void metricsRouteExposesRequestLatencies() throws Exception {
+        Service service = mock(Service.class);
+        when(service.getServiceMetadata()).thenReturn(json(object(field("name", "openam-oauth2"))));
+        Metrics metrics = new Metrics();
+        AsyncOperations asyncOperations = new AsyncOperations(new InMemoryStateStore(), 1, 100);
+        ServiceBrokerHandler handler = new ServiceBrokerHandler(Collections.singletonMap("foo", service),
+                asyncOperations, new AdmissionControlFilter(1, 1, duration("100 milliseconds"),
+                duration("1 second"), TimeService.SYSTEM), metrics, "broker_user", "broker_password");
+
+        try {
+            handler.handle(new RootContext(), TestHelper.createRequest("GET", "v2/catalog")).get();
+            Response unauthenticated = handler.handle(new RootContext(), new Request().setUri("/metrics")).get();
+            Response response = handler.handle(new RootContext(), TestHelper.createRequest("GET", "metrics")).get();
 
-        Request request = TestHelper.createRequest("GET", "v2/catalog");
-        Response response = handler.handle(new RootContext(), request).get();
-        assertThat(response.getStatus()).isEqualTo(Status.OK);
-        JsonValue json = json(response.getEntity().getJson());
-        assertThat(json).stringIs("/services/0/name", equalTo("openam-oauth2"));
+            assertThat(unauthenticated.getStatus()).isEqualTo(Status.UNAUTHORIZED);
+            assertThat(response.getStatus()).isEqualTo(Status.OK);
+            assertThat(response.getHeaders().getFirst("Content-Type")).startsWith("text/plain; version=0.0.4");
+            assertThat(response.getEntity().getString()).contains(
+                    "broker_request_duration_seconds_count{route=\"catalog\",method=\"GET\",status=\"200\"} 1");
+        } finally {
+            asyncOperations.stop();
+        }
     }
 
 }
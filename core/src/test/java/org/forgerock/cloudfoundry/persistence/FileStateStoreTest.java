@@ -0,0 +1,117 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.persistence;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.cloudfoundry.persistence.StateStore.Table.BINDINGS;
+import static org.forgerock.cloudfoundry.persistence.StateStore.Table.INSTANCES;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.forgerock.util.time.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class FileStateStoreTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("state").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldRecoverChangesFromLogAfterReopening() throws Exception {
+        try (FileStateStore store = FileStateStore.open(directory, Duration.UNLIMITED)) {
+            store.put(INSTANCES, "instance1", "{}").getOrThrow();
+            store.put(BINDINGS, "instance1-binding1", "app1").getOrThrow();
+            store.put(BINDINGS, "instance1-binding2", "app2").getOrThrow();
+            store.put(BINDINGS, "instance2-binding3", "app3").getOrThrow();
+            store.remove(INSTANCES, "instance1").getOrThrow();
+            store.removeAll(BINDINGS, "instance1-").getOrThrow();
+        }
+
+        try (FileStateStore store = FileStateStore.open(directory, Duration.UNLIMITED)) {
+            assertThat(store.get(INSTANCES, "instance1")).isNull();
+            assertThat(store.getAll(BINDINGS, "").keySet()).containsOnly("instance2-binding3");
+            assertThat(store.get(BINDINGS, "instance2-binding3")).isEqualTo("app3");
+        }
+    }
+
+    @Test
+    public void shouldRecoverChangesFromSnapshotAndLaterLog() throws Exception {
+        try (FileStateStore store = FileStateStore.open(directory, Duration.UNLIMITED)) {
+            store.put(BINDINGS, "instance1-binding1", "app1").getOrThrow();
+            store.snapshot();
+            store.put(BINDINGS, "instance1-binding2", "app2").getOrThrow();
+        }
+
+        assertThat(new File(directory, "snapshot")).exists();
+        assertThat(new File(directory, "log-0")).doesNotExist();
+        try (FileStateStore store = FileStateStore.open(directory, Duration.UNLIMITED)) {
+            assertThat(store.getAll(BINDINGS, "instance1-").keySet()).containsOnly("instance1-binding1",
+                    "instance1-binding2");
+        }
+    }
+
+    @Test
+    public void shouldStartNewLogFilesWhenFull() throws Exception {
+        try (FileStateStore store = FileStateStore.open(directory, Duration.UNLIMITED, 256)) {
+            for (int i = 0; i < 100; i++) {
+                store.put(BINDINGS, "instance1-binding" + i, "app" + i).getOrThrow();
+            }
+        }
+
+        try (FileStateStore store = FileStateStore.open(directory, Duration.UNLIMITED, 256)) {
+            assertThat(store.getAll(BINDINGS, "")).hasSize(100);
+            assertThat(store.get(BINDINGS, "instance1-binding99")).isEqualTo("app99");
+        }
+    }
+
+    @Test
+    public void shouldIgnoreTornRecordAtEndOfLog() throws Exception {
+        try (FileStateStore store = FileStateStore.open(directory, Duration.UNLIMITED)) {
+            store.put(BINDINGS, "instance1-binding1", "app1").getOrThrow();
+        }
+        try (RandomAccessFile log = new RandomAccessFile(new File(directory, "log-0"), "rw")) {
+            int length = log.readInt();
+            log.seek(8 + length);
+            log.writeInt(64);
+            log.writeInt(0xbad);
+        }
+
+        try (FileStateStore store = FileStateStore.open(directory, Duration.UNLIMITED)) {
+            assertThat(store.getAll(BINDINGS, "").keySet()).containsOnly("instance1-binding1");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.services.openam;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.cloudfoundry.OpenAMClient;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class DeletionWindowTest {
+
+    private OpenAMClient openAMClient;
+    private PromiseImpl<Response, NeverThrowsException> first;
+    private PromiseImpl<Response, NeverThrowsException> second;
+    private PromiseImpl<Response, NeverThrowsException> third;
+
+    @BeforeMethod
+    public void setUp() {
+        openAMClient = mock(OpenAMClient.class);
+        first = PromiseImpl.create();
+        second = PromiseImpl.create();
+        third = PromiseImpl.create();
+        when(openAMClient.deleteClient(any(Context.class), eq("instanceId-1"))).thenReturn(first);
+        when(openAMClient.deleteClient(any(Context.class), eq("instanceId-2"))).thenReturn(second);
+        when(openAMClient.deleteClient(any(Context.class), eq("instanceId-3"))).thenReturn(third);
+    }
+
+    @Test
+    public void shouldStartWaitingDeletionAsSoonAsOneCompletes() throws Exception {
+        DeletionWindow window = new DeletionWindow(openAMClient, new RootContext(), 2, "instanceId");
+
+        assertThat(window.delete("instanceId-1").isDone()).isTrue();
+        assertThat(window.delete("instanceId-2").isDone()).isTrue();
+        Promise<Void, NeverThrowsException> waiting = window.delete("instanceId-3");
+
+        assertThat(waiting.isDone()).isFalse();
+        verify(openAMClient, never()).deleteClient(any(Context.class), eq("instanceId-3"));
+
+        second.handleResult(new Response(Status.OK));
+
+        assertThat(waiting.isDone()).isTrue();
+        verify(openAMClient).deleteClient(any(Context.class), eq("instanceId-3"));
+    }
+
+    @Test
+    public void shouldDrainOnceEveryDeletionHasCompleted() throws Exception {
+        DeletionWindow window = new DeletionWindow(openAMClient, new RootContext(), 2, "instanceId");
+        window.delete("instanceId-1");
+        window.delete("instanceId-2");
+        window.delete("instanceId-3");
+
+        Promise<Void, NeverThrowsException> drained = window.drain();
+        first.handleResult(new Response(Status.OK));
+        second.handleResult(new Response(Status.BAD_REQUEST));
+
+        assertThat(drained.isDone()).isFalse();
+
+        third.handleResult(new Response(Status.INTERNAL_SERVER_ERROR));
+
+        assertThat(drained.isDone()).isTrue();
+        assertThat(window.getFailure().getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
+    }
+
+    @Test
+    public void shouldNotFailWhenClientsHaveAlreadyBeenRemoved() throws Exception {
+        DeletionWindow window = new DeletionWindow(openAMClient, new RootContext(), 2, "instanceId");
+        window.delete("instanceId-1");
+        first.handleResult(new Response(Status.BAD_REQUEST));
+
+        assertThat(window.drain().isDone()).isTrue();
+        assertThat(window.getFailure()).isNull();
+    }
+
+    @Test
+    public void shouldStartWaitingDeletionsThatCompleteSynchronouslyWithoutNesting() throws Exception {
+        // As when the circuit breaker is open and every deletion is rejected without calling OpenAM
+        when(openAMClient.deleteClient(any(Context.class), anyString()))
+                .thenReturn(newResultPromise(new Response(Status.SERVICE_UNAVAILABLE)));
+        when(openAMClient.deleteClient(any(Context.class), eq("instanceId-1"))).thenReturn(first);
+        when(openAMClient.deleteClient(any(Context.class), eq("instanceId-2"))).thenReturn(second);
+        DeletionWindow window = new DeletionWindow(openAMClient, new RootContext(), 2, "instanceId");
+        window.delete("instanceId-1");
+        window.delete("instanceId-2");
+        for (int i = 0; i < 10000; i++) {
+            window.delete("instanceId-waiting" + i);
+        }
+        Promise<Void, NeverThrowsException> drained = window.drain();
+
+        first.handleResult(new Response(Status.OK));
+        second.handleResult(new Response(Status.OK));
+
+        assertThat(drained.isDone()).isTrue();
+        assertThat(window.getFailure().getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        verify(openAMClient, times(10002)).deleteClient(any(Context.class), anyString());
+    }
+}
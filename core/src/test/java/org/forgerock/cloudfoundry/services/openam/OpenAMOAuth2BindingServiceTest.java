@@ -6,22 +6,34 @@ import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.json.test.assertj.AssertJJsonValueAssert.assertThat;
 import static org.forgerock.util.test.assertj.Conditions.equalTo;
+import static org.forgerock.util.time.Duration.duration;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import java.net.URI;
 
+import org.forgerock.cloudfoundry.BindingIndex;
 import org.forgerock.cloudfoundry.OpenAMClient;
 import org.forgerock.cloudfoundry.PasswordGenerator;
+import org.forgerock.cloudfoundry.persistence.InMemoryStateStore;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
 import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.TimeService;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -38,19 +50,23 @@ public class OpenAMOAuth2BindingServiceTest {
     private final String bindingId = "bindingId";
     private final String username = instanceId + "-" + bindingId;
     private final String generatedPassword = "foo2";
+    private final Context context = new RootContext();
 
+    private BindingIndex bindingIndex;
     private OpenAMOAuth2BindingService service;
 
     @BeforeMethod
     public void setUp() throws Exception {
         initMocks(this);
         when(mockPwGen.generatePassword()).thenReturn(generatedPassword);
-        service = new OpenAMOAuth2BindingService(openAMClient, mockPwGen);
+        bindingIndex = new BindingIndex();
+        service = new OpenAMOAuth2BindingService(openAMClient, mockPwGen, bindingIndex, new InMemoryStateStore(),
+                new BindReplayCache(10, duration("5 minutes"), TimeService.SYSTEM));
     }
 
     @Test
     public void createBindingCreatesOAuth2ClientAndReturnsCredentials() throws Exception {
-        when(openAMClient.createClient(anyString(), anyString()))
+        when(openAMClient.createClient(any(Context.class), anyString(), anyString(), any(Runnable.class)))
                 .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK)
                         .setEntity(json(object()))));
         when(openAMClient.getOAuth2Endpoint())
@@ -59,7 +75,7 @@ public class OpenAMOAuth2BindingServiceTest {
         JsonValue bindResource = json(object(field("app_guid", "appGuid")));
         JsonValue parameters = json(object());
 
-        Response response = service.bind(instanceId, bindingId, bindResource, parameters).get();
+        Response response = service.bind(context, instanceId, bindingId, bindResource, parameters).get();
         assertThat(response.getStatus()).isEqualTo(Status.CREATED);
         JsonValue credentials = json(response.getEntity().getJson()).get("credentials");
         assertThat(credentials).stringIs("/username", equalTo(username));
@@ -72,58 +88,171 @@ public class OpenAMOAuth2BindingServiceTest {
         JsonValue bindResource = json(object());
         JsonValue parameters = json(object());
 
-        Response response = service.bind(instanceId, bindingId, bindResource, parameters).get();
+        Response response = service.bind(context, instanceId, bindingId, bindResource, parameters).get();
         assertThat(response.getStatus().getCode()).isEqualTo(422);
     }
 
     @Test
     public void createBindingWhichAlreadyExistsReturnsConflict() throws Exception {
-        when(openAMClient.createClient(eq(username), eq(generatedPassword)))
+        when(openAMClient.createClient(any(Context.class), eq(username), eq(generatedPassword), any(Runnable.class)))
                 .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.CONFLICT)));
 
         JsonValue bindResource = json(object(field("app_guid", "appGuid")));
         JsonValue parameters = json(object());
 
-        Response response = service.bind(instanceId, bindingId, bindResource, parameters).get();
+        Response response = service.bind(context, instanceId, bindingId, bindResource, parameters).get();
 
-        verify(openAMClient).createClient(eq(username), eq(generatedPassword));
+        verify(openAMClient).createClient(any(Context.class), eq(username), eq(generatedPassword), any(Runnable.class));
         assertThat(response.getStatus()).isEqualTo(Status.CONFLICT);
     }
 
     @Test
     public void createBindingReturnsInternalServerErrorOnAMInternalServerError() throws Exception {
-        when(openAMClient.createClient(eq(username), eq(generatedPassword)))
+        when(openAMClient.createClient(any(Context.class), eq(username), eq(generatedPassword), any(Runnable.class)))
                 .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(
                         new Response(Status.INTERNAL_SERVER_ERROR)));
 
         JsonValue bindResource = json(object(field("app_guid", "appGuid")));
         JsonValue parameters = json(object());
 
-        Response response = service.bind(instanceId, bindingId, bindResource, parameters).get();
+        Response response = service.bind(context, instanceId, bindingId, bindResource, parameters).get();
 
-        verify(openAMClient).createClient(eq(username), eq(generatedPassword));
+        verify(openAMClient).createClient(any(Context.class), eq(username), eq(generatedPassword), any(Runnable.class));
         assertThat(response.getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
     }
 
     @Test
     public void deleteBindingDeletesOAuth2Client() throws Exception {
-        when(openAMClient.deleteClient(eq(username)))
+        when(openAMClient.deleteClient(any(Context.class), eq(username)))
                 .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK)));
 
-        Response response = service.unbind(instanceId, bindingId).get();
+        Response response = service.unbind(context, instanceId, bindingId).get();
 
-        verify(openAMClient).deleteClient(username);
+        verify(openAMClient).deleteClient(any(Context.class), eq(username));
         assertThat(response.getStatus()).isEqualTo(Status.OK);
     }
 
     @Test
     public void deleteBindingWhichDoesNotExistReturnsGone() throws Exception {
-        when(openAMClient.deleteClient(eq(username)))
+        when(openAMClient.deleteClient(any(Context.class), eq(username)))
                 .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(
                         new Response(Status.BAD_REQUEST)));
-        Response response = service.unbind(instanceId, bindingId).get();
+        Response response = service.unbind(context, instanceId, bindingId).get();
 
-        verify(openAMClient).deleteClient(username);
+        verify(openAMClient).deleteClient(any(Context.class), eq(username));
         assertThat(response.getStatus()).isEqualTo(Status.GONE);
     }
+
+    @Test
+    public void createBindingRecordsBindingInIndex() throws Exception {
+        String instanceGuid = "0d8b1c3e-4f2a-4b7e-9c1d-2e3f4a5b6c7d";
+        String bindingGuid = "a1b2c3d4-e5f6-4789-abcd-ef0123456789";
+        when(openAMClient.createClient(any(Context.class), anyString(), anyString(), any(Runnable.class)))
+                .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK)));
+        when(openAMClient.getOAuth2Endpoint())
+                .thenReturn(URI.create("http://openam.example.com/oauth2/realm"));
+
+        service.bind(context, instanceGuid, bindingGuid, json(object(field("app_guid", "appGuid"))),
+                json(object())).get();
+
+        assertThat(bindingIndex.contains(instanceGuid, bindingGuid)).isTrue();
+    }
+
+    @Test
+    public void createBindingRejectedWithoutCallingOpenAMIsNotIndexed() throws Exception {
+        String instanceGuid = "0d8b1c3e-4f2a-4b7e-9c1d-2e3f4a5b6c7d";
+        String bindingGuid = "a1b2c3d4-e5f6-4789-abcd-ef0123456789";
+        when(openAMClient.createClient(any(Context.class), anyString(), anyString(), any(Runnable.class)))
+                .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(
+                        new Response(Status.SERVICE_UNAVAILABLE)));
+
+        Response response = service.bind(context, instanceGuid, bindingGuid,
+                json(object(field("app_guid", "appGuid"))), json(object())).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(bindingIndex.contains(instanceGuid, bindingGuid)).isFalse();
+    }
+
+    @Test
+    public void createBindingThatTimedOutInOpenAMIsIndexed() throws Exception {
+        String instanceGuid = "0d8b1c3e-4f2a-4b7e-9c1d-2e3f4a5b6c7d";
+        String bindingGuid = "a1b2c3d4-e5f6-4789-abcd-ef0123456789";
+        when(openAMClient.createClient(any(Context.class), anyString(), anyString(), any(Runnable.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(InvocationOnMock invocation) {
+                        ((Runnable) invocation.getArguments()[3]).run();
+                        return Promises.<Response, NeverThrowsException>newResultPromise(
+                                new Response(Status.GATEWAY_TIMEOUT));
+                    }
+                });
+
+        Response response = service.bind(context, instanceGuid, bindingGuid,
+                json(object(field("app_guid", "appGuid"))), json(object())).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.GATEWAY_TIMEOUT);
+        assertThat(bindingIndex.contains(instanceGuid, bindingGuid)).isTrue();
+    }
+
+    @Test
+    public void deleteBindingMissingFromCompleteIndexReturnsGoneWithoutCallingOpenAM() throws Exception {
+        bindingIndex.markComplete();
+
+        Response response = service.unbind(context, "0d8b1c3e-4f2a-4b7e-9c1d-2e3f4a5b6c7d",
+                "a1b2c3d4-e5f6-4789-abcd-ef0123456789").get();
+
+        verify(openAMClient, never()).deleteClient(any(Context.class), anyString());
+        assertThat(response.getStatus()).isEqualTo(Status.GONE);
+    }
+
+    @Test
+    public void retriedBindingReturnsOriginalCredentialsWithoutCallingOpenAM() throws Exception {
+        when(openAMClient.createClient(any(Context.class), anyString(), anyString(), any(Runnable.class)))
+                .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK)));
+        when(openAMClient.getOAuth2Endpoint())
+                .thenReturn(URI.create("http://openam.example.com/oauth2/realm"));
+        service.bind(context, instanceId, bindingId, json(object(field("app_guid", "appGuid"))), json(object())).get();
+        when(mockPwGen.generatePassword()).thenReturn("other");
+
+        Response response = service.bind(context, instanceId, bindingId, json(object(field("app_guid", "appGuid"))),
+                json(object())).get();
+
+        verify(openAMClient, times(1)).createClient(any(Context.class), anyString(), anyString(), any(Runnable.class));
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        JsonValue credentials = json(response.getEntity().getJson()).get("credentials");
+        assertThat(credentials).stringIs("/password", equalTo(generatedPassword));
+    }
+
+    @Test
+    public void retriedBindingWithDifferentBodyReturnsConflict() throws Exception {
+        when(openAMClient.createClient(any(Context.class), anyString(), anyString(), any(Runnable.class)))
+                .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK)));
+        when(openAMClient.getOAuth2Endpoint())
+                .thenReturn(URI.create("http://openam.example.com/oauth2/realm"));
+        service.bind(context, instanceId, bindingId, json(object(field("app_guid", "appGuid"))), json(object())).get();
+
+        Response response = service.bind(context, instanceId, bindingId,
+                json(object(field("app_guid", "otherAppGuid"))), json(object())).get();
+
+        verify(openAMClient, times(1)).createClient(any(Context.class), anyString(), anyString(), any(Runnable.class));
+        assertThat(response.getStatus()).isEqualTo(Status.CONFLICT);
+    }
+
+    @Test
+    public void bindingIsCreatedAgainAfterUnbind() throws Exception {
+        when(openAMClient.createClient(any(Context.class), anyString(), anyString(), any(Runnable.class)))
+                .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK)));
+        when(openAMClient.deleteClient(any(Context.class), eq(username)))
+                .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK)));
+        when(openAMClient.getOAuth2Endpoint())
+                .thenReturn(URI.create("http://openam.example.com/oauth2/realm"));
+        service.bind(context, instanceId, bindingId, json(object(field("app_guid", "appGuid"))), json(object())).get();
+        service.unbind(context, instanceId, bindingId).get();
+
+        Response response = service.bind(context, instanceId, bindingId, json(object(field("app_guid", "appGuid"))),
+                json(object())).get();
+
+        verify(openAMClient, times(2)).createClient(any(Context.class), anyString(), anyString(), any(Runnable.class));
+        assertThat(response.getStatus()).isEqualTo(Status.CREATED);
+    }
 }
@@ -7,12 +7,14 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.Mockito.mock;
 
+import org.forgerock.cloudfoundry.BindingIndex;
 import org.forgerock.cloudfoundry.Configuration;
 import org.forgerock.cloudfoundry.OpenAMClient;
 import org.forgerock.cloudfoundry.PasswordGenerator;
 import org.forgerock.cloudfoundry.ServiceBroker;
 import org.forgerock.cloudfoundry.TestHelper;
 import org.forgerock.cloudfoundry.handlers.ServiceBrokerHandler;
+import org.forgerock.cloudfoundry.persistence.InMemoryStateStore;
 import org.forgerock.http.protocol.Form;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
@@ -52,7 +54,8 @@ public class OpenAMOAuth2ProvisioningServiceTest {
 
     @Test
     public void provisioningInstanceWithPut() throws Exception {
-        OpenAMOAuth2ProvisioningService service = new OpenAMOAuth2ProvisioningService(mock(OpenAMClient.class));
+        OpenAMOAuth2ProvisioningService service = new OpenAMOAuth2ProvisioningService(mock(OpenAMClient.class), 1,
+                new BindingIndex(), new InMemoryStateStore());
 
 
         Request request = TestHelper.createRequest("PUT", "v2/service_instances/instanceId");
@@ -97,7 +100,7 @@ public class OpenAMOAuth2ProvisioningServiceTest {
         mockServerClient.verify(
                 TestHelper.verifySuccessfulAuthentication(),
                 TestHelper.verifyServerInfoCall(),
-                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN)
+                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN, "instanceId-")
         );
     }
 
@@ -120,7 +123,7 @@ public class OpenAMOAuth2ProvisioningServiceTest {
         mockServerClient.verify(
                 TestHelper.verifySuccessfulAuthentication(),
                 TestHelper.verifyServerInfoCall(),
-                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN),
+                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN, "instanceId-"),
                 TestHelper.verifyClientDeletion("instanceId-bindingId", COOKIE_DOMAIN, SSO_TOKEN)
         );
     }
@@ -144,7 +147,7 @@ public class OpenAMOAuth2ProvisioningServiceTest {
         mockServerClient.verify(
                 TestHelper.verifySuccessfulAuthentication(),
                 TestHelper.verifyServerInfoCall(),
-                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN),
+                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN, "instanceId-"),
                 TestHelper.verifyClientDeletion("instanceId-bindingId", COOKIE_DOMAIN, SSO_TOKEN)
         );
     }
@@ -170,7 +173,7 @@ public class OpenAMOAuth2ProvisioningServiceTest {
         mockServerClient.verify(
                 TestHelper.verifySuccessfulAuthentication(),
                 TestHelper.verifyServerInfoCall(),
-                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN)
+                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN, "instanceId-")
         );
 
         mockServerClient.verify(
@@ -211,7 +214,7 @@ public class OpenAMOAuth2ProvisioningServiceTest {
         mockServerClient.verify(
                 TestHelper.verifySuccessfulAuthentication(),
                 TestHelper.verifyServerInfoCall(),
-                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN)
+                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN, "instanceId-")
         );
     }
 
@@ -237,7 +240,7 @@ public class OpenAMOAuth2ProvisioningServiceTest {
         mockServerClient.verify(
                 TestHelper.verifySuccessfulAuthentication(),
                 TestHelper.verifyServerInfoCall(),
-                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN)
+                TestHelper.verifyListClients(COOKIE_DOMAIN, SSO_TOKEN, "instanceId-")
         );
 
         mockServerClient.verify(
@@ -284,8 +287,8 @@ public class OpenAMOAuth2ProvisioningServiceTest {
                 "scope1 scope2");
 
         ServiceBroker broker = new ServiceBroker(configuration, mockPwGen);
-        return new ServiceBrokerHandler(broker.getServices(), configuration.getBrokerUsername(),
-                configuration.getBrokerPassword());
+        return new ServiceBrokerHandler(broker.getServices(), broker.getAsyncOperations(),
+                configuration.getBrokerUsername(), configuration.getBrokerPassword());
     }
 
 }
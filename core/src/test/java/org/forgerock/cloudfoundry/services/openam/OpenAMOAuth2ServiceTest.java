@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry.services.openam;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.forgerock.cloudfoundry.ClientPageHandler;
+import org.forgerock.cloudfoundry.Configuration;
+import org.forgerock.cloudfoundry.OpenAMClient;
+import org.forgerock.cloudfoundry.PasswordGenerator;
+import org.forgerock.cloudfoundry.persistence.InMemoryStateStore;
+import org.forgerock.cloudfoundry.persistence.StateStore;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Options;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class OpenAMOAuth2ServiceTest {
+
+    private static final String INSTANCE_ID = "5a4f2a9e-6d2c-4b55-9a59-8e1b4a0d3f10";
+    private static final String BINDING_ID = "0c8e7b3a-1f2d-4e6a-8b9c-7d5e4f3a2b1c";
+
+    private OpenAMClient openAMClient;
+    private StateStore stateStore;
+    private OpenAMOAuth2Service service;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        openAMClient = mock(OpenAMClient.class);
+        stateStore = new InMemoryStateStore();
+        service = new OpenAMOAuth2Service(openAMClient, mock(PasswordGenerator.class),
+                new Configuration("http://localhost:8080/openam", "username", "password", "/", "broker_user",
+                        "broker_password", "scope1 scope2",
+                        Options.defaultOptions().set(Configuration.BINDING_INDEX_ENABLED, true)),
+                stateStore);
+    }
+
+    @Test
+    public void shouldCompleteIndexIgnoringOtherAgents() throws Exception {
+        expectClients(asList(INSTANCE_ID + "-" + BINDING_ID, "some-other-agent"));
+
+        service.start().get();
+
+        assertThat(service.getBindingIndex().isComplete()).isTrue();
+        assertThat(service.getBindingIndex().getBindings(INSTANCE_ID)).containsExactly(BINDING_ID);
+    }
+
+    @Test
+    public void shouldLeaveIndexIncompleteWhenStoredBindingCannotBeIndexed() throws Exception {
+        stateStore.put(StateStore.Table.BINDINGS, INSTANCE_ID + "-Binding", "appGuid").get();
+        expectClients(asList(INSTANCE_ID + "-" + BINDING_ID));
+
+        service.start().get();
+
+        assertThat(service.getBindingIndex().isComplete()).isFalse();
+    }
+
+    @Test
+    public void shouldLeaveIndexIncompleteWhenClientOfInstanceCannotBeIndexed() throws Exception {
+        expectClients(asList(INSTANCE_ID + "-" + BINDING_ID.toUpperCase()));
+
+        service.start().get();
+
+        assertThat(service.getBindingIndex().isComplete()).isFalse();
+    }
+
+    private void expectClients(final List<String> usernames) {
+        when(openAMClient.listClients(any(Context.class), eq(""), any(ClientPageHandler.class))).thenAnswer(
+                new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(InvocationOnMock invocation) {
+                        ((ClientPageHandler) invocation.getArguments()[2]).handlePage(usernames);
+                        return Promises.<Response, NeverThrowsException>newResultPromise(new Response(Status.OK));
+                    }
+                });
+    }
+}
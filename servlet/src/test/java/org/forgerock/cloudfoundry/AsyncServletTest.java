@@ -0,0 +1,160 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.forgerock.cloudfoundry.FakeOpenAM.Latency;
+import org.forgerock.cloudfoundry.Metrics.OpenAMOperation;
+import org.forgerock.cloudfoundry.services.openam.OpenAMOAuth2Service;
+import org.forgerock.http.servlet.HttpFrameworkServlet;
+import org.forgerock.http.util.Json;
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.encode.Base64;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.NodeList;
+
+/**
+ * Runs the broker in an embedded Jetty whose thread pool is much smaller than the number of concurrent binds, with
+ * every OAuth2 client creation delayed by OpenAM. More client creations can only be waiting in OpenAM at once than
+ * there are container threads if the servlet releases its container thread while waiting for OpenAM.
+ */
+@SuppressWarnings("javadoc")
+public class AsyncServletTest {
+
+    /** The container threads, one of which accepts connections and one of which selects them. */
+    private static final int CONTAINER_THREADS = 8;
+    private static final int REQUEST_THREADS = CONTAINER_THREADS - 2;
+    private static final int BINDINGS = 48;
+    private static final long OPENAM_LATENCY = 500;
+
+    private FakeOpenAM openAM;
+    private ServiceBrokerHttpApplication application;
+    private Server server;
+    private String instanceUri;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        openAM = new FakeOpenAM("/", "amadmin", "password");
+        application = new ServiceBrokerHttpApplication(new Configuration(
+                openAM.getBaseUri(), "amadmin", "password", "/", "broker_user", "broker_password", "profile email"));
+
+        QueuedThreadPool threadPool = new QueuedThreadPool(CONTAINER_THREADS, CONTAINER_THREADS);
+        server = new Server(threadPool);
+        ServerConnector connector = new ServerConnector(server, 1, 1);
+        connector.setHost("localhost");
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        ServletHolder servlet = new ServletHolder(new HttpFrameworkServlet(application));
+        servlet.setAsyncSupported(true);
+        context.addServlet(servlet, "/*");
+        server.setHandler(context);
+        server.start();
+
+        instanceUri = "http://localhost:" + connector.getLocalPort() + "/v2/service_instances/instance";
+        openAM.setLatency(OpenAMOperation.CREATE, Latency.fixed(duration(OPENAM_LATENCY, MILLISECONDS)));
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        server.stop();
+        application.stop();
+        openAM.stop();
+    }
+
+    @Test
+    public void shouldDeclareAsyncSupportInDeploymentDescriptor() throws Exception {
+        NodeList asyncSupported = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new File("src/main/webapp/WEB-INF/web.xml"))
+                .getElementsByTagName("async-supported");
+
+        assertThat(asyncSupported.getLength()).isEqualTo(1);
+        assertThat(asyncSupported.item(0).getTextContent().trim()).isEqualTo("true");
+    }
+
+    @Test
+    public void shouldSustainMoreConcurrentSlowBindsThanContainerThreads() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(BINDINGS);
+        try {
+            List<Future<Integer>> statuses = new ArrayList<>();
+            for (int i = 0; i < BINDINGS; i++) {
+                final String binding = "binding" + i;
+                statuses.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return put(instanceUri + "/service_bindings/" + binding, json(object(
+                                field("service_id", OpenAMOAuth2Service.SERVICE_ID),
+                                field("plan_id", OpenAMOAuth2Service.PLAN_ID),
+                                field("app_guid", "application-" + binding))));
+                    }
+                }));
+            }
+            for (Future<Integer> status : statuses) {
+                assertThat(status.get()).isEqualTo(201);
+            }
+
+            // Holding a container thread per bind would leave at most this many creations waiting in OpenAM
+            assertThat(openAM.getPeakConcurrentRequests(OpenAMOperation.CREATE)).isGreaterThan(REQUEST_THREADS);
+            assertThat(openAM.getRequestCount(OpenAMOperation.CREATE)).isEqualTo(BINDINGS);
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private static int put(String uri, JsonValue body) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(uri).openConnection();
+        try {
+            connection.setRequestMethod("PUT");
+            connection.setRequestProperty("Authorization", "Basic "
+                    + Base64.encode("broker_user:broker_password".getBytes(StandardCharsets.ISO_8859_1)));
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(Json.writeJson(body.getObject()));
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
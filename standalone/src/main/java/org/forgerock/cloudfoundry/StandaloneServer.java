@@ -0,0 +1,171 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.forgerock.http.HttpApplication;
+import org.forgerock.http.grizzly.GrizzlySupport;
+import org.forgerock.util.Option;
+import org.forgerock.util.Options;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an {@link HttpApplication}, by default the {@link ServiceBrokerHttpApplication}, on an embedded Grizzly NIO
+ * HTTP server rather than in a servlet container.
+ *
+ * <p>Requests are accepted and read by a small number of selector threads, and handled by a pool of worker threads.
+ * As the broker never blocks while waiting for OpenAM, neither pool needs to grow with the number of requests in
+ * flight.</p>
+ */
+public final class StandaloneServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StandaloneServer.class);
+
+    /** The port the server listens on. Cloud Foundry sets it in the {@code PORT} environment variable. */
+    public static final Option<Integer> PORT = Option.withDefault(8080);
+
+    /** The number of threads accepting connections and reading requests, by default one per CPU. */
+    public static final Option<Integer> SELECTOR_THREADS = Option.of(Integer.class, null);
+
+    /** The number of threads handling requests, by default Grizzly's own default. */
+    public static final Option<Integer> WORKER_THREADS = Option.of(Integer.class, null);
+
+    private final HttpApplication application;
+    private final HttpServer server;
+    private final NetworkListener listener;
+
+    /**
+     * Constructs a server for the given application. The application is started when the server is.
+     *
+     * @param application The {@link HttpApplication} to serve.
+     * @param options The {@link #PORT}, {@link #SELECTOR_THREADS} and {@link #WORKER_THREADS} of the server.
+     */
+    public StandaloneServer(HttpApplication application, Options options) {
+        this.application = application;
+        TCPNIOTransportBuilder transport = TCPNIOTransportBuilder.newInstance();
+        Integer selectorThreads = options.get(SELECTOR_THREADS);
+        if (selectorThreads != null) {
+            transport.setSelectorRunnersCount(selectorThreads);
+            transport.setSelectorThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+                    .setPoolName("broker-selector")
+                    .setCorePoolSize(selectorThreads)
+                    .setMaxPoolSize(selectorThreads));
+        }
+        Integer workerThreads = options.get(WORKER_THREADS);
+        if (workerThreads != null) {
+            transport.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+                    .setPoolName("broker-worker")
+                    .setCorePoolSize(workerThreads)
+                    .setMaxPoolSize(workerThreads));
+        }
+        listener = new NetworkListener("service-broker", NetworkListener.DEFAULT_NETWORK_HOST, options.get(PORT));
+        listener.setTransport(transport.build());
+        server = new HttpServer();
+        server.addListener(listener);
+    }
+
+    /**
+     * Starts the application and then listens for requests.
+     *
+     * @throws IOException If the server cannot listen on its port.
+     */
+    public void start() throws IOException {
+        long start = System.nanoTime();
+        server.getServerConfiguration().addHttpHandler(GrizzlySupport.newGrizzlyHttpHandler(application), "/");
+        server.start();
+        LOGGER.info("Service broker listening on port " + listener.getPort() + ", started in "
+                + NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, "
+                + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after the JVM was launched");
+    }
+
+    /**
+     * Stops listening and then stops the application.
+     */
+    public void stop() {
+        server.shutdownNow();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * @return The port.
+     */
+    public int getPort() {
+        return listener.getPort();
+    }
+
+    /**
+     * Reads the server options from environment variables: {@code PORT}, {@code BROKER_SELECTOR_THREADS} and
+     * {@code BROKER_WORKER_THREADS}.
+     *
+     * @param environment The environment variables.
+     * @return The server options.
+     */
+    static Options readOptions(Map<String, String> environment) {
+        Options options = Options.defaultOptions();
+        readInteger(options, PORT, environment, "PORT");
+        readInteger(options, SELECTOR_THREADS, environment, "BROKER_SELECTOR_THREADS");
+        readInteger(options, WORKER_THREADS, environment, "BROKER_WORKER_THREADS");
+        return options;
+    }
+
+    private static void readInteger(Options options, Option<Integer> option, Map<String, String> environment,
+            String variableName) {
+        String value = StringUtils.trimToNull(environment.get(variableName));
+        if (value != null) {
+            try {
+                int number = Integer.parseInt(value);
+                if (number <= 0) {
+                    throw new IllegalStateException(variableName + " must be a positive integer");
+                }
+                options.set(option, number);
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException(variableName + " must be a positive integer", e);
+            }
+        }
+    }
+
+    /**
+     * Runs the service broker, configured from the environment, until the JVM is stopped.
+     *
+     * @param args Ignored.
+     * @throws Exception If the broker cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        final StandaloneServer server = new StandaloneServer(new ServiceBrokerHttpApplication(),
+                readOptions(System.getenv()));
+        Runtime.getRuntime().addShutdownHook(new Thread("service-broker-shutdown") {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        server.start();
+        // Grizzly's threads are daemons, so the main thread keeps the JVM running
+        Thread.currentThread().join();
+    }
+}
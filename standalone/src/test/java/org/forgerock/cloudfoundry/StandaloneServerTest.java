@@ -0,0 +1,93 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.cloudfoundry;
+
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.cloudfoundry.StandaloneServer.PORT;
+import static org.forgerock.cloudfoundry.StandaloneServer.SELECTOR_THREADS;
+import static org.forgerock.cloudfoundry.StandaloneServer.WORKER_THREADS;
+
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.forgerock.util.Options;
+import org.forgerock.util.encode.Base64;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class StandaloneServerTest {
+
+    @Test
+    public void shouldReadOptionsFromEnvironment() {
+        Map<String, String> environment = new HashMap<>();
+        environment.put("PORT", "9090");
+        environment.put("BROKER_SELECTOR_THREADS", "1");
+        environment.put("BROKER_WORKER_THREADS", " 4 ");
+
+        Options options = StandaloneServer.readOptions(environment);
+
+        assertThat(options.get(PORT)).isEqualTo(9090);
+        assertThat(options.get(SELECTOR_THREADS)).isEqualTo(1);
+        assertThat(options.get(WORKER_THREADS)).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldDefaultOptionsWhenEnvironmentIsEmpty() {
+        Options options = StandaloneServer.readOptions(new HashMap<String, String>());
+
+        assertThat(options.get(PORT)).isEqualTo(8080);
+        assertThat(options.get(SELECTOR_THREADS)).isNull();
+        assertThat(options.get(WORKER_THREADS)).isNull();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldRejectInvalidThreadCount() {
+        StandaloneServer.readOptions(singletonMap("BROKER_WORKER_THREADS", "0"));
+    }
+
+    @Test
+    public void shouldServeBrokerRequests() throws Exception {
+        FakeOpenAM openAM = new FakeOpenAM("/", "amadmin", "password");
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        StandaloneServer server = new StandaloneServer(new ServiceBrokerHttpApplication(new Configuration(
+                openAM.getBaseUri(), "amadmin", "password", "/", "broker_user", "broker_password", "profile email")),
+                Options.defaultOptions().set(PORT, port).set(SELECTOR_THREADS, 1).set(WORKER_THREADS, 2));
+        try {
+            server.start();
+
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL("http://localhost:" + port + "/v2/catalog").openConnection();
+            connection.setRequestProperty("Authorization", "Basic "
+                    + Base64.encode("broker_user:broker_password".getBytes(StandardCharsets.ISO_8859_1)));
+
+            assertThat(server.getPort()).isEqualTo(port);
+            assertThat(connection.getResponseCode()).isEqualTo(200);
+            connection.disconnect();
+        } finally {
+            server.stop();
+            openAM.stop();
+        }
+    }
+}